@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.camera2.portability;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.view.Surface;
+
+import com.android.ex.camera2.portability.debug.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Streams YUV frames to a {@link CameraAgent.CameraAnalysisCallback}, only
+ * ever keeping the latest frame around while the callback is busy, so that a
+ * slow analysis never holds up the camera.
+ *
+ * <p>Frames arrive on the camera handler and are analyzed on the callback's
+ * executor, so this class is thread-safe.</p>
+ */
+class AnalysisStream implements ImageReader.OnImageAvailableListener {
+    private static final Log.Tag TAG = new Log.Tag("CamAnalysis");
+
+    /**
+     * One frame being analyzed, one waiting, and two for
+     * {@link ImageReader#acquireLatestImage} to skip over older ones.
+     */
+    private static final int MAX_IMAGES = 4;
+
+    private final ImageReader mReader;
+
+    private Executor mExecutor;
+    private CameraAgent.CameraAnalysisCallback mCallback;
+    private CameraAgent.CameraProxy mCamera;
+    /** The latest frame, waiting for the callback to be done with the previous one. */
+    private Image mPendingImage;
+    /** Whether {@link #mDeliverer} is scheduled or running. */
+    private boolean mDelivering;
+    private boolean mClosed;
+
+    /**
+     * @param size The size of the frames.
+     * @param handler The camera handler.
+     */
+    AnalysisStream(Size size, Handler handler) {
+        mReader = ImageReader.newInstance(size.width(), size.height(),
+                ImageFormat.YUV_420_888, MAX_IMAGES);
+        mReader.setOnImageAvailableListener(this, handler);
+    }
+
+    Surface getSurface() {
+        return mReader.getSurface();
+    }
+
+    /**
+     * @param cb The callback, or {@code null} to drop the frames.
+     */
+    synchronized void setCallback(Executor executor, CameraAgent.CameraAnalysisCallback cb,
+            CameraAgent.CameraProxy camera) {
+        mExecutor = executor;
+        mCallback = cb;
+        mCamera = camera;
+    }
+
+    /**
+     * Stops the stream. Its surface mustn't be streamed to anymore, but a
+     * frame still being analyzed stays valid until the callback returns.
+     */
+    synchronized void close() {
+        mClosed = true;
+        if (mPendingImage != null) {
+            mPendingImage.close();
+            mPendingImage = null;
+        }
+        if (!mDelivering) {
+            mReader.close();
+        } // Otherwise, the deliverer closes the reader once done.
+    }
+
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        Image image = reader.acquireLatestImage();
+        if (image == null) {
+            return;
+        }
+        Executor executor;
+        synchronized (this) {
+            if (mClosed || mCallback == null) {
+                image.close();
+                return;
+            }
+            if (mPendingImage != null) {
+                // The callback is still busy, so it never gets to see that one.
+                mPendingImage.close();
+            }
+            mPendingImage = image;
+            if (mDelivering) {
+                return;
+            }
+            mDelivering = true;
+            executor = mExecutor;
+        }
+        try {
+            executor.execute(mDeliverer);
+        } catch (RejectedExecutionException ex) {
+            Log.w(TAG, "Analysis executor rejected a frame", ex);
+            synchronized (this) {
+                mDelivering = false;
+                if (mPendingImage != null) {
+                    mPendingImage.close();
+                    mPendingImage = null;
+                }
+                if (mClosed) {
+                    mReader.close();
+                }
+            }
+        }
+    }
+
+    /** Hands the pending frames to the callback until there is none left. */
+    private final Runnable mDeliverer = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                Image image;
+                CameraAgent.CameraAnalysisCallback callback;
+                CameraAgent.CameraProxy camera;
+                synchronized (AnalysisStream.this) {
+                    image = mPendingImage;
+                    mPendingImage = null;
+                    if (image == null) {
+                        mDelivering = false;
+                        if (mClosed) {
+                            mReader.close();
+                        }
+                        return;
+                    }
+                    callback = mCallback;
+                    camera = mCamera;
+                }
+                try {
+                    if (callback != null) {
+                        callback.onImageAvailable(image, camera);
+                    }
+                } finally {
+                    image.close();
+                }
+            }
+        }};
+}
@@ -26,21 +26,28 @@ import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraConstrainedHighSpeedCaptureSession;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.InputConfiguration;
 import android.hardware.camera2.params.MeteringRectangle;
+import android.hardware.camera2.params.OutputConfiguration;
+import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
+import android.media.ImageWriter;
 import android.media.MediaActionSound;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
+import android.util.Pair;
 import android.view.Surface;
 
 import com.android.ex.camera2.portability.debug.Log;
@@ -49,9 +56,11 @@ import com.android.ex.camera2.utils.Camera2RequestSettingsSet;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 /**
  * A class to implement {@link CameraAgent} of the Android camera2 framework.
@@ -59,12 +68,25 @@ import java.util.Set;
 class AndroidCamera2AgentImpl extends CameraAgent {
     private static final Log.Tag TAG = new Log.Tag("AndCam2AgntImp");
 
+    /** Number of recent frames kept around for zero shutter lag capture. */
+    private static final int ZSL_RING_SIZE = 4;
+
+    /**
+     * Number of encoded pictures the capture reader holds, so that a burst
+     * isn't throttled by each picture being copied out in turn.
+     */
+    private static final int CAPTURE_READER_MAX_IMAGES = 4;
+
+    /** How long a pre-warmed camera stays open without being claimed by openCamera(). */
+    private static final long PREWARM_TIMEOUT_MS = 5000;
+
     private final Camera2Handler mCameraHandler;
     private final HandlerThread mCameraHandlerThread;
     private final CameraStateHolder mCameraState;
     private final DispatchThread mDispatchThread;
     private final CameraManager mCameraManager;
     private final MediaActionSound mNoisemaker;
+    private final CameraInfoCache mInfoCache;
     private CameraExceptionHandler mExceptionHandler;
 
     /**
@@ -80,6 +102,8 @@ class AndroidCamera2AgentImpl extends CameraAgent {
      * expose stable, we cannot simply remove them in such a case; instead, we insert {@code null}s
      * to invalidate any such indices.  Whenever new devices appear, they are appended to the end of
      * the list, and thereby assigned the lowest index that has never yet been used.
+     *
+     * <p>Guarded by itself, since it's refreshed from whichever thread queries the devices.</p>
      */
     private final List<String> mCameraDevices;
 
@@ -94,6 +118,7 @@ class AndroidCamera2AgentImpl extends CameraAgent {
         mCameraManager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
         mNoisemaker = new MediaActionSound();
         mNoisemaker.load(MediaActionSound.SHUTTER_CLICK);
+        mInfoCache = new CameraInfoCache(context);
 
         mNumCameraDevices = 0;
         mCameraDevices = new ArrayList<String>();
@@ -106,31 +131,44 @@ class AndroidCamera2AgentImpl extends CameraAgent {
      * @return Whether the operation was successful
      */
     private boolean updateCameraDevices() {
-        try {
-            String[] currentCameraDevices = mCameraManager.getCameraIdList();
-            Set<String> currentSet = new HashSet<String>(Arrays.asList(currentCameraDevices));
-
-            // Invalidate the indices assigned to any camera devices that are no longer present
-            for (int index = 0; index < mCameraDevices.size(); ++index) {
-                if (!currentSet.contains(mCameraDevices.get(index))) {
-                    mCameraDevices.set(index, null);
-                    --mNumCameraDevices;
+        synchronized (mCameraDevices) {
+            try {
+                String[] currentCameraDevices = mCameraManager.getCameraIdList();
+                Set<String> currentSet = new HashSet<String>(Arrays.asList(currentCameraDevices));
+
+                // Invalidate the indices assigned to any camera devices that are no longer present
+                for (int index = 0; index < mCameraDevices.size(); ++index) {
+                    if (mCameraDevices.get(index) != null &&
+                            !currentSet.contains(mCameraDevices.get(index))) {
+                        mCameraDevices.set(index, null);
+                        --mNumCameraDevices;
+                    }
                 }
-            }
 
-            // Assign fresh indices to any new camera devices
-            currentSet.removeAll(mCameraDevices); // The devices we didn't know about
-            for (String device : currentCameraDevices) {
-                if (currentSet.contains(device)) {
-                    mCameraDevices.add(device);
-                    ++mNumCameraDevices;
+                // Assign fresh indices to any new camera devices
+                currentSet.removeAll(mCameraDevices); // The devices we didn't know about
+                for (String device : currentCameraDevices) {
+                    if (currentSet.contains(device)) {
+                        mCameraDevices.add(device);
+                        ++mNumCameraDevices;
+                    }
                 }
+
+                return true;
+            } catch (CameraAccessException ex) {
+                Log.e(TAG, "Could not get device listing from camera subsystem", ex);
+                return false;
             }
+        }
+    }
 
-            return true;
-        } catch (CameraAccessException ex) {
-            Log.e(TAG, "Could not get device listing from camera subsystem", ex);
-            return false;
+    /**
+     * @return The underlying API's identifier of the camera device at {@code index}, or
+     *         {@code null} if there is none.
+     */
+    private String getCameraDeviceId(int index) {
+        synchronized (mCameraDevices) {
+            return index >= 0 && index < mCameraDevices.size() ? mCameraDevices.get(index) : null;
         }
     }
 
@@ -138,12 +176,50 @@ class AndroidCamera2AgentImpl extends CameraAgent {
     @Override
     public void recycle() {}
 
+    @Override
+    public void prewarm(final int cameraId) {
+        try {
+            mDispatchThread.runJob(new Runnable() {
+                @Override
+                public void run() {
+                    mCameraHandler.obtainMessage(CameraActions.PREWARM, cameraId, 0)
+                            .sendToTarget();
+                }});
+        } catch (final RuntimeException ex) {
+            getCameraExceptionHandler().onDispatchThreadException(ex);
+        }
+    }
+
     // TODO: Some indices may now be invalid; ensure everyone can handle that and update the docs
     @Override
     public CameraDeviceInfo getCameraDeviceInfo() {
-        updateCameraDevices();
-        return new AndroidCamera2DeviceInfo(mCameraManager, mCameraDevices.toArray(new String[0]),
-                mNumCameraDevices);
+        synchronized (mCameraDevices) {
+            updateCameraDevices();
+            return new AndroidCamera2DeviceInfo(mCameraManager, mInfoCache,
+                    mCameraDevices.toArray(new String[0]), mNumCameraDevices);
+        }
+    }
+
+    @Override
+    public CameraCapabilities getCapabilities(int cameraId) {
+        if (cameraId < 0) {
+            return null;
+        }
+        String actualId = getCameraDeviceId(cameraId);
+        if (actualId == null) {
+            // It may have been connected since the last refresh.
+            updateCameraDevices();
+            actualId = getCameraDeviceId(cameraId);
+        }
+        if (actualId == null) {
+            return null;
+        }
+        try {
+            return mInfoCache.getOrQuery(mCameraManager, actualId).capabilities;
+        } catch (CameraAccessException ex) {
+            Log.w(TAG, "Couldn't get characteristics of camera '" + actualId + "'", ex);
+            return null;
+        }
     }
 
     @Override
@@ -175,12 +251,137 @@ class AndroidCamera2AgentImpl extends CameraAgent {
             extends CameraCaptureSession.CaptureCallback
             implements ImageReader.OnImageAvailableListener {};
 
+    /**
+     * Delivers the pictures of a burst or continuous capture as they are
+     * encoded, and reports the end of the burst once every capture which
+     * started has either been delivered or failed, or lost its picture.
+     *
+     * <p>Only used on the camera handler thread.</p>
+     */
+    private abstract class BurstCaptureListener extends CaptureAvailableListener {
+        private int mSequenceId = -1;
+        private boolean mSequenceDone;
+        private int mStarted;
+        private int mDelivered;
+        private int mFailed;
+        private boolean mFinished;
+
+        /** Called once per capture, when its exposure starts. */
+        protected abstract void onShutter();
+
+        /** Called once per picture, the image is closed once this returns. */
+        protected abstract void onPictureTaken(int index, Image image);
+
+        /** Called once, after the last picture. */
+        protected abstract void onBurstFinished(int count);
+
+        /**
+         * Records the latest capture sequence submitted with this listener;
+         * the burst ends along with that sequence.
+         */
+        public void setSequenceId(int sequenceId) {
+            mSequenceId = sequenceId;
+            mSequenceDone = false;
+        }
+
+        public boolean isFinished() {
+            return mFinished;
+        }
+
+        /** Ends the burst now, without waiting for pictures still in flight. */
+        public void abort() {
+            if (!mFinished) {
+                mFinished = true;
+                onBurstFinished(mDelivered);
+            }
+        }
+
+        @Override
+        public void onCaptureStarted(CameraCaptureSession session, CaptureRequest request,
+                                     long timestamp, long frameNumber) {
+            if (!mFinished) {
+                ++mStarted;
+                onShutter();
+            }
+            mCameraHandler.onRepeatingFrameStarted();
+        }
+
+        @Override
+        public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request,
+                                       TotalCaptureResult result) {
+            // Bursts stream to the preview as well, keep tracking the control loops.
+            mCameraHandler.mCameraResultStateCallback.monitorControlStates(result);
+        }
+
+        @Override
+        public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request,
+                                    CaptureFailure failure) {
+            Log.e(TAG, "Burst capture failed with reason " + failure.getReason());
+            ++mFailed;
+            checkFinished();
+        }
+
+        @TargetApi(Build.VERSION_CODES.N)
+        @Override
+        public void onCaptureBufferLost(CameraCaptureSession session, CaptureRequest request,
+                                        Surface target, long frameNumber) {
+            // The capture itself went fine, but its picture won't come.
+            ImageReader captureReader = mCameraHandler.mCaptureReader;
+            if (captureReader != null && target == captureReader.getSurface()) {
+                Log.e(TAG, "Burst capture lost the picture of frame " + frameNumber);
+                ++mFailed;
+                checkFinished();
+            }
+        }
+
+        @Override
+        public void onCaptureSequenceCompleted(CameraCaptureSession session, int sequenceId,
+                                               long frameNumber) {
+            onSequenceEnded(sequenceId);
+        }
+
+        @Override
+        public void onCaptureSequenceAborted(CameraCaptureSession session, int sequenceId) {
+            onSequenceEnded(sequenceId);
+        }
+
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            try (Image image = reader.acquireNextImage()) {
+                if (image != null && !mFinished) {
+                    onPictureTaken(mDelivered++, image);
+                }
+            }
+            checkFinished();
+        }
+
+        private void onSequenceEnded(int sequenceId) {
+            // A continuous capture's repeating request is replaced whenever the settings change,
+            // ending its previous sequence without ending the burst.
+            if (sequenceId == mSequenceId) {
+                mSequenceDone = true;
+                checkFinished();
+            }
+        }
+
+        private void checkFinished() {
+            if (mSequenceDone && mDelivered + mFailed >= mStarted) {
+                abort();
+            }
+        }
+    }
+
     private class Camera2Handler extends HistoryHandler {
         // Caller-provided when leaving CAMERA_UNOPENED state:
         private CameraOpenCallback mOpenCallback;
         private int mCameraIndex;
         private String mCameraId;
         private int mCancelAfPending = 0;
+        private long mOpenRequestTime;
+        /** When the client asked for the camera, until its first preview frame. */
+        private long mOpenBeginNs;
+        /** Whether the camera was opened by a pre-warm which no client has claimed yet. */
+        private boolean mPrewarmed;
 
         // Available in CAMERA_UNCONFIGURED state and above:
         private CameraDevice mCamera;
@@ -188,34 +389,81 @@ class AndroidCamera2AgentImpl extends CameraAgent {
         private Camera2RequestSettingsSet mPersistentSettings;
         private Rect mActiveArray;
         private boolean mLegacyDevice;
+        private StreamConfigurationMap mStreamConfigs;
+        /** Format of the frames buffered for zero shutter lag, or UNKNOWN if unsupported. */
+        private int mZslInputFormat;
 
         // Available in CAMERA_CONFIGURED state and above:
         private Size mPreviewSize;
         private Size mPhotoSize;
+        private boolean mZslRequested;
+        private boolean mFastCaptureEnabled;
+        private boolean mHighSpeedRequested;
+        private long mPrecaptureTimeoutMs;
 
         // Available in PREVIEW_READY state and above:
         private SurfaceTexture mPreviewTexture;
         private Surface mPreviewSurface;
         private CameraCaptureSession mSession;
         private ImageReader mCaptureReader;
+        /** Shared output the preview surface is part of, so that it can be swapped out. */
+        private OutputConfiguration mPreviewOutput;
+        /** The preview size {@link #mSession} was configured with. */
+        private Size mSessionPreviewSize;
+        /** Whether {@link #mSession} is a constrained high speed session. */
+        private boolean mHighSpeedSession;
+        private long mSessionRequestTime;
+
+        // Available in PREVIEW_ACTIVE state and above:
+        /** Revision of {@link #mPersistentSettings} the repeating request was built from. */
+        private long mRepeatingRevision = -1;
+        /** Whether a frame has started since the repeating request was last submitted. */
+        private boolean mFrameSinceRepeatingUpdate;
+        /** Whether settings changed since, waiting for the next frame to be submitted. */
+        private boolean mRepeatingUpdatePending;
+
+        // Available in PREVIEW_READY state and above when zero shutter lag is enabled:
+        private ImageReader mZslReader;
+        private ImageWriter mZslWriter;
+        private ZslRingBuffer mZslRing;
+
+        // Available in PREVIEW_READY state and above when the session was configured for analysis:
+        private AnalysisStream mAnalysisStream;
 
         // Available from the beginning of PREVIEW_ACTIVE until the first preview frame arrives:
         private CameraStartPreviewCallback mOneshotPreviewingCallback;
+        private boolean mAwaitingFirstFrame;
+        private long mPreviewBeginNs;
 
         // Available in FOCUS_LOCKED between AF trigger receipt and whenever the lens stops moving:
         private CameraAFCallback mOneshotAfCallback;
+        private long mAfBeginNs;
 
         // Available when taking picture between AE trigger receipt and autoexposure convergence
         private CaptureAvailableListener mOneshotCaptureCallback;
+        private long mPrecaptureBeginNs;
+        // Available when taking picture between AE trigger and autoexposure convergence or timeout
+        private CaptureAvailableListener mPrecaptureListener;
+
+        // Available in PREVIEW_ACTIVE state and above from the start of a burst until its end:
+        private BurstCaptureListener mBurstCaptureListener;
+        private boolean mContinuousCapture;
 
         // Available whenever setAutoFocusMoveCallback() was last invoked with a non-null argument:
         private CameraAFMoveCallback mPassiveAfCallback;
 
+        // Available whenever setRecordingSurface() was last invoked with a non-null argument:
+        private Surface mRecordingSurface;
+
+        // Available whenever setAnalysisCallback() was last invoked with a non-null callback:
+        private Executor mAnalysisExecutor;
+        private CameraAnalysisCallback mAnalysisCallback;
+
         // Gets reset on every state change
         private int mCurrentAeState = CaptureResult.CONTROL_AE_STATE_INACTIVE;
 
         Camera2Handler(Looper looper) {
-            super(looper);
+            super(looper, getActionMetrics());
         }
 
         @Override
@@ -230,6 +478,24 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                         CameraOpenCallback openCallback = (CameraOpenCallback) msg.obj;
                         int cameraIndex = msg.arg1;
 
+                        if (mPrewarmed) {
+                            mPrewarmed = false;
+                            removeCallbacks(mPrewarmExpiry);
+                            if (cameraIndex == mCameraIndex) {
+                                Log.i(TAG, "Claiming pre-warmed camera index " + cameraIndex);
+                                mOpenCallback = openCallback;
+                                mOpenBeginNs = getActionMetrics().beginInterval(
+                                        CameraActionMetrics.INTERVAL_OPEN_TO_FIRST_FRAME);
+                                if (mCameraProxy != null) {
+                                    mOpenCallback.onCameraOpened(mCameraProxy);
+                                } // Otherwise, the device is still being opened.
+                                break;
+                            }
+                            Log.i(TAG, "Closing pre-warmed camera index " + mCameraIndex +
+                                    " to open index " + cameraIndex);
+                            releaseCamera();
+                        }
+
                         if (mCameraState.getState() > AndroidCamera2StateHolder.CAMERA_UNOPENED) {
                             openCallback.onDeviceOpenedAlready(cameraIndex,
                                     generateHistoryString(cameraIndex));
@@ -238,11 +504,15 @@ class AndroidCamera2AgentImpl extends CameraAgent {
 
                         mOpenCallback = openCallback;
                         mCameraIndex = cameraIndex;
-                        mCameraId = mCameraDevices.get(mCameraIndex);
+                        mOpenRequestTime = SystemClock.elapsedRealtime();
+                        mOpenBeginNs = getActionMetrics().beginInterval(
+                                CameraActionMetrics.INTERVAL_OPEN_TO_FIRST_FRAME);
+                        mCameraId = getCameraDeviceId(mCameraIndex);
                         Log.i(TAG, String.format("Opening camera index %d (id %s) with camera2 API",
                                 cameraIndex, mCameraId));
 
                         if (mCameraId == null) {
+                            cancelOpenInterval();
                             mOpenCallback.onCameraDisabled(msg.arg1);
                             break;
                         }
@@ -257,31 +527,32 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                             break;
                         }
 
-                        if (mSession != null) {
-                            closePreviewSession();
-                            mSession = null;
-                        }
-                        if (mCamera != null) {
-                            mCamera.close();
-                            mCamera = null;
-                        }
-                        mCameraProxy = null;
-                        mPersistentSettings = null;
-                        mActiveArray = null;
-                        if (mPreviewSurface != null) {
-                            mPreviewSurface.release();
-                            mPreviewSurface = null;
+                        releaseCamera();
+                        break;
+                    }
+
+                    case CameraActions.PREWARM: {
+                        if (mCameraId != null) {
+                            Log.v(TAG, "Ignoring pre-warm, a camera is already opened or opening");
+                            break;
                         }
-                        mPreviewTexture = null;
-                        if (mCaptureReader != null) {
-                            mCaptureReader.close();
-                            mCaptureReader = null;
+
+                        int cameraIndex = msg.arg1;
+                        String cameraId = getCameraDeviceId(cameraIndex);
+                        if (cameraId == null) {
+                            Log.w(TAG, "Ignoring pre-warm of unknown camera index " + cameraIndex);
+                            break;
                         }
-                        mPreviewSize = null;
-                        mPhotoSize = null;
-                        mCameraIndex = 0;
-                        mCameraId = null;
-                        changeState(AndroidCamera2StateHolder.CAMERA_UNOPENED);
+
+                        Log.i(TAG, String.format("Pre-warming camera index %d (id %s)",
+                                cameraIndex, cameraId));
+                        mOpenRequestTime = SystemClock.elapsedRealtime();
+                        mCameraManager.openCamera(cameraId, mCameraDeviceStateCallback, this);
+                        mOpenCallback = null;
+                        mCameraIndex = cameraIndex;
+                        mCameraId = cameraId;
+                        mPrewarmed = true;
+                        postDelayed(mPrewarmExpiry, PREWARM_TIMEOUT_MS);
                         break;
                     }
 
@@ -298,23 +569,57 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                         break;
                     }
 
+                    case CameraActions.SET_RECORDING_SURFACE: {
+                        mRecordingSurface = (Surface) msg.obj;
+                        if (mSession != null) {
+                            Log.i(TAG, "Recording surface changes with the next preview texture");
+                        }
+                        break;
+                    }
+
+                    case CameraActions.SET_ANALYSIS_CALLBACK: {
+                        @SuppressWarnings("unchecked")
+                        Pair<Executor, CameraAnalysisCallback> analysis =
+                                (Pair<Executor, CameraAnalysisCallback>) msg.obj;
+                        boolean wasAnalyzing = mAnalysisCallback != null;
+                        mAnalysisExecutor = analysis.first;
+                        mAnalysisCallback = analysis.second;
+                        if (mAnalysisStream == null) {
+                            if (mAnalysisCallback != null && mSession != null) {
+                                Log.i(TAG, "Analysis starts with the next preview texture");
+                            }
+                            break;
+                        }
+                        mAnalysisStream.setCallback(mAnalysisExecutor, mAnalysisCallback,
+                                mCameraProxy);
+                        // Only stream frames to the analysis while somebody is looking at them.
+                        if (wasAnalyzing != (mAnalysisCallback != null) &&
+                                mCameraState.getState() >=
+                                        AndroidCamera2StateHolder.CAMERA_PREVIEW_ACTIVE) {
+                            setRepeatingPreviewRequest();
+                        }
+                        break;
+                    }
+
                     case CameraActions.START_PREVIEW_ASYNC: {
                         if (mCameraState.getState() !=
                                         AndroidCamera2StateHolder.CAMERA_PREVIEW_READY) {
-                            // TODO: Provide better feedback here?
                             Log.w(TAG, "Refusing to start preview at inappropriate time");
+                            notifyPreviewStartFailed((CameraStartPreviewCallback) msg.obj,
+                                    "Refusing to start preview at inappropriate time");
                             break;
                         }
 
                         mOneshotPreviewingCallback = (CameraStartPreviewCallback) msg.obj;
+                        mAwaitingFirstFrame = true;
+                        mPreviewBeginNs = getActionMetrics().beginInterval(
+                                CameraActionMetrics.INTERVAL_PREVIEW_START);
                         changeState(AndroidCamera2StateHolder.CAMERA_PREVIEW_ACTIVE);
                         try {
-                            mSession.setRepeatingRequest(
-                                    mPersistentSettings.createRequest(mCamera,
-                                            CameraDevice.TEMPLATE_PREVIEW, mPreviewSurface),
-                                    /*listener*/mCameraResultStateCallback, /*handler*/this);
+                            setRepeatingPreviewRequest();
                         } catch(CameraAccessException ex) {
                             Log.w(TAG, "Unable to start preview", ex);
+                            failPreviewStart("Unable to start preview");
                             changeState(AndroidCamera2StateHolder.CAMERA_PREVIEW_READY);
                         }
                         break;
@@ -331,6 +636,7 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                             break;
                         }
 
+                        mContinuousCapture = false;
                         mSession.stopRepeating();
                         changeState(AndroidCamera2StateHolder.CAMERA_PREVIEW_READY);
                         break;
@@ -435,22 +741,25 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                                                         CaptureRequest request,
                                                         CaptureFailure failure) {
                                 Log.e(TAG, "Focusing failed with reason " + failure.getReason());
+                                cancelAutoFocusInterval();
                                 callback.onAutoFocus(false, mCameraProxy);
                             }};
 
                         // Send a one-time capture to trigger the camera driver to lock focus.
                         changeState(AndroidCamera2StateHolder.CAMERA_FOCUS_LOCKED);
+                        // A previous autofocus may never have locked.
+                        cancelAutoFocusInterval();
+                        mAfBeginNs = getActionMetrics().beginInterval(
+                                CameraActionMetrics.INTERVAL_AUTO_FOCUS);
                         Camera2RequestSettingsSet trigger =
                                 new Camera2RequestSettingsSet(mPersistentSettings);
                         trigger.set(CaptureRequest.CONTROL_AF_TRIGGER,
                                 CaptureRequest.CONTROL_AF_TRIGGER_START);
                         try {
-                            mSession.capture(
-                                    trigger.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW,
-                                            mPreviewSurface),
-                                    /*listener*/deferredCallbackSetter, /*handler*/ this);
+                            captureControlRequest(trigger, deferredCallbackSetter);
                         } catch(CameraAccessException ex) {
                             Log.e(TAG, "Unable to lock autofocus", ex);
+                            cancelAutoFocusInterval();
                             changeState(AndroidCamera2StateHolder.CAMERA_PREVIEW_ACTIVE);
                         }
                         break;
@@ -460,6 +769,7 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                         // Ignore all AFs that were already queued until we see
                         // a CANCEL_AUTO_FOCUS_FINISH
                         mCancelAfPending++;
+                        cancelAutoFocusInterval();
                         // Why would you want to unlock the lens if it isn't already locked?
                         if (mCameraState.getState() <
                                 AndroidCamera2StateHolder.CAMERA_PREVIEW_ACTIVE) {
@@ -474,10 +784,7 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                         cancel.set(CaptureRequest.CONTROL_AF_TRIGGER,
                                 CaptureRequest.CONTROL_AF_TRIGGER_CANCEL);
                         try {
-                            mSession.capture(
-                                    cancel.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW,
-                                            mPreviewSurface),
-                                    /*listener*/null, /*handler*/this);
+                            captureControlRequest(cancel, /*listener*/null);
                         } catch(CameraAccessException ex) {
                             Log.e(TAG, "Unable to cancel autofocus", ex);
                             changeState(AndroidCamera2StateHolder.CAMERA_FOCUS_LOCKED);
@@ -541,6 +848,14 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                             Log.e(TAG, "Photos may only be taken when a preview is active");
                             break;
                         }
+                        if (isBurstCapturing()) {
+                            Log.e(TAG, "Refusing to take a photo during a burst");
+                            break;
+                        }
+                        if (mHighSpeedSession) {
+                            Log.e(TAG, "Photos can't be taken in high speed mode");
+                            break;
+                        }
                         if (mCameraState.getState() !=
                                 AndroidCamera2StateHolder.CAMERA_FOCUS_LOCKED) {
                             Log.w(TAG, "Taking a (likely blurry) photo without the lens locked");
@@ -548,13 +863,20 @@ class AndroidCamera2AgentImpl extends CameraAgent {
 
                         final CaptureAvailableListener listener =
                                 (CaptureAvailableListener) msg.obj;
-                        if (mLegacyDevice ||
-                                (mCurrentAeState == CaptureResult.CONTROL_AE_STATE_CONVERGED &&
-                                !mPersistentSettings.matches(CaptureRequest.CONTROL_AE_MODE,
-                                        CaptureRequest.CONTROL_AE_MODE_ON_ALWAYS_FLASH) &&
-                                !mPersistentSettings.matches(CaptureRequest.FLASH_MODE,
-                                        CaptureRequest.FLASH_MODE_SINGLE)))
-                                {
+                        boolean flashForced =
+                                mPersistentSettings.matches(CaptureRequest.CONTROL_AE_MODE,
+                                        CaptureRequest.CONTROL_AE_MODE_ON_ALWAYS_FLASH) ||
+                                mPersistentSettings.matches(CaptureRequest.FLASH_MODE,
+                                        CaptureRequest.FLASH_MODE_SINGLE);
+                        if (!flashForced &&
+                                mCurrentAeState != CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED &&
+                                captureFromZslRing(listener)) {
+                            // A buffered frame only needs reprocessing, without waiting for
+                            // autoexposure or a new exposure. Frames needing the flash can't be
+                            // served from the buffer though.
+                            Log.i(TAG, "Capturing from zero shutter lag buffer");
+                        } else if (mLegacyDevice ||
+                                (mFastCaptureEnabled && !flashForced && isExposureSettled())) {
                             // Legacy devices don't support the precapture state keys and instead
                             // perform autoexposure convergence automatically upon capture.
 
@@ -563,16 +885,7 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                             // current exposure levels by forcing the force on, we can save
                             // significant capture time by not forcing a recalculation.
                             Log.i(TAG, "Skipping pre-capture autoexposure convergence");
-                            mCaptureReader.setOnImageAvailableListener(listener, /*handler*/this);
-                            try {
-                                mSession.capture(
-                                        mPersistentSettings.createRequest(mCamera,
-                                                CameraDevice.TEMPLATE_STILL_CAPTURE,
-                                                mCaptureReader.getSurface()),
-                                        listener, /*handler*/this);
-                            } catch (CameraAccessException ex) {
-                                Log.e(TAG, "Unable to initiate immediate capture", ex);
-                            }
+                            captureStill(listener);
                         } else {
                             // We need to let AE converge before capturing. Once our one-time
                             // trigger capture has made it into the pipeline, we'll start checking
@@ -598,7 +911,8 @@ class AndroidCamera2AgentImpl extends CameraAgent {
 
                                 private void checkAeState(CaptureResult result) {
                                     if (result.get(CaptureResult.CONTROL_AE_STATE) != null &&
-                                            !mAlreadyDispatched) {
+                                            !mAlreadyDispatched &&
+                                            mPrecaptureListener == listener) {
                                         // Now our mCameraResultStateCallback will invoke the
                                         // callback once the autoexposure routine has converged.
                                         mAlreadyDispatched = true;
@@ -623,6 +937,12 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                                     new Camera2RequestSettingsSet(mPersistentSettings);
                             expose.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
                                     CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START);
+                            mPrecaptureBeginNs = getActionMetrics().beginInterval(
+                                    CameraActionMetrics.INTERVAL_AE_PRECAPTURE);
+                            mPrecaptureListener = listener;
+                            if (mPrecaptureTimeoutMs > 0) {
+                                postDelayed(mPrecaptureTimeout, mPrecaptureTimeoutMs);
+                            }
                             try {
                                 mSession.capture(
                                         expose.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW,
@@ -635,6 +955,63 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                         break;
                     }
 
+                    case CameraActions.CAPTURE_BURST: {
+                        BurstCaptureListener listener = (BurstCaptureListener) msg.obj;
+                        if (mCameraState.getState() <
+                                        AndroidCamera2StateHolder.CAMERA_PREVIEW_ACTIVE) {
+                            Log.e(TAG, "Bursts may only be taken when a preview is active");
+                            listener.abort();
+                            break;
+                        }
+                        if (isBurstCapturing()) {
+                            Log.e(TAG, "Refusing to start a burst while another one is running");
+                            listener.abort();
+                            break;
+                        }
+                        if (mHighSpeedSession) {
+                            Log.e(TAG, "Bursts can't be taken in high speed mode");
+                            listener.abort();
+                            break;
+                        }
+
+                        // Bursts go straight to capture without waiting for autoexposure, which
+                        // keeps running on the preview stream that every capture also targets.
+                        mBurstCaptureListener = listener;
+                        mCaptureReader.setOnImageAvailableListener(listener, /*handler*/this);
+                        int count = msg.arg1;
+                        try {
+                            if (count > 0) {
+                                CaptureRequest request = mPersistentSettings.createRequest(mCamera,
+                                        CameraDevice.TEMPLATE_STILL_CAPTURE,
+                                        mPreviewSurface, mCaptureReader.getSurface());
+                                listener.setSequenceId(mSession.captureBurst(
+                                        Collections.nCopies(count, request), listener,
+                                        /*handler*/this));
+                            } else {
+                                mContinuousCapture = true;
+                                setRepeatingPreviewRequest();
+                            }
+                        } catch (CameraAccessException ex) {
+                            Log.e(TAG, "Unable to start burst capture", ex);
+                            mContinuousCapture = false;
+                            listener.abort();
+                        }
+                        break;
+                    }
+
+                    case CameraActions.STOP_CONTINUOUS_CAPTURE: {
+                        if (!mContinuousCapture) {
+                            Log.w(TAG, "Ignoring stop without a continuous capture running");
+                            break;
+                        }
+
+                        // Going back to the preview request ends the capture's sequence, and
+                        // with it the burst once its last pictures are delivered.
+                        mContinuousCapture = false;
+                        setRepeatingPreviewRequest();
+                        break;
+                    }
+
                     default: {
                         // TODO: Rephrase once everything has been implemented
                         throw new RuntimeException("Unimplemented CameraProxy message=" + msg.what);
@@ -647,6 +1024,7 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                     mCamera = null;
                 } else if (mCamera == null) {
                     if (cameraAction == CameraActions.OPEN_CAMERA) {
+                        cancelOpenInterval();
                         if (mOpenCallback != null) {
                             mOpenCallback.onDeviceOpenFailure(mCameraIndex,
                                     generateHistoryString(mCameraIndex));
@@ -667,6 +1045,71 @@ class AndroidCamera2AgentImpl extends CameraAgent {
             }
         }
 
+        /**
+         * Closes the camera device and tears down everything that depends on
+         * it, returning to the UNOPENED state.
+         */
+        private void releaseCamera() {
+            if (mSession != null) {
+                closePreviewSession();
+                mSession = null;
+            }
+            cancelOpenInterval();
+            closeZsl();
+            closeAnalysisStream();
+            if (mCamera != null) {
+                mCamera.close();
+                mCamera = null;
+            }
+            mCameraProxy = null;
+            mPersistentSettings = null;
+            mActiveArray = null;
+            if (mPreviewSurface != null) {
+                mPreviewSurface.release();
+                mPreviewSurface = null;
+            }
+            mPreviewTexture = null;
+            if (mCaptureReader != null) {
+                mCaptureReader.close();
+                mCaptureReader = null;
+            }
+            mPreviewSize = null;
+            mPhotoSize = null;
+            mCameraIndex = 0;
+            // A device still being opened is closed once it arrives, as it no longer matches.
+            mCameraId = null;
+            changeState(AndroidCamera2StateHolder.CAMERA_UNOPENED);
+        }
+
+        /**
+         * Abandons timing the opening of the camera, which failed or was given up on.
+         */
+        private void cancelOpenInterval() {
+            getActionMetrics().cancelInterval(CameraActionMetrics.INTERVAL_OPEN_TO_FIRST_FRAME,
+                    mOpenBeginNs);
+            mOpenBeginNs = 0;
+        }
+
+        /**
+         * Abandons timing the autofocus, which was cancelled or failed.
+         */
+        private void cancelAutoFocusInterval() {
+            getActionMetrics().cancelInterval(CameraActionMetrics.INTERVAL_AUTO_FOCUS,
+                    mAfBeginNs);
+            mAfBeginNs = 0;
+        }
+
+        private final Runnable mPrewarmExpiry = new Runnable() {
+            @Override
+            public void run() {
+                if (mPrewarmed) {
+                    Log.i(TAG, "Closing pre-warmed camera index " + mCameraIndex +
+                            ", which wasn't opened in time");
+                    mPrewarmed = false;
+                    releaseCamera();
+                }
+            }};
+
         public CameraSettings buildSettings(AndroidCamera2Capabilities caps) {
             try {
                 return new AndroidCamera2Settings(mCamera, CameraDevice.TEMPLATE_PREVIEW,
@@ -689,20 +1132,17 @@ class AndroidCamera2AgentImpl extends CameraAgent {
         private void applyToRequest(AndroidCamera2Settings settings) {
             // TODO: If invoked when in PREVIEW_READY state, a new preview size will not take effect
 
-            mPersistentSettings.union(settings.getRequestSettings());
+            mPersistentSettings.merge(settings.getRequestSettings());
             mPreviewSize = settings.getCurrentPreviewSize();
             mPhotoSize = settings.getCurrentPhotoSize();
+            mZslRequested = settings.isZslEnabled();
+            mFastCaptureEnabled = settings.isFastCaptureEnabled();
+            mHighSpeedRequested = settings.isHighSpeedVideoEnabled();
+            mPrecaptureTimeoutMs = settings.getPrecaptureTimeoutMs();
 
             if (mCameraState.getState() >= AndroidCamera2StateHolder.CAMERA_PREVIEW_ACTIVE) {
-                // If we're already previewing, reflect most settings immediately
-                try {
-                    mSession.setRepeatingRequest(
-                            mPersistentSettings.createRequest(mCamera,
-                                    CameraDevice.TEMPLATE_PREVIEW, mPreviewSurface),
-                            /*listener*/mCameraResultStateCallback, /*handler*/this);
-                } catch (CameraAccessException ex) {
-                    Log.e(TAG, "Failed to apply updated request settings", ex);
-                }
+                // If we're already previewing, reflect most settings as soon as possible
+                updateRepeatingRequest();
             } else if (mCameraState.getState() < AndroidCamera2StateHolder.CAMERA_PREVIEW_READY) {
                 // If we're already ready to preview, this doesn't regress our state
                 changeState(AndroidCamera2StateHolder.CAMERA_CONFIGURED);
@@ -725,6 +1165,10 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                 return;
             }
 
+            if (mSession != null && swapPreviewSurface(surfaceTexture)) {
+                return;
+            }
+
             if (mSession != null) {
                 closePreviewSession();
             }
@@ -740,34 +1184,526 @@ class AndroidCamera2AgentImpl extends CameraAgent {
             if (mCaptureReader != null) {
                 mCaptureReader.close();
             }
+            closeZsl();
+            closeAnalysisStream();
             mCaptureReader = ImageReader.newInstance(
-                    mPhotoSize.width(), mPhotoSize.height(), ImageFormat.JPEG, 1);
+                    mPhotoSize.width(), mPhotoSize.height(), ImageFormat.JPEG,
+                    CAPTURE_READER_MAX_IMAGES);
+
+            mPreviewOutput = null;
+            mSessionPreviewSize = mPreviewSize;
+            mSessionRequestTime = SystemClock.elapsedRealtime();
+            if (mHighSpeedRequested) {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                    createHighSpeedSession();
+                    return;
+                }
+                Log.w(TAG, "High speed sessions require API 23, configuring a regular one");
+            }
+            // The preview comes first, see createOutputConfigurations().
+            List<Surface> surfaces = new ArrayList<Surface>(4);
+            surfaces.add(mPreviewSurface);
+            surfaces.add(mCaptureReader.getSurface());
+            if (mAnalysisCallback != null) {
+                if (mZslRequested && mZslInputFormat != ImageFormat.UNKNOWN) {
+                    Log.w(TAG, "Zero shutter lag is disabled while analyzing the preview");
+                }
+                mAnalysisStream = new AnalysisStream(chooseAnalysisSize(), this);
+                mAnalysisStream.setCallback(mAnalysisExecutor, mAnalysisCallback, mCameraProxy);
+                surfaces.add(mAnalysisStream.getSurface());
+            }
+            try {
+                if (wantsZsl()) {
+                    Size zslSize = chooseZslInputSize();
+                    // The ring holds ZSL_RING_SIZE images while acquiring the next one, and one
+                    // more may be on its way to reprocessing.
+                    mZslReader = ImageReader.newInstance(zslSize.width(), zslSize.height(),
+                            mZslInputFormat, ZSL_RING_SIZE + 2);
+                    mZslReader.setOnImageAvailableListener(mZslImageListener, this);
+                    mZslRing = new ZslRingBuffer(ZSL_RING_SIZE);
+                    surfaces.add(mZslReader.getSurface());
+                    createReprocessableSession(surfaces, zslSize);
+                } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                    mCamera.createCaptureSessionByOutputConfigurations(
+                            createOutputConfigurations(surfaces),
+                            mCameraPreviewStateCallback, this);
+                } else {
+                    mCamera.createCaptureSession(surfaces, mCameraPreviewStateCallback, this);
+                }
+            } catch (CameraAccessException ex) {
+                Log.e(TAG, "Failed to create camera capture session", ex);
+            }
+        }
 
+        /**
+         * Configures the outputs of a session on API 24 and up, where the
+         * preview output is kept as {@link #mPreviewOutput}. From API 28 on,
+         * it is shared so that {@link #swapPreviewSurface} can change it.
+         *
+         * @param surfaces The surfaces to stream to, the preview first.
+         */
+        @TargetApi(Build.VERSION_CODES.N)
+        private List<OutputConfiguration> createOutputConfigurations(List<Surface> surfaces) {
+            mPreviewOutput = new OutputConfiguration(surfaces.get(0));
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                mPreviewOutput.enableSurfaceSharing();
+            }
+            List<OutputConfiguration> outputs =
+                    new ArrayList<OutputConfiguration>(surfaces.size());
+            outputs.add(mPreviewOutput);
+            for (int i = 1; i < surfaces.size(); ++i) {
+                outputs.add(new OutputConfiguration(surfaces.get(i)));
+            }
+            return outputs;
+        }
+
+        /**
+         * Configures a session whose ZSL frames can be reprocessed, which
+         * requires API 23.
+         *
+         * @param surfaces The surfaces to stream to, the preview first.
+         * @param zslSize The size of the ZSL frames.
+         */
+        @TargetApi(Build.VERSION_CODES.M)
+        private void createReprocessableSession(List<Surface> surfaces, Size zslSize)
+                throws CameraAccessException {
+            InputConfiguration input =
+                    new InputConfiguration(zslSize.width(), zslSize.height(), mZslInputFormat);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                mCamera.createReprocessableCaptureSessionByConfigurations(input,
+                        createOutputConfigurations(surfaces), mCameraPreviewStateCallback, this);
+            } else {
+                mCamera.createReprocessableCaptureSession(input, surfaces,
+                        mCameraPreviewStateCallback, this);
+            }
+        }
+
+        /**
+         * Configures a constrained high speed session, which only streams to
+         * the preview and the recording surface, if any. Requires API 23.
+         */
+        @TargetApi(Build.VERSION_CODES.M)
+        private void createHighSpeedSession() {
+            if (mZslRequested || mAnalysisCallback != null) {
+                Log.w(TAG, "Zero shutter lag and analysis are unavailable in high speed mode");
+            }
+            List<Surface> surfaces = new ArrayList<Surface>(2);
+            surfaces.add(mPreviewSurface);
+            if (mRecordingSurface != null) {
+                surfaces.add(mRecordingSurface);
+            }
+            mHighSpeedSession = true;
             try {
-                mCamera.createCaptureSession(
-                        Arrays.asList(mPreviewSurface, mCaptureReader.getSurface()),
+                mCamera.createConstrainedHighSpeedCaptureSession(surfaces,
                         mCameraPreviewStateCallback, this);
             } catch (CameraAccessException ex) {
-                Log.e(TAG, "Failed to create camera capture session", ex);
+                Log.e(TAG, "Failed to create high speed capture session", ex);
+            }
+        }
+
+        /**
+         * Moves the preview of the current session over to another texture,
+         * which is much faster than configuring a new session.
+         *
+         * @return Whether the session now streams to the new texture; if not,
+         *         the caller should configure a new session.
+         */
+        private boolean swapPreviewSurface(SurfaceTexture surfaceTexture) {
+            // Changing surfaces of a shared output requires API 28, and the streams can only be
+            // kept if the new preview would configure them the same.
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.P || mPreviewOutput == null ||
+                    mHighSpeedSession || mHighSpeedRequested ||
+                    !mPreviewSize.equals(mSessionPreviewSize) ||
+                    mCaptureReader.getWidth() != mPhotoSize.width() ||
+                    mCaptureReader.getHeight() != mPhotoSize.height() ||
+                    (mZslReader != null) != wantsZsl() ||
+                    (mAnalysisStream != null) != (mAnalysisCallback != null)) {
+                return false;
+            }
+
+            long startTime = SystemClock.elapsedRealtime();
+            surfaceTexture.setDefaultBufferSize(mPreviewSize.width(), mPreviewSize.height());
+            Surface oldSurface = mPreviewSurface;
+            Surface newSurface = new Surface(surfaceTexture);
+            try {
+                mPreviewOutput.addSurface(newSurface);
+                mSession.updateOutputConfiguration(mPreviewOutput);
+                mPreviewTexture = surfaceTexture;
+                mPreviewSurface = newSurface;
+
+                // The old surface may only be removed once no repeating request targets it.
+                if (mCameraState.getState() >= AndroidCamera2StateHolder.CAMERA_PREVIEW_ACTIVE) {
+                    setRepeatingPreviewRequest();
+                }
+                mPreviewOutput.removeSurface(oldSurface);
+                mSession.updateOutputConfiguration(mPreviewOutput);
+            } catch (CameraAccessException | IllegalArgumentException |
+                    IllegalStateException ex) {
+                Log.w(TAG, "Unable to reuse the capture session for the new preview texture", ex);
+                // Whichever surface isn't current won't be released by the reconfiguration.
+                if (mPreviewSurface == newSurface) {
+                    oldSurface.release();
+                } else {
+                    newSurface.release();
+                }
+                return false;
+            }
+            oldSurface.release();
+            Log.i(TAG, "Reused capture session for the new preview texture in " +
+                    (SystemClock.elapsedRealtime() - startTime) + " ms");
+            return true;
+        }
+
+        /**
+         * @return Whether the next session should buffer frames for zero shutter
+         *         lag, which the analysis stream takes the place of: the camera
+         *         only guarantees a limited number of YUV streams per session.
+         */
+        private boolean wantsZsl() {
+            return mZslRequested && mZslInputFormat != ImageFormat.UNKNOWN &&
+                    mAnalysisCallback == null;
+        }
+
+        /**
+         * @return The preview size if YUV frames of that size are supported, the
+         *         largest supported size no larger than the preview otherwise.
+         */
+        private Size chooseAnalysisSize() {
+            android.util.Size[] sizes = mStreamConfigs.getOutputSizes(ImageFormat.YUV_420_888);
+            long previewArea = (long) mPreviewSize.width() * mPreviewSize.height();
+            android.util.Size chosen = null;
+            for (android.util.Size size : sizes) {
+                if (size.getWidth() == mPreviewSize.width() &&
+                        size.getHeight() == mPreviewSize.height()) {
+                    return mPreviewSize;
+                }
+                long area = (long) size.getWidth() * size.getHeight();
+                if (area <= previewArea && (chosen == null ||
+                        area > (long) chosen.getWidth() * chosen.getHeight())) {
+                    chosen = size;
+                }
+            }
+            if (chosen == null) {
+                chosen = sizes[sizes.length - 1];
+            }
+            return new Size(chosen.getWidth(), chosen.getHeight());
+        }
+
+        /**
+         * @return The photo size if frames of that size can be reprocessed, the
+         *         largest reprocessable size otherwise.
+         */
+        private Size chooseZslInputSize() {
+            android.util.Size[] inputSizes = mStreamConfigs.getInputSizes(mZslInputFormat);
+            android.util.Size largest = inputSizes[0];
+            for (android.util.Size size : inputSizes) {
+                if (size.getWidth() == mPhotoSize.width() &&
+                        size.getHeight() == mPhotoSize.height()) {
+                    return mPhotoSize;
+                }
+                if ((long) size.getWidth() * size.getHeight() >
+                        (long) largest.getWidth() * largest.getHeight()) {
+                    largest = size;
+                }
+            }
+            return new Size(largest.getWidth(), largest.getHeight());
+        }
+
+        /**
+         * Resubmits the repeating request if the settings changed since it was
+         * last submitted, but at most once per frame: settings changing faster
+         * than that, e.g. while dragging a zoom slider, are merged and submitted
+         * when the next frame starts.
+         */
+        private void updateRepeatingRequest() {
+            if (mPersistentSettings.getRevision() == mRepeatingRevision) {
+                mRepeatingUpdatePending = false;
+                return;
+            }
+            if (!mFrameSinceRepeatingUpdate) {
+                mRepeatingUpdatePending = true;
+                return;
+            }
+            try {
+                setRepeatingPreviewRequest();
+            } catch (CameraAccessException ex) {
+                Log.e(TAG, "Failed to apply updated request settings", ex);
+            }
+        }
+
+        /**
+         * Called whenever a frame of the repeating request starts.
+         */
+        private void onRepeatingFrameStarted() {
+            mFrameSinceRepeatingUpdate = true;
+            if (mRepeatingUpdatePending && mCameraState.getState() >=
+                    AndroidCamera2StateHolder.CAMERA_PREVIEW_ACTIVE) {
+                updateRepeatingRequest();
+            }
+        }
+
+        /**
+         * Submits a one-time request, e.g. a trigger, streaming to the preview.
+         * High speed sessions only accept whole batches of requests, of which
+         * only the first one carries the triggers.
+         */
+        private void captureControlRequest(Camera2RequestSettingsSet settings,
+                CameraCaptureSession.CaptureCallback listener) throws CameraAccessException {
+            if (mHighSpeedSession) {
+                CaptureRequest request = mRecordingSurface != null ?
+                        settings.createRequest(mCamera, CameraDevice.TEMPLATE_RECORD,
+                                mPreviewSurface, mRecordingSurface) :
+                        settings.createRequest(mCamera, CameraDevice.TEMPLATE_RECORD,
+                                mPreviewSurface);
+                mSession.captureBurst(((CameraConstrainedHighSpeedCaptureSession) mSession)
+                        .createHighSpeedRequestList(request), listener, /*handler*/this);
+                return;
+            }
+            mSession.capture(
+                    settings.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW,
+                            mPreviewSurface),
+                    listener, /*handler*/this);
+        }
+
+        /**
+         * Submits the repeating request streaming to the preview, and to the zero
+         * shutter lag ring buffer or the analysis callback if enabled. During a
+         * continuous capture, every frame is captured as a picture as well. High
+         * speed sessions stream batches of frames to the preview and recording
+         * surface instead.
+         */
+        private void setRepeatingPreviewRequest() throws CameraAccessException {
+            mRepeatingRevision = mPersistentSettings.getRevision();
+            mFrameSinceRepeatingUpdate = false;
+            mRepeatingUpdatePending = false;
+            if (mHighSpeedSession) {
+                CaptureRequest request = mRecordingSurface != null ?
+                        mPersistentSettings.createRequest(mCamera, CameraDevice.TEMPLATE_RECORD,
+                                mPreviewSurface, mRecordingSurface) :
+                        mPersistentSettings.createRequest(mCamera, CameraDevice.TEMPLATE_RECORD,
+                                mPreviewSurface);
+                mSession.setRepeatingBurst(
+                        ((CameraConstrainedHighSpeedCaptureSession) mSession)
+                                .createHighSpeedRequestList(request),
+                        /*listener*/mCameraResultStateCallback, /*handler*/this);
+                return;
+            }
+            if (mContinuousCapture) {
+                mBurstCaptureListener.setSequenceId(mSession.setRepeatingRequest(
+                        mPersistentSettings.createRequest(mCamera,
+                                CameraDevice.TEMPLATE_STILL_CAPTURE,
+                                mPreviewSurface, mCaptureReader.getSurface()),
+                        /*listener*/mBurstCaptureListener, /*handler*/this));
+                return;
+            }
+            CaptureRequest request = mZslReader != null ?
+                    mPersistentSettings.createRequest(mCamera,
+                            CameraDevice.TEMPLATE_ZERO_SHUTTER_LAG,
+                            mPreviewSurface, mZslReader.getSurface()) :
+                    mAnalysisStream != null && mAnalysisCallback != null ?
+                    mPersistentSettings.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW,
+                            mPreviewSurface, mAnalysisStream.getSurface()) :
+                    mPersistentSettings.createRequest(mCamera, CameraDevice.TEMPLATE_PREVIEW,
+                            mPreviewSurface);
+            mSession.setRepeatingRequest(request,
+                    /*listener*/mCameraResultStateCallback, /*handler*/this);
+        }
+
+        /**
+         * Produces a picture by reprocessing the most recent buffered frame.
+         *
+         * @return Whether the capture was submitted; if not, the caller should
+         *         capture a new frame instead.
+         */
+        private boolean captureFromZslRing(CaptureAvailableListener listener) {
+            if (mZslWriter == null) {
+                return false;
+            }
+            ZslRingBuffer.Frame frame = mZslRing.takeLatest();
+            if (frame == null) {
+                Log.i(TAG, "No buffered frame available for zero shutter lag capture");
+                return false;
+            }
+
+            try {
+                CaptureRequest.Builder builder =
+                        mCamera.createReprocessCaptureRequest(frame.result);
+                builder.addTarget(mCaptureReader.getSurface());
+                // The reprocessed frame keeps its own exposure and processing; only the JPEG
+                // encoding parameters may have changed since it was captured.
+                copyIfSet(builder, CaptureRequest.JPEG_ORIENTATION);
+                copyIfSet(builder, CaptureRequest.JPEG_QUALITY);
+                copyIfSet(builder, CaptureRequest.JPEG_THUMBNAIL_SIZE);
+                copyIfSet(builder, CaptureRequest.JPEG_THUMBNAIL_QUALITY);
+                copyIfSet(builder, CaptureRequest.JPEG_GPS_LOCATION);
+
+                mZslWriter.queueInputImage(frame.image);
+                mCaptureReader.setOnImageAvailableListener(listener, /*handler*/this);
+                mSession.capture(builder.build(), listener, /*handler*/this);
+                return true;
+            } catch (CameraAccessException ex) {
+                Log.e(TAG, "Unable to reprocess buffered frame", ex);
+                frame.image.close();
+                return false;
+            }
+        }
+
+        /**
+         * @return Whether the latest result reported an exposure which a
+         *         precapture sequence wouldn't improve on: converged without
+         *         requiring the flash, or locked while the flash isn't automatic.
+         */
+        private boolean isExposureSettled() {
+            if (mCurrentAeState == CaptureResult.CONTROL_AE_STATE_CONVERGED) {
+                return true;
+            }
+            return mCurrentAeState == CaptureResult.CONTROL_AE_STATE_LOCKED &&
+                    !mPersistentSettings.matches(CaptureRequest.CONTROL_AE_MODE,
+                            CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH) &&
+                    !mPersistentSettings.matches(CaptureRequest.CONTROL_AE_MODE,
+                            CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH_REDEYE);
+        }
+
+        /**
+         * Captures a new picture with the current exposure.
+         */
+        private void captureStill(CaptureAvailableListener listener) {
+            mCaptureReader.setOnImageAvailableListener(listener, /*handler*/this);
+            try {
+                mSession.capture(
+                        mPersistentSettings.createRequest(mCamera,
+                                CameraDevice.TEMPLATE_STILL_CAPTURE,
+                                mCaptureReader.getSurface()),
+                        listener, /*handler*/this);
+            } catch (CameraAccessException ex) {
+                Log.e(TAG, "Unable to initiate capture", ex);
+            }
+        }
+
+        /**
+         * Stops waiting for autoexposure to converge before a capture.
+         *
+         * @param converged Whether it did, otherwise the wait isn't recorded.
+         */
+        private void endPrecapture(boolean converged) {
+            removeCallbacks(mPrecaptureTimeout);
+            if (converged) {
+                getActionMetrics().endInterval(CameraActionMetrics.INTERVAL_AE_PRECAPTURE,
+                        mPrecaptureBeginNs);
+            } else {
+                getActionMetrics().cancelInterval(CameraActionMetrics.INTERVAL_AE_PRECAPTURE,
+                        mPrecaptureBeginNs);
+            }
+            mPrecaptureBeginNs = 0;
+            mPrecaptureListener = null;
+            mOneshotCaptureCallback = null;
+        }
+
+        private final Runnable mPrecaptureTimeout = new Runnable() {
+            @Override
+            public void run() {
+                CaptureAvailableListener listener = mPrecaptureListener;
+                if (listener == null) {
+                    return;
+                }
+                Log.w(TAG, "Autoexposure didn't converge within " + mPrecaptureTimeoutMs +
+                        " ms, capturing anyway");
+                endPrecapture(false);
+                captureStill(listener);
+            }};
+
+        private boolean isBurstCapturing() {
+            return mBurstCaptureListener != null && !mBurstCaptureListener.isFinished();
+        }
+
+        private <T> void copyIfSet(CaptureRequest.Builder builder, CaptureRequest.Key<T> key) {
+            T value = mPersistentSettings.get(key);
+            if (value != null) {
+                builder.set(key, value);
+            }
+        }
+
+        private void closeZsl() {
+            if (mZslRing != null) {
+                mZslRing.clear();
+                mZslRing = null;
+            }
+            if (mZslWriter != null) {
+                mZslWriter.close();
+                mZslWriter = null;
+            }
+            if (mZslReader != null) {
+                mZslReader.close();
+                mZslReader = null;
             }
         }
 
+        private void closeAnalysisStream() {
+            if (mAnalysisStream != null) {
+                mAnalysisStream.close();
+                mAnalysisStream = null;
+            }
+        }
+
+        private final ImageReader.OnImageAvailableListener mZslImageListener =
+                new ImageReader.OnImageAvailableListener() {
+            @Override
+            public void onImageAvailable(ImageReader reader) {
+                if (reader != mZslReader) {
+                    // Left over from a session that has since been closed.
+                    return;
+                }
+                Image image = reader.acquireNextImage();
+                if (image != null) {
+                    mZslRing.addImage(image);
+                }
+            }};
+
         private void closePreviewSession() {
+            mContinuousCapture = false;
+            if (isBurstCapturing()) {
+                // The capture reader is about to go away along with any picture still in it.
+                mBurstCaptureListener.abort();
+            }
+            mBurstCaptureListener = null;
+            if (mPrecaptureListener != null) {
+                // The picture would target the capture reader, which is about to go away.
+                endPrecapture(false);
+            }
+            failPreviewStart("Preview session closed before the preview started");
+            cancelAutoFocusInterval();
+            mPreviewOutput = null;
+            mSessionPreviewSize = null;
+            mHighSpeedSession = false;
             try {
                 mSession.abortCaptures();
                 mSession = null;
             } catch (CameraAccessException ex) {
                 Log.e(TAG, "Failed to close existing camera capture session", ex);
             }
+            closeZsl();
+            closeAnalysisStream();
             changeState(AndroidCamera2StateHolder.CAMERA_CONFIGURED);
         }
 
+        /**
+         * Tells the caller waiting for the preview to start, if any, that it won't.
+         */
+        private void failPreviewStart(String reason) {
+            getActionMetrics().cancelInterval(CameraActionMetrics.INTERVAL_PREVIEW_START,
+                    mPreviewBeginNs);
+            mPreviewBeginNs = 0;
+            notifyPreviewStartFailed(mOneshotPreviewingCallback, reason);
+            mOneshotPreviewingCallback = null;
+        }
+
         private void changeState(int newState) {
             if (mCameraState.getState() != newState) {
                 mCameraState.setState(newState);
                 if (newState < AndroidCamera2StateHolder.CAMERA_PREVIEW_ACTIVE) {
                     mCurrentAeState = CaptureResult.CONTROL_AE_STATE_INACTIVE;
                     mCameraResultStateCallback.resetState();
+                    mRepeatingUpdatePending = false;
                 }
             }
         }
@@ -777,26 +1713,53 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                 new CameraDevice.StateCallback() {
             @Override
             public void onOpened(CameraDevice camera) {
+                if (!camera.getId().equals(mCameraId)) {
+                    // A pre-warmed device which was given up on while it was being opened.
+                    camera.close();
+                    return;
+                }
                 mCamera = camera;
-                if (mOpenCallback != null) {
+                if (mOpenCallback != null || mPrewarmed) {
                     try {
                         CameraCharacteristics props =
                                 mCameraManager.getCameraCharacteristics(mCameraId);
+                        // Having queried them anyway, also correct the cache if it was stale.
+                        CameraInfoCache.Entry info = mInfoCache.put(mCameraId, props);
                         CameraDeviceInfo.Characteristics characteristics =
-                                getCameraDeviceInfo().getCharacteristics(mCameraIndex);
+                                new AndroidCamera2DeviceInfo.AndroidCharacteristics2(
+                                        info.lensFacing, info.sensorOrientation);
                         mCameraProxy = new AndroidCamera2ProxyImpl(AndroidCamera2AgentImpl.this,
-                                mCameraIndex, mCamera, characteristics, props);
+                                mCameraIndex, mCamera, characteristics, info.capabilities);
                         mPersistentSettings = new Camera2RequestSettingsSet();
                         mActiveArray =
                                 props.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
                         mLegacyDevice =
                                 props.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL) ==
                                         CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY;
+                        mStreamConfigs =
+                                props.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+                        mZslInputFormat = AndroidCamera2Capabilities.getZslInputFormat(props);
                         changeState(AndroidCamera2StateHolder.CAMERA_UNCONFIGURED);
-                        mOpenCallback.onCameraOpened(mCameraProxy);
+                        if (mPrewarmed) {
+                            // Also have the default request template ready for the client's
+                            // first getSettings().
+                            mCameraProxy.getSettings();
+                            Log.i(TAG, "Pre-warmed camera in " +
+                                    (SystemClock.elapsedRealtime() - mOpenRequestTime) + " ms");
+                        } else {
+                            mOpenCallback.onCameraOpened(mCameraProxy);
+                        }
                     } catch (CameraAccessException ex) {
-                        mOpenCallback.onDeviceOpenFailure(mCameraIndex,
-                                generateHistoryString(mCameraIndex));
+                        if (mPrewarmed) {
+                            Log.w(TAG, "Unable to query pre-warmed camera", ex);
+                            mPrewarmed = false;
+                            removeCallbacks(mPrewarmExpiry);
+                            releaseCamera();
+                        } else {
+                            cancelOpenInterval();
+                            mOpenCallback.onDeviceOpenFailure(mCameraIndex,
+                                    generateHistoryString(mCameraIndex));
+                        }
                     }
                 }
             }
@@ -808,9 +1771,21 @@ class AndroidCamera2AgentImpl extends CameraAgent {
 
             @Override
             public void onError(CameraDevice camera, int error) {
+                if (!camera.getId().equals(mCameraId)) {
+                    // A pre-warmed device which was given up on; nobody is waiting for it.
+                    camera.close();
+                    return;
+                }
                 Log.e(TAG, "Camera device '" + mCameraIndex + "' encountered error code '" +
                         error + '\'');
-                if (mOpenCallback != null) {
+                if (mPrewarmed) {
+                    // Nobody is waiting for this device yet; the client's own open will retry.
+                    mPrewarmed = false;
+                    removeCallbacks(mPrewarmExpiry);
+                    camera.close();
+                    releaseCamera();
+                } else if (mOpenCallback != null) {
+                    cancelOpenInterval();
                     mOpenCallback.onDeviceOpenFailure(mCameraIndex,
                             generateHistoryString(mCameraIndex));
                 }
@@ -821,14 +1796,21 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                 new CameraCaptureSession.StateCallback() {
             @Override
             public void onConfigured(CameraCaptureSession session) {
+                Log.i(TAG, "Configured capture session in " +
+                        (SystemClock.elapsedRealtime() - mSessionRequestTime) + " ms");
                 mSession = session;
+                if (mZslReader != null) {
+                    mZslWriter = ImageWriter.newInstance(session.getInputSurface(), 1);
+                }
                 changeState(AndroidCamera2StateHolder.CAMERA_PREVIEW_READY);
             }
 
             @Override
             public void onConfigureFailed(CameraCaptureSession session) {
-                // TODO: Invoke a callback
                 Log.e(TAG, "Failed to configure the camera for capture");
+                // The state stays short of CAMERA_PREVIEW_READY, so later attempts to start the
+                // preview are refused.
+                failPreviewStart("Failed to configure the camera for capture");
             }
 
             @Override
@@ -854,6 +1836,25 @@ class AndroidCamera2AgentImpl extends CameraAgent {
             private long mLastAfFrameNumber = -1;
             private long mLastAeFrameNumber = -1;
 
+            @Override
+            public void onCaptureStarted(CameraCaptureSession session, CaptureRequest request,
+                                         long timestamp, long frameNumber) {
+                onRepeatingFrameStarted();
+                if (mAwaitingFirstFrame) {
+                    mAwaitingFirstFrame = false;
+                    getActionMetrics().endInterval(
+                            CameraActionMetrics.INTERVAL_OPEN_TO_FIRST_FRAME, mOpenBeginNs);
+                    mOpenBeginNs = 0;
+                    getActionMetrics().endInterval(
+                            CameraActionMetrics.INTERVAL_PREVIEW_START, mPreviewBeginNs);
+                    mPreviewBeginNs = 0;
+                    long now = SystemClock.elapsedRealtime();
+                    Log.i(TAG, "First preview frame " + (now - mOpenRequestTime) +
+                            " ms after opening the camera, " + (now - mSessionRequestTime) +
+                            " ms after requesting the capture session");
+                }
+            }
+
             @Override
             public void onCaptureProgressed(CameraCaptureSession session, CaptureRequest request,
                                             CaptureResult result) {
@@ -864,6 +1865,10 @@ class AndroidCamera2AgentImpl extends CameraAgent {
             public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request,
                                            TotalCaptureResult result) {
                 monitorControlStates(result);
+                if (mZslRing != null) {
+                    // With zero shutter lag enabled, every repeating request streams to the ring.
+                    mZslRing.addResult(result);
+                }
             }
 
             @Override
@@ -900,6 +1905,9 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                                 // changed recently to avoid infinite waiting during autoFocus()
                                 // when the algorithm has already either converged or failed to.
                                 if (mOneshotAfCallback != null) {
+                                    getActionMetrics().endInterval(
+                                            CameraActionMetrics.INTERVAL_AUTO_FOCUS, mAfBeginNs);
+                                    mAfBeginNs = 0;
                                     // A call to autoFocus() was just made to request a focus lock.
                                     // Notify the caller that the lens is now indefinitely fixed,
                                     // and report whether the image we're stuck with is in focus.
@@ -935,21 +1943,9 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                                 if (mOneshotCaptureCallback != null) {
                                     // A call to takePicture() was just made, and autoexposure
                                     // converged so it's time to initiate the capture!
-                                    mCaptureReader.setOnImageAvailableListener(
-                                            /*listener*/mOneshotCaptureCallback,
-                                            /*handler*/Camera2Handler.this);
-                                    try {
-                                        mSession.capture(
-                                                mPersistentSettings.createRequest(mCamera,
-                                                        CameraDevice.TEMPLATE_STILL_CAPTURE,
-                                                        mCaptureReader.getSurface()),
-                                                /*callback*/mOneshotCaptureCallback,
-                                                /*handler*/Camera2Handler.this);
-                                    } catch (CameraAccessException ex) {
-                                        Log.e(TAG, "Unable to initiate capture", ex);
-                                    } finally {
-                                        mOneshotCaptureCallback = null;
-                                    }
+                                    CaptureAvailableListener listener = mOneshotCaptureCallback;
+                                    endPrecapture(true);
+                                    captureStill(listener);
                                 }
                                 break;
                             }
@@ -980,18 +1976,20 @@ class AndroidCamera2AgentImpl extends CameraAgent {
         private final AndroidCamera2Capabilities mCapabilities;
         private CameraSettings mLastSettings;
         private boolean mShutterSoundEnabled;
+        private final ByteBufferPool mPictureBufferPool =
+                new ByteBufferPool(CAPTURE_READER_MAX_IMAGES);
 
         public AndroidCamera2ProxyImpl(
                 AndroidCamera2AgentImpl agent,
                 int cameraIndex,
                 CameraDevice camera,
                 CameraDeviceInfo.Characteristics characteristics,
-                CameraCharacteristics properties) {
+                AndroidCamera2Capabilities capabilities) {
             mCameraAgent = agent;
             mCameraIndex = cameraIndex;
             mCamera = camera;
             mCharacteristics = characteristics;
-            mCapabilities = new AndroidCamera2Capabilities(properties);
+            mCapabilities = capabilities;
             mLastSettings = null;
             mShutterSoundEnabled = true;
         }
@@ -1060,12 +2058,43 @@ class AndroidCamera2AgentImpl extends CameraAgent {
         public void addCallbackBuffer(final byte[] callbackBuffer) {}
 
         @Override
-        public void autoFocus(final Handler handler, final CameraAFCallback cb) {
+        public void setRecordingSurface(final Surface surface) {
+            try {
+                mDispatchThread.runJob(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCameraHandler.obtainMessage(CameraActions.SET_RECORDING_SURFACE, surface)
+                                .sendToTarget();
+                    }
+                });
+            } catch (RuntimeException ex) {
+                mCameraAgent.getCameraExceptionHandler().onDispatchThreadException(ex);
+            }
+        }
+
+        @Override
+        public void setAnalysisCallback(final Executor executor,
+                                        final CameraAnalysisCallback cb) {
             try {
                 mDispatchThread.runJob(new Runnable() {
                     @Override
                     public void run() {
-                        CameraAFCallback cbForward = null;
+                        mCameraHandler.obtainMessage(CameraActions.SET_ANALYSIS_CALLBACK,
+                                Pair.create(executor, cb)).sendToTarget();
+                    }
+                });
+            } catch (RuntimeException ex) {
+                mCameraAgent.getCameraExceptionHandler().onDispatchThreadException(ex);
+            }
+        }
+
+        @Override
+        public void autoFocus(final Handler handler, final CameraAFCallback cb) {
+            try {
+                mDispatchThread.runJob(new AutoFocusJob(handler, cb) {
+                    @Override
+                    public void run() {
+                        final CameraAFCallback cbForward;
                         if (cb != null) {
                             cbForward = new CameraAFCallback() {
                                 @Override
@@ -1079,16 +2108,19 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                                     });
                                 }
                             };
+                        } else {
+                            cbForward = null;
                         }
 
+                        mDispatchThread.waitForCameraHandler(CAMERA_OPERATION_TIMEOUT_MS);
                         mCameraState.waitForStates(AndroidCamera2StateHolder.CAMERA_PREVIEW_ACTIVE |
                                 AndroidCamera2StateHolder.CAMERA_FOCUS_LOCKED);
                         mCameraHandler.obtainMessage(CameraActions.AUTO_FOCUS, cbForward)
                                 .sendToTarget();
                     }
-                });
+                }, CameraActions.AUTO_FOCUS);
             } catch (RuntimeException ex) {
-                mCameraAgent.getCameraExceptionHandler().onDispatchThreadException(ex);
+                onDispatchFailed(ex, cb);
             }
         }
 
@@ -1131,11 +2163,37 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                                 CameraPictureCallback postview,
                                 final CameraPictureCallback jpeg) {
             // TODO: We never call raw or postview
+            requestPicture(handler, shutter, jpeg, null);
+        }
+
+        @Override
+        public void takePicture(final Handler handler,
+                                final CameraShutterCallback shutter,
+                                final CameraPictureBufferCallback jpeg) {
+            requestPicture(handler, shutter, null, jpeg);
+        }
+
+        /**
+         * Takes a picture, delivering the jpeg to whichever of the callbacks is given. It is
+         * copied once out of the capture {@link Image}, into a new array for {@code jpegArray}
+         * or into a recycled buffer for {@code jpegBuffer}.
+         */
+        private void requestPicture(final Handler handler,
+                                    final CameraShutterCallback shutter,
+                                    final CameraPictureCallback jpegArray,
+                                    final CameraPictureBufferCallback jpegBuffer) {
+            final boolean wantsJpeg = jpegArray != null || jpegBuffer != null;
             final CaptureAvailableListener picListener =
                     new CaptureAvailableListener() {
+                private long mShutterNs;
+
                 @Override
                 public void onCaptureStarted(CameraCaptureSession session, CaptureRequest request,
                                              long timestamp, long frameNumber) {
+                    if (wantsJpeg) {
+                        mShutterNs = getActionMetrics().beginInterval(
+                                CameraActionMetrics.INTERVAL_SHUTTER_TO_JPEG);
+                    }
                     if (shutter != null) {
                         handler.post(new Runnable() {
                             @Override
@@ -1151,14 +2209,39 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                 @Override
                 public void onImageAvailable(ImageReader reader) {
                     try (Image image = reader.acquireNextImage()) {
-                        if (jpeg != null) {
-                            ByteBuffer buffer = image.getPlanes()[0].getBuffer();
-                            final byte[] pixels = new byte[buffer.remaining()];
-                            buffer.get(pixels);
+                        // The image goes straight back to the reader, which may be closed
+                        // before the callback runs, so hand out a copy of it.
+                        ByteBuffer imageBuffer = image.getPlanes()[0].getBuffer();
+                        final long shutterNs = mShutterNs;
+                        if (jpegArray != null) {
+                            final byte[] pixels = new byte[imageBuffer.remaining()];
+                            imageBuffer.get(pixels);
+                            handler.post(new Runnable() {
+                                @Override
+                                public void run() {
+                                    getActionMetrics().endInterval(
+                                            CameraActionMetrics.INTERVAL_SHUTTER_TO_JPEG,
+                                            shutterNs);
+                                    jpegArray.onPictureTaken(pixels,
+                                            AndroidCamera2ProxyImpl.this);
+                                }});
+                        } else if (jpegBuffer != null) {
+                            final ByteBuffer buffer =
+                                    mPictureBufferPool.acquire(imageBuffer.remaining());
+                            buffer.put(imageBuffer);
+                            buffer.flip();
                             handler.post(new Runnable() {
                                 @Override
                                 public void run() {
-                                    jpeg.onPictureTaken(pixels, AndroidCamera2ProxyImpl.this);
+                                    getActionMetrics().endInterval(
+                                            CameraActionMetrics.INTERVAL_SHUTTER_TO_JPEG,
+                                            shutterNs);
+                                    try {
+                                        jpegBuffer.onPictureTaken(buffer,
+                                                AndroidCamera2ProxyImpl.this);
+                                    } finally {
+                                        mPictureBufferPool.release(buffer);
+                                    }
                                 }});
                         }
                     }
@@ -1168,10 +2251,85 @@ class AndroidCamera2AgentImpl extends CameraAgent {
                     @Override
                     public void run() {
                         // Wait until PREVIEW_ACTIVE or better
+                        mDispatchThread.waitForCameraHandler(CAMERA_OPERATION_TIMEOUT_MS);
                         mCameraState.waitForStates(
                                 ~(AndroidCamera2StateHolder.CAMERA_PREVIEW_ACTIVE - 1));
-                        mCameraHandler.obtainMessage(CameraActions.CAPTURE_PHOTO, picListener)
-                                .sendToTarget();
+                        mCameraHandler.obtainMessage(CameraActions.CAPTURE_PHOTO,
+                                picListener).sendToTarget();
+                    }
+                });
+            } catch (RuntimeException ex) {
+                onDispatchFailed(ex, jpegArray != null ? jpegArray : jpegBuffer);
+            }
+        }
+
+        @Override
+        public void captureBurst(Handler handler, int count, CameraShutterCallback shutter,
+                                 CameraBurstCallback cb) {
+            if (count < 1) {
+                throw new IllegalArgumentException("A burst needs at least one picture");
+            }
+            requestBurst(handler, count, shutter, cb);
+        }
+
+        @Override
+        public void startContinuousCapture(Handler handler, CameraShutterCallback shutter,
+                                           CameraBurstCallback cb) {
+            requestBurst(handler, 0, shutter, cb);
+        }
+
+        /**
+         * @param count The number of pictures to take, or 0 to take them until
+         *              {@link #stopContinuousCapture} is called.
+         */
+        private void requestBurst(final Handler handler, final int count,
+                                  final CameraShutterCallback shutter,
+                                  final CameraBurstCallback cb) {
+            final BurstCaptureListener burstListener = new BurstCaptureListener() {
+                @Override
+                protected void onShutter() {
+                    if (shutter != null) {
+                        handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (mShutterSoundEnabled) {
+                                    mNoisemaker.play(MediaActionSound.SHUTTER_CLICK);
+                                }
+                                shutter.onShutter(AndroidCamera2ProxyImpl.this);
+                            }});
+                    }
+                }
+
+                @Override
+                protected void onPictureTaken(final int index, Image image) {
+                    ByteBuffer buffer = image.getPlanes()[0].getBuffer();
+                    final byte[] pixels = new byte[buffer.remaining()];
+                    buffer.get(pixels);
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            cb.onPictureTaken(index, pixels, AndroidCamera2ProxyImpl.this);
+                        }});
+                }
+
+                @Override
+                protected void onBurstFinished(final int delivered) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            cb.onBurstFinished(delivered, AndroidCamera2ProxyImpl.this);
+                        }});
+                }};
+            try {
+                mDispatchThread.runJob(new Runnable() {
+                    @Override
+                    public void run() {
+                        // Wait until PREVIEW_ACTIVE or better
+                        mDispatchThread.waitForCameraHandler(CAMERA_OPERATION_TIMEOUT_MS);
+                        mCameraState.waitForStates(
+                                ~(AndroidCamera2StateHolder.CAMERA_PREVIEW_ACTIVE - 1));
+                        mCameraHandler.obtainMessage(CameraActions.CAPTURE_BURST, count, 0,
+                                burstListener).sendToTarget();
                     }
                 });
             } catch (RuntimeException ex) {
@@ -1261,7 +2419,7 @@ class AndroidCamera2AgentImpl extends CameraAgent {
         // Usage flow: openCamera() -> applySettings() -> setPreviewTexture() -> startPreview() ->
         //             autoFocus() -> takePicture()
         // States are mutually exclusive, but must be separate bits so that they can be used with
-        // the StateHolder#waitForStates() and StateHolder#waitToAvoidStates() methods.
+        // the CameraStateHolder#whenStates() and CameraStateHolder#whenAvoidingStates() methods.
         // Do not set the state to be a combination of these values!
         /* Camera states */
         /** No camera device is opened. */
@@ -1288,23 +2446,29 @@ class AndroidCamera2AgentImpl extends CameraAgent {
 
     private static class AndroidCamera2DeviceInfo implements CameraDeviceInfo {
         private final CameraManager mCameraManager;
+        private final CameraInfoCache mInfoCache;
         private final String[] mCameraIds;
         private final int mNumberOfCameras;
         private final int mFirstBackCameraId;
         private final int mFirstFrontCameraId;
 
-        public AndroidCamera2DeviceInfo(CameraManager cameraManager,
+        public AndroidCamera2DeviceInfo(CameraManager cameraManager, CameraInfoCache infoCache,
                                         String[] cameraIds, int numberOfCameras) {
             mCameraManager = cameraManager;
+            mInfoCache = infoCache;
             mCameraIds = cameraIds;
             mNumberOfCameras = numberOfCameras;
 
             int firstBackId = NO_DEVICE;
             int firstFrontId = NO_DEVICE;
             for (int id = 0; id < cameraIds.length; ++id) {
+                if (cameraIds[id] == null) {
+                    // Since disconnected.
+                    continue;
+                }
                 try {
-                    int lensDirection = cameraManager.getCameraCharacteristics(cameraIds[id])
-                            .get(CameraCharacteristics.LENS_FACING);
+                    int lensDirection =
+                            infoCache.getOrQuery(cameraManager, cameraIds[id]).lensFacing;
                     if (firstBackId == NO_DEVICE &&
                             lensDirection == CameraCharacteristics.LENS_FACING_BACK) {
                         firstBackId = id;
@@ -1325,8 +2489,8 @@ class AndroidCamera2AgentImpl extends CameraAgent {
         public Characteristics getCharacteristics(int cameraId) {
             String actualId = mCameraIds[cameraId];
             try {
-                CameraCharacteristics info = mCameraManager.getCameraCharacteristics(actualId);
-                return new AndroidCharacteristics2(info);
+                CameraInfoCache.Entry info = mInfoCache.getOrQuery(mCameraManager, actualId);
+                return new AndroidCharacteristics2(info.lensFacing, info.sensorOrientation);
             } catch (CameraAccessException ex) {
                 return null;
             }
@@ -1348,27 +2512,27 @@ class AndroidCamera2AgentImpl extends CameraAgent {
         }
 
         private static class AndroidCharacteristics2 extends Characteristics {
-            private CameraCharacteristics mCameraInfo;
+            private final int mLensFacing;
+            private final int mSensorOrientation;
 
-            AndroidCharacteristics2(CameraCharacteristics cameraInfo) {
-                mCameraInfo = cameraInfo;
+            AndroidCharacteristics2(int lensFacing, int sensorOrientation) {
+                mLensFacing = lensFacing;
+                mSensorOrientation = sensorOrientation;
             }
 
             @Override
             public boolean isFacingBack() {
-                return mCameraInfo.get(CameraCharacteristics.LENS_FACING)
-                        .equals(CameraCharacteristics.LENS_FACING_BACK);
+                return mLensFacing == CameraCharacteristics.LENS_FACING_BACK;
             }
 
             @Override
             public boolean isFacingFront() {
-                return mCameraInfo.get(CameraCharacteristics.LENS_FACING)
-                        .equals(CameraCharacteristics.LENS_FACING_FRONT);
+                return mLensFacing == CameraCharacteristics.LENS_FACING_FRONT;
             }
 
             @Override
             public int getSensorOrientation() {
-                return mCameraInfo.get(CameraCharacteristics.SENSOR_ORIENTATION);
+                return mSensorOrientation;
             }
 
             @Override
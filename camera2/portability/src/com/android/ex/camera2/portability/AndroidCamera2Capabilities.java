@@ -24,6 +24,7 @@ import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.MediaRecorder;
+import android.os.Build;
 import android.util.Range;
 import android.util.Rational;
 
@@ -38,6 +39,15 @@ import java.util.Arrays;
 public class AndroidCamera2Capabilities extends CameraCapabilities {
     private static Log.Tag TAG = new Log.Tag("AndCam2Capabs");
 
+    /**
+     * Restores capabilities previously derived from a camera's characteristics.
+     *
+     * @param src The source instance.
+     */
+    AndroidCamera2Capabilities(CameraCapabilities src) {
+        super(src);
+    }
+
     AndroidCamera2Capabilities(CameraCharacteristics p) {
         super(new Stringifier());
 
@@ -101,6 +111,23 @@ public class AndroidCamera2Capabilities extends CameraCapabilities {
             mSupportedFeatures.add(Feature.ZOOM);
         }
 
+        if (getZslInputFormat(p) != ImageFormat.UNKNOWN) {
+            mSupportedFeatures.add(Feature.ZERO_SHUTTER_LAG);
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M &&
+                hasCapability(p, REQUEST_AVAILABLE_CAPABILITIES_CONSTRAINED_HIGH_SPEED_VIDEO)) {
+            for (android.util.Size size : s.getHighSpeedVideoSizes()) {
+                for (Range<Integer> fpsRange : s.getHighSpeedVideoFpsRangesFor(size)) {
+                    mSupportedHighSpeedVideoConfigs.add(new int[] { size.getWidth(),
+                            size.getHeight(), fpsRange.getLower(), fpsRange.getUpper() });
+                }
+            }
+            if (!mSupportedHighSpeedVideoConfigs.isEmpty()) {
+                mSupportedFeatures.add(Feature.HIGH_SPEED_VIDEO);
+            }
+        }
+
         // TODO: Detect other features
     }
 
@@ -154,6 +181,43 @@ public class AndroidCamera2Capabilities extends CameraCapabilities {
         }
     }
 
+    private static boolean hasCapability(CameraCharacteristics p, int capability) {
+        int[] capabilities = p.get(REQUEST_AVAILABLE_CAPABILITIES);
+        if (capabilities != null) {
+            for (int available : capabilities) {
+                if (available == capability) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Determines the format in which frames are buffered for zero shutter lag
+     * capture, which requires the device to reprocess them into JPEGs.
+     *
+     * @param p The characteristics of the camera device.
+     * @return The input format to use, or {@link ImageFormat#UNKNOWN} if zero
+     *         shutter lag isn't supported.
+     */
+    static int getZslInputFormat(CameraCharacteristics p) {
+        int[] capabilities = p.get(REQUEST_AVAILABLE_CAPABILITIES);
+        boolean yuvReprocessing = false;
+        if (capabilities != null) {
+            for (int capability : capabilities) {
+                if (capability == REQUEST_AVAILABLE_CAPABILITIES_PRIVATE_REPROCESSING) {
+                    // Opaque buffers are cheapest, prefer them.
+                    return ImageFormat.PRIVATE;
+                }
+                if (capability == REQUEST_AVAILABLE_CAPABILITIES_YUV_REPROCESSING) {
+                    yuvReprocessing = true;
+                }
+            }
+        }
+        return yuvReprocessing ? ImageFormat.YUV_420_888 : ImageFormat.UNKNOWN;
+    }
+
     /**
      * Converts the API-related integer representation of the focus mode to the
      * abstract representation.
@@ -17,6 +17,7 @@
 package com.android.ex.camera2.portability;
 
 import android.annotation.TargetApi;
+import android.graphics.ImageFormat;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.hardware.Camera.AutoFocusCallback;
@@ -40,7 +41,6 @@ import com.android.ex.camera2.portability.debug.Log;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
-import java.util.StringTokenizer;
 
 /**
  * A class to implement {@link CameraAgent} of the Android camera framework.
@@ -228,6 +228,11 @@ class AndroidCameraAgentImpl extends CameraAgent {
     private static class ParametersCache {
         private Parameters mParameters;
         private Camera mCamera;
+        /**
+         * The settings last written to the cached parameters and accepted by
+         * the device, or {@code null} if they are unknown.
+         */
+        private CameraSettings mAppliedSettings;
 
         public ParametersCache(Camera camera) {
             mCamera = camera;
@@ -235,6 +240,19 @@ class AndroidCameraAgentImpl extends CameraAgent {
 
         public synchronized void invalidate() {
             mParameters = null;
+            mAppliedSettings = null;
+        }
+
+        public synchronized CameraSettings getAppliedSettings() {
+            return mAppliedSettings;
+        }
+
+        /**
+         * Records the settings the cached parameters now reflect, which the
+         * caller mustn't modify afterwards.
+         */
+        public synchronized void setAppliedSettings(CameraSettings settings) {
+            mAppliedSettings = settings;
         }
 
         /**
@@ -252,6 +270,21 @@ class AndroidCameraAgentImpl extends CameraAgent {
             }
             return mParameters;
         }
+
+        /**
+         * Retrieves a copy of the parameters which the caller owns, since the
+         * cached ones are only ever touched on the camera handler thread.
+         * Parameters can only be created by the camera, and the cached ones
+         * are always written back to it, so a fresh copy is fetched.
+         */
+        public Parameters getCopy() {
+            Parameters parameters = mCamera.getParameters();
+            if (parameters == null) {
+                Log.e(TAG, "Camera object returned null parameters!");
+                throw new IllegalStateException("camera.getParameters returned null");
+            }
+            return parameters;
+        }
     }
 
     /**
@@ -263,6 +296,9 @@ class AndroidCameraAgentImpl extends CameraAgent {
         private int mCameraId = -1;
         private ParametersCache mParameterCache;
         private int mCancelAfPending = 0;
+        private ManagedPreviewCallbackForward mManagedPreviewCallback;
+        /** When the pending autofocus started, or 0 if there is none. */
+        private long mAfBeginNs;
 
         private class CaptureCallbacks {
             public final ShutterCallback mShutter;
@@ -280,7 +316,7 @@ class AndroidCameraAgentImpl extends CameraAgent {
         }
 
         CameraHandler(CameraAgent agent, Looper looper) {
-            super(looper);
+            super(looper, agent.getActionMetrics());
             mAgent = agent;
         }
 
@@ -319,6 +355,26 @@ class AndroidCameraAgentImpl extends CameraAgent {
             }
         }
 
+        /**
+         * Stops the managed preview callback, if any, before the preview
+         * callback is replaced or the camera released.
+         */
+        private void stopManagedPreviewCallback() {
+            if (mManagedPreviewCallback != null) {
+                mManagedPreviewCallback.stop();
+                mManagedPreviewCallback = null;
+            }
+        }
+
+        /**
+         * Abandons timing the pending autofocus, which won't call back.
+         */
+        private void cancelAutoFocusInterval() {
+            getActionMetrics().cancelInterval(CameraActionMetrics.INTERVAL_AUTO_FOCUS,
+                    mAfBeginNs);
+            mAfBeginNs = 0;
+        }
+
         public void requestTakePicture(
                 final ShutterCallback shutter,
                 final PictureCallback raw,
@@ -394,6 +450,8 @@ class AndroidCameraAgentImpl extends CameraAgent {
                     }
 
                     case CameraActions.RELEASE: {
+                        stopManagedPreviewCallback();
+                        cancelAutoFocusInterval();
                         if (mCamera != null) {
                             mCamera.release();
                             mCameraState.setState(AndroidCameraStateHolder.CAMERA_UNOPENED);
@@ -418,6 +476,8 @@ class AndroidCameraAgentImpl extends CameraAgent {
                             break;
                         }
 
+                        // Another process may have changed the parameters meanwhile.
+                        mParameterCache.invalidate();
                         mCameraState.setState(AndroidCameraStateHolder.CAMERA_IDLE);
                         if (cbForward != null) {
                             cbForward.onCameraOpened(
@@ -435,6 +495,8 @@ class AndroidCameraAgentImpl extends CameraAgent {
 
                     case CameraActions.LOCK: {
                         mCamera.lock();
+                        // A media recorder may have changed the parameters meanwhile.
+                        mParameterCache.invalidate();
                         mCameraState.setState(AndroidCameraStateHolder.CAMERA_IDLE);
                         break;
                     }
@@ -457,7 +519,17 @@ class AndroidCameraAgentImpl extends CameraAgent {
                     case CameraActions.START_PREVIEW_ASYNC: {
                         final CameraStartPreviewCallbackForward cbForward =
                             (CameraStartPreviewCallbackForward) msg.obj;
-                        mCamera.startPreview();
+                        if (mManagedPreviewCallback != null) {
+                            // The preview size may have changed since the buffers were allocated.
+                            mManagedPreviewCallback.allocateBuffers(
+                                    mParameterCache.getBlocking());
+                        }
+                        try {
+                            mCamera.startPreview();
+                        } catch (RuntimeException ex) {
+                            notifyPreviewStartFailed(cbForward, "Unable to start preview");
+                            throw ex;
+                        }
                         if (cbForward != null) {
                             cbForward.onPreviewStarted();
                         }
@@ -471,15 +543,30 @@ class AndroidCameraAgentImpl extends CameraAgent {
                     }
 
                     case CameraActions.SET_PREVIEW_CALLBACK_WITH_BUFFER: {
+                        stopManagedPreviewCallback();
                         mCamera.setPreviewCallbackWithBuffer((PreviewCallback) msg.obj);
                         break;
                     }
 
                     case CameraActions.SET_ONE_SHOT_PREVIEW_CALLBACK: {
+                        stopManagedPreviewCallback();
                         mCamera.setOneShotPreviewCallback((PreviewCallback) msg.obj);
                         break;
                     }
 
+                    case CameraActions.SET_MANAGED_PREVIEW_CALLBACK: {
+                        stopManagedPreviewCallback();
+                        ManagedPreviewCallbackForward cbForward =
+                                (ManagedPreviewCallbackForward) msg.obj;
+                        if (cbForward != null) {
+                            cbForward.start(mCamera, mParameterCache.getBlocking());
+                            mManagedPreviewCallback = cbForward;
+                        } else {
+                            mCamera.setPreviewCallbackWithBuffer(null);
+                        }
+                        break;
+                    }
+
                     case CameraActions.ADD_CALLBACK_BUFFER: {
                         mCamera.addCallbackBuffer((byte[]) msg.obj);
                         break;
@@ -492,7 +579,21 @@ class AndroidCameraAgentImpl extends CameraAgent {
                             break; // ignore AF because a CANCEL_AF is queued after this
                         }
                         mCameraState.setState(AndroidCameraStateHolder.CAMERA_FOCUSING);
-                        mCamera.autoFocus((AutoFocusCallback) msg.obj);
+                        final AutoFocusCallback afCallback = (AutoFocusCallback) msg.obj;
+                        // A previous autofocus may never have called back.
+                        cancelAutoFocusInterval();
+                        mAfBeginNs = getActionMetrics().beginInterval(
+                                CameraActionMetrics.INTERVAL_AUTO_FOCUS);
+                        mCamera.autoFocus(new AutoFocusCallback() {
+                            @Override
+                            public void onAutoFocus(boolean focused, Camera camera) {
+                                getActionMetrics().endInterval(
+                                        CameraActionMetrics.INTERVAL_AUTO_FOCUS, mAfBeginNs);
+                                mAfBeginNs = 0;
+                                if (afCallback != null) {
+                                    afCallback.onAutoFocus(focused, camera);
+                                }
+                            }});
                         break;
                     }
 
@@ -500,6 +601,8 @@ class AndroidCameraAgentImpl extends CameraAgent {
                         // Ignore all AFs that were already queued until we see
                         // a CANCEL_AUTO_FOCUS_FINISH
                         mCancelAfPending++;
+                        // The cancelled autofocus doesn't call back.
+                        cancelAutoFocusInterval();
                         mCamera.cancelAutoFocus();
                         mCameraState.setState(AndroidCameraStateHolder.CAMERA_IDLE);
                         break;
@@ -562,10 +665,20 @@ class AndroidCameraAgentImpl extends CameraAgent {
 
                     case CameraActions.APPLY_SETTINGS: {
                         Parameters parameters = mParameterCache.getBlocking();
+                        // Already a private copy, see applySettingsHelper().
                         CameraSettings settings = (CameraSettings) msg.obj;
-                        applySettingsToParameters(settings, parameters);
-                        mCamera.setParameters(parameters);
-                        mParameterCache.invalidate();
+                        if (applySettingsToParameters(settings,
+                                mParameterCache.getAppliedSettings(), parameters)) {
+                            mCamera.setParameters(parameters);
+                        }
+                        if (hasSceneModeSideEffects(settings)) {
+                            // The scene mode may have overridden other parameters, so
+                            // neither the cached ones nor the applied settings can be
+                            // trusted anymore.
+                            mParameterCache.invalidate();
+                        } else {
+                            mParameterCache.setAppliedSettings(settings);
+                        }
                         break;
                     }
 
@@ -579,12 +692,12 @@ class AndroidCameraAgentImpl extends CameraAgent {
 
                     case CameraActions.GET_PARAMETERS: {
                         Parameters[] parametersHolder = (Parameters[]) msg.obj;
-                        Parameters parameters = mParameterCache.getBlocking();
-                        parametersHolder[0] = parameters;
+                        parametersHolder[0] = mParameterCache.getCopy();
                         break;
                     }
 
                     case CameraActions.SET_PREVIEW_CALLBACK: {
+                        stopManagedPreviewCallback();
                         mCamera.setPreviewCallback((PreviewCallback) msg.obj);
                         break;
                     }
@@ -601,12 +714,35 @@ class AndroidCameraAgentImpl extends CameraAgent {
 
                     case CameraActions.CAPTURE_PHOTO: {
                         mCameraState.setState(AndroidCameraStateHolder.CAMERA_CAPTURING);
-                        CaptureCallbacks captureCallbacks = (CaptureCallbacks) msg.obj;
+                        final CaptureCallbacks captureCallbacks = (CaptureCallbacks) msg.obj;
+                        if (captureCallbacks.mShutter == null || captureCallbacks.mJpeg == null) {
+                            // Can't tell when the shutter fires, or don't care for the JPEG.
+                            mCamera.takePicture(
+                                    captureCallbacks.mShutter,
+                                    captureCallbacks.mRaw,
+                                    captureCallbacks.mPostView,
+                                    captureCallbacks.mJpeg);
+                            break;
+                        }
+                        final long[] shutterNs = new long[1];
                         mCamera.takePicture(
-                                captureCallbacks.mShutter,
+                                new ShutterCallback() {
+                                    @Override
+                                    public void onShutter() {
+                                        shutterNs[0] = getActionMetrics().beginInterval(
+                                                CameraActionMetrics.INTERVAL_SHUTTER_TO_JPEG);
+                                        captureCallbacks.mShutter.onShutter();
+                                    }},
                                 captureCallbacks.mRaw,
                                 captureCallbacks.mPostView,
-                                captureCallbacks.mJpeg);
+                                new PictureCallback() {
+                                    @Override
+                                    public void onPictureTaken(byte[] data, Camera camera) {
+                                        getActionMetrics().endInterval(
+                                                CameraActionMetrics.INTERVAL_SHUTTER_TO_JPEG,
+                                                shutterNs[0]);
+                                        captureCallbacks.mJpeg.onPictureTaken(data, camera);
+                                    }});
                         break;
                     }
 
@@ -648,82 +784,171 @@ class AndroidCameraAgentImpl extends CameraAgent {
             }
         }
 
-        private void applySettingsToParameters(final CameraSettings settings,
-                final Parameters parameters) {
+        /**
+         * Writes the parameters corresponding to settings which differ from
+         * the ones applied last, so that tweaking a single setting doesn't
+         * rewrite all of them.
+         *
+         * @param settings The settings to apply.
+         * @param last The settings the parameters currently reflect, or
+         *             {@code null} to write all of them.
+         * @param parameters The parameters to write to.
+         * @return Whether any parameter was written.
+         */
+        private boolean applySettingsToParameters(final CameraSettings settings,
+                final CameraSettings last, final Parameters parameters) {
             final CameraCapabilities.Stringifier stringifier = mCapabilities.getStringifier();
+            boolean changed = false;
             Size photoSize = settings.getCurrentPhotoSize();
-            parameters.setPictureSize(photoSize.width(), photoSize.height());
+            if (last == null || !photoSize.equals(last.getCurrentPhotoSize())) {
+                parameters.setPictureSize(photoSize.width(), photoSize.height());
+                changed = true;
+            }
             Size previewSize = settings.getCurrentPreviewSize();
-            parameters.setPreviewSize(previewSize.width(), previewSize.height());
-            if (settings.getPreviewFrameRate() == -1) {
-                parameters.setPreviewFpsRange(settings.getPreviewFpsRangeMin(),
-                        settings.getPreviewFpsRangeMax());
-            } else {
-                parameters.setPreviewFrameRate(settings.getPreviewFrameRate());
+            if (last == null || !previewSize.equals(last.getCurrentPreviewSize())) {
+                parameters.setPreviewSize(previewSize.width(), previewSize.height());
+                changed = true;
+            }
+            if (last == null || settings.getPreviewFrameRate() != last.getPreviewFrameRate() ||
+                    settings.getPreviewFpsRangeMin() != last.getPreviewFpsRangeMin() ||
+                    settings.getPreviewFpsRangeMax() != last.getPreviewFpsRangeMax()) {
+                if (settings.getPreviewFrameRate() == -1) {
+                    parameters.setPreviewFpsRange(settings.getPreviewFpsRangeMin(),
+                            settings.getPreviewFpsRangeMax());
+                } else {
+                    parameters.setPreviewFrameRate(settings.getPreviewFrameRate());
+                }
+                changed = true;
             }
-            parameters.setPreviewFormat(settings.getCurrentPreviewFormat());
-            parameters.setJpegQuality(settings.getPhotoJpegCompressionQuality());
-            if (mCapabilities.supports(CameraCapabilities.Feature.ZOOM)) {
+            if (last == null ||
+                    settings.getCurrentPreviewFormat() != last.getCurrentPreviewFormat()) {
+                parameters.setPreviewFormat(settings.getCurrentPreviewFormat());
+                changed = true;
+            }
+            if (last == null || settings.getPhotoJpegCompressionQuality() !=
+                    last.getPhotoJpegCompressionQuality()) {
+                parameters.setJpegQuality(settings.getPhotoJpegCompressionQuality());
+                changed = true;
+            }
+            if (mCapabilities.supports(CameraCapabilities.Feature.ZOOM) && (last == null ||
+                    settings.getCurrentZoomRatio() != last.getCurrentZoomRatio())) {
                 parameters.setZoom(zoomRatioToIndex(settings.getCurrentZoomRatio(),
                         parameters.getZoomRatios()));
+                changed = true;
+            }
+            if (last == null || settings.getExposureCompensationIndex() !=
+                    last.getExposureCompensationIndex()) {
+                parameters.setExposureCompensation(settings.getExposureCompensationIndex());
+                changed = true;
             }
-            parameters.setExposureCompensation(settings.getExposureCompensationIndex());
-            if (mCapabilities.supports(CameraCapabilities.Feature.AUTO_EXPOSURE_LOCK)) {
+            if (mCapabilities.supports(CameraCapabilities.Feature.AUTO_EXPOSURE_LOCK) &&
+                    (last == null ||
+                            settings.isAutoExposureLocked() != last.isAutoExposureLocked())) {
                 parameters.setAutoExposureLock(settings.isAutoExposureLocked());
+                changed = true;
             }
-            parameters.setFocusMode(stringifier.stringify(settings.getCurrentFocusMode()));
-            if (mCapabilities.supports(CameraCapabilities.Feature.AUTO_WHITE_BALANCE_LOCK)) {
+            if (last == null || settings.getCurrentFocusMode() != last.getCurrentFocusMode()) {
+                parameters.setFocusMode(stringifier.stringify(settings.getCurrentFocusMode()));
+                changed = true;
+            }
+            if (mCapabilities.supports(CameraCapabilities.Feature.AUTO_WHITE_BALANCE_LOCK) &&
+                    (last == null || settings.isAutoWhiteBalanceLocked() !=
+                            last.isAutoWhiteBalanceLocked())) {
                 parameters.setAutoWhiteBalanceLock(settings.isAutoWhiteBalanceLocked());
+                changed = true;
             }
-            if (settings.getWhiteBalance() != null) {
+            if (settings.getWhiteBalance() != null &&
+                    (last == null || settings.getWhiteBalance() != last.getWhiteBalance())) {
                 parameters.setWhiteBalance(stringifier.stringify(settings.getWhiteBalance()));
+                changed = true;
             }
-            if (mCapabilities.supports(CameraCapabilities.Feature.FOCUS_AREA)) {
+            if (mCapabilities.supports(CameraCapabilities.Feature.FOCUS_AREA) &&
+                    (last == null || !settings.getFocusAreas().equals(last.getFocusAreas()))) {
                 if (settings.getFocusAreas().size() != 0) {
                     parameters.setFocusAreas(settings.getFocusAreas());
                 } else {
                     parameters.setFocusAreas(null);
                 }
+                changed = true;
             }
-            if (mCapabilities.supports(CameraCapabilities.Feature.METERING_AREA)) {
+            if (mCapabilities.supports(CameraCapabilities.Feature.METERING_AREA) &&
+                    (last == null ||
+                            !settings.getMeteringAreas().equals(last.getMeteringAreas()))) {
                 if (settings.getMeteringAreas().size() != 0) {
                     parameters.setMeteringAreas(settings.getMeteringAreas());
                 } else {
                     parameters.setMeteringAreas(null);
                 }
+                changed = true;
             }
-            if (settings.getCurrentFlashMode() != CameraCapabilities.FlashMode.NO_FLASH) {
+            if (settings.getCurrentFlashMode() != CameraCapabilities.FlashMode.NO_FLASH &&
+                    (last == null || settings.getCurrentFlashMode() != last.getCurrentFlashMode())) {
                 parameters.setFlashMode(stringifier.stringify(settings.getCurrentFlashMode()));
+                changed = true;
             }
             if (settings.getCurrentSceneMode() != CameraCapabilities.SceneMode.NO_SCENE_MODE) {
-                if (settings.getCurrentSceneMode() != null) {
+                if (settings.getCurrentSceneMode() != null && (last == null ||
+                        settings.getCurrentSceneMode() != last.getCurrentSceneMode())) {
                     parameters
                             .setSceneMode(stringifier.stringify(settings.getCurrentSceneMode()));
+                    changed = true;
                 }
             }
-            parameters.setRecordingHint(settings.isRecordingHintEnabled());
+            if (last == null ||
+                    settings.isRecordingHintEnabled() != last.isRecordingHintEnabled()) {
+                parameters.setRecordingHint(settings.isRecordingHintEnabled());
+                changed = true;
+            }
             Size jpegThumbSize = settings.getExifThumbnailSize();
-            if (jpegThumbSize != null) {
+            if (jpegThumbSize != null &&
+                    (last == null || !jpegThumbSize.equals(last.getExifThumbnailSize()))) {
                 parameters.setJpegThumbnailSize(jpegThumbSize.width(), jpegThumbSize.height());
+                changed = true;
+            }
+            if (last == null || settings.getCurrentPhotoFormat() != last.getCurrentPhotoFormat()) {
+                parameters.setPictureFormat(settings.getCurrentPhotoFormat());
+                changed = true;
             }
-            parameters.setPictureFormat(settings.getCurrentPhotoFormat());
 
             CameraSettings.GpsData gpsData = settings.getGpsData();
-            if (gpsData == null) {
-                parameters.removeGpsData();
-            } else {
-                parameters.setGpsTimestamp(gpsData.timeStamp);
-                if (gpsData.processingMethod != null) {
-                    // It's a hack since we always use GPS time stamp but does
-                    // not use other fields sometimes. Setting processing
-                    // method to null means the other fields should not be used.
-                    parameters.setGpsAltitude(gpsData.altitude);
-                    parameters.setGpsLatitude(gpsData.latitude);
-                    parameters.setGpsLongitude(gpsData.longitude);
-                    parameters.setGpsProcessingMethod(gpsData.processingMethod);
+            if (last == null || !isSameGpsData(gpsData, last.getGpsData())) {
+                if (gpsData == null) {
+                    parameters.removeGpsData();
+                } else {
+                    parameters.setGpsTimestamp(gpsData.timeStamp);
+                    if (gpsData.processingMethod != null) {
+                        // It's a hack since we always use GPS time stamp but does
+                        // not use other fields sometimes. Setting processing
+                        // method to null means the other fields should not be used.
+                        parameters.setGpsAltitude(gpsData.altitude);
+                        parameters.setGpsLatitude(gpsData.latitude);
+                        parameters.setGpsLongitude(gpsData.longitude);
+                        parameters.setGpsProcessingMethod(gpsData.processingMethod);
+                    }
                 }
+                changed = true;
             }
+            return changed;
+        }
 
+        /**
+         * Scene modes other than auto may override other parameters, such as
+         * the flash, focus and white balance modes, when they are applied.
+         */
+        private boolean hasSceneModeSideEffects(CameraSettings settings) {
+            CameraCapabilities.SceneMode sceneMode = settings.getCurrentSceneMode();
+            return sceneMode != null && sceneMode != CameraCapabilities.SceneMode.NO_SCENE_MODE &&
+                    sceneMode != CameraCapabilities.SceneMode.AUTO;
+        }
+
+        private boolean isSameGpsData(CameraSettings.GpsData a, CameraSettings.GpsData b) {
+            if (a == null || b == null) {
+                return a == b;
+            }
+            return a.latitude == b.latitude && a.longitude == b.longitude &&
+                    a.altitude == b.altitude && a.timeStamp == b.timeStamp &&
+                    (a.processingMethod == null ? b.processingMethod == null :
+                            a.processingMethod.equals(b.processingMethod));
         }
 
         /**
@@ -846,6 +1071,20 @@ class AndroidCameraAgentImpl extends CameraAgent {
             });
         }
 
+        @Override
+        public void setPreviewDataCallbackWithManagedBuffers(
+                final Handler handler, final CameraPreviewDataCallback cb) {
+            mDispatchThread.runJob(new Runnable() {
+                @Override
+                public void run() {
+                    mCameraHandler.obtainMessage(CameraActions.SET_MANAGED_PREVIEW_CALLBACK,
+                            ManagedPreviewCallbackForward.getNewInstance(handler,
+                                    mCameraHandler, AndroidCameraProxyImpl.this, cb))
+                            .sendToTarget();
+                }
+            });
+        }
+
         @Override
         public void autoFocus(final Handler handler, final CameraAFCallback cb) {
             final AutoFocusCallback afCallback = new AutoFocusCallback() {
@@ -864,18 +1103,27 @@ class AndroidCameraAgentImpl extends CameraAgent {
                     });
                 }
             };
-            mDispatchThread.runJob(new Runnable() {
-                @Override
-                public void run() {
-                    // Don't bother to wait since camera is in bad state.
-                    if (getCameraState().isInvalid()) {
-                        return;
+            try {
+                mDispatchThread.runJob(new AutoFocusJob(handler, cb) {
+                    @Override
+                    public void run() {
+                        // Don't bother to wait since camera is in bad state.
+                        if (getCameraState().isInvalid()) {
+                            return;
+                        }
+                        mDispatchThread.waitForCameraHandler(CAMERA_OPERATION_TIMEOUT_MS);
+                        // It may have been invalidated by the messages waited for.
+                        if (getCameraState().isInvalid()) {
+                            return;
+                        }
+                        mCameraState.waitForStates(AndroidCameraStateHolder.CAMERA_IDLE);
+                        mCameraHandler.obtainMessage(CameraActions.AUTO_FOCUS,
+                                afCallback).sendToTarget();
                     }
-                    mCameraState.waitForStates(AndroidCameraStateHolder.CAMERA_IDLE);
-                    mCameraHandler.obtainMessage(CameraActions.AUTO_FOCUS, afCallback)
-                            .sendToTarget();
-                }
-            });
+                }, CameraActions.AUTO_FOCUS);
+            } catch (final RuntimeException ex) {
+                onDispatchFailed(ex, cb);
+            }
         }
 
         @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
@@ -897,6 +1145,30 @@ class AndroidCameraAgentImpl extends CameraAgent {
             }
         }
 
+        @Override
+        public void captureBurst(final Handler handler, int count,
+                CameraShutterCallback shutter, final CameraBurstCallback cb) {
+            // The framework API only takes one picture at a time, and stops the preview to do so.
+            Log.w(TAG, "Burst capture is not supported on API 1");
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    cb.onBurstFinished(0, AndroidCameraProxyImpl.this);
+                }
+            });
+        }
+
+        @Override
+        public void startContinuousCapture(Handler handler, CameraShutterCallback shutter,
+                CameraBurstCallback cb) {
+            captureBurst(handler, 0, shutter, cb);
+        }
+
+        @Override
+        public void stopContinuousCapture() {
+            // Nothing is ever started.
+        }
+
         @Override
         public void takePicture(
                 final Handler handler, final CameraShutterCallback shutter,
@@ -927,20 +1199,26 @@ class AndroidCameraAgentImpl extends CameraAgent {
                         if (getCameraState().isInvalid()) {
                             return;
                         }
+                        mDispatchThread.waitForCameraHandler(CAMERA_OPERATION_TIMEOUT_MS);
+                        // It may have been invalidated by the messages waited for.
+                        if (getCameraState().isInvalid()) {
+                            return;
+                        }
                         mCameraState.waitForStates(AndroidCameraStateHolder.CAMERA_IDLE |
                                 AndroidCameraStateHolder.CAMERA_UNLOCKED);
-                        mCameraHandler.requestTakePicture(ShutterCallbackForward
-                                        .getNewInstance(handler, AndroidCameraProxyImpl.this, shutter),
-                                PictureCallbackForward
-                                        .getNewInstance(handler, AndroidCameraProxyImpl.this, raw),
-                                PictureCallbackForward
-                                        .getNewInstance(handler, AndroidCameraProxyImpl.this, post),
+                        mCameraHandler.requestTakePicture(
+                                ShutterCallbackForward.getNewInstance(
+                                        handler, AndroidCameraProxyImpl.this, shutter),
+                                PictureCallbackForward.getNewInstance(
+                                        handler, AndroidCameraProxyImpl.this, raw),
+                                PictureCallbackForward.getNewInstance(
+                                        handler, AndroidCameraProxyImpl.this, post),
                                 jpegCallback
                         );
                     }
                 });
             } catch (final RuntimeException ex) {
-                mCameraAgent.getCameraExceptionHandler().onDispatchThreadException(ex);
+                onDispatchFailed(ex, jpeg);
             }
         }
 
@@ -989,10 +1267,11 @@ class AndroidCameraAgentImpl extends CameraAgent {
                 mDispatchThread.runJob(new Runnable() {
                     @Override
                     public void run() {
+                        mDispatchThread.waitForCameraHandler(CAMERA_OPERATION_TIMEOUT_MS);
                         mCameraState.waitForStates(AndroidCameraStateHolder.CAMERA_IDLE |
                                 AndroidCameraStateHolder.CAMERA_UNLOCKED);
-                        mCameraHandler.obtainMessage(CameraActions.SET_PARAMETERS, flattenedParameters)
-                                .sendToTarget();
+                        mCameraHandler.obtainMessage(CameraActions.SET_PARAMETERS,
+                                flattenedParameters).sendToTarget();
                     }
                 });
             } catch (final RuntimeException ex) {
@@ -1013,7 +1292,7 @@ class AndroidCameraAgentImpl extends CameraAgent {
                                 CameraActions.GET_PARAMETERS, parametersHolder).sendToTarget();
                         mCameraHandler.post(bundle.mUnlockRunnable);
                     }
-                }, bundle.mWaitLock, CAMERA_OPERATION_TIMEOUT_MS, "get parameters");
+                }, bundle, CAMERA_OPERATION_TIMEOUT_MS, "get parameters");
             } catch (final RuntimeException ex) {
                 mCameraAgent.getCameraExceptionHandler().onDispatchThreadException(ex);
             }
@@ -1035,14 +1314,7 @@ class AndroidCameraAgentImpl extends CameraAgent {
         public String dumpDeviceSettings() {
             Parameters parameters = getParameters();
             if (parameters != null) {
-                String flattened = getParameters().flatten();
-                StringTokenizer tokenizer = new StringTokenizer(flattened, ";");
-                String dumpedSettings = new String();
-                while (tokenizer.hasMoreElements()) {
-                    dumpedSettings += tokenizer.nextToken() + '\n';
-                }
-
-                return dumpedSettings;
+                return parameters.flatten().replace(';', '\n') + '\n';
             } else {
                 return "[no parameters retrieved]";
             }
@@ -1300,6 +1572,162 @@ class AndroidCameraAgentImpl extends CameraAgent {
         }
     }
 
+    /**
+     * A helper class to forward PreviewCallback to another thread, recycling
+     * a pool of preview buffers so that no frame allocates anything.
+     *
+     * <p>The camera and the pool are only accessed on the camera handler's
+     * thread, which frames are delivered on and buffers returned to.</p>
+     */
+    private static class ManagedPreviewCallbackForward implements PreviewCallback {
+        /** One buffer being filled, one being delivered, and one to spare. */
+        private static final int BUFFER_COUNT = 3;
+
+        private final Handler mHandler;
+        private final Handler mCameraHandler;
+        private final CameraPreviewDataCallback mCallback;
+        private final CameraProxy mCamera;
+        private final FrameDelivery[] mDeliveries = new FrameDelivery[BUFFER_COUNT];
+
+        private Camera mDevice;
+        /** The size of the current buffers, or 0 if they aren't allocated. */
+        private int mBufferSize;
+        private boolean mStarted;
+
+        /**
+         * Returns a new instance of {@link ManagedPreviewCallbackForward}.
+         *
+         * @param handler       The handler in which the callback will be invoked in.
+         * @param cameraHandler The handler of the camera, which recycles the buffers.
+         * @param camera        The {@link CameraProxy} which the callback is from.
+         * @param cb            The callback to be invoked.
+         * @return              The instance of the {@link ManagedPreviewCallbackForward},
+         *                      or null if any parameters is null.
+         */
+        public static ManagedPreviewCallbackForward getNewInstance(Handler handler,
+                Handler cameraHandler, CameraProxy camera, CameraPreviewDataCallback cb) {
+            if (handler == null || camera == null || cb == null) {
+                return null;
+            }
+            return new ManagedPreviewCallbackForward(handler, cameraHandler, camera, cb);
+        }
+
+        private ManagedPreviewCallbackForward(Handler h, Handler cameraHandler,
+                CameraProxy camera, CameraPreviewDataCallback cb) {
+            mHandler = h;
+            mCameraHandler = cameraHandler;
+            mCamera = camera;
+            mCallback = cb;
+            for (int i = 0; i < BUFFER_COUNT; ++i) {
+                mDeliveries[i] = new FrameDelivery();
+            }
+        }
+
+        void start(Camera device, Parameters params) {
+            mDevice = device;
+            mStarted = true;
+            device.setPreviewCallbackWithBuffer(this);
+            allocateBuffers(params);
+        }
+
+        /**
+         * Stops the callbacks. Buffers still being delivered are dropped once
+         * the callback returns.
+         */
+        void stop() {
+            mStarted = false;
+            mDevice.setPreviewCallbackWithBuffer(null);
+            mDevice = null;
+        }
+
+        /**
+         * Replaces the buffers unless they already fit the preview size and
+         * format of the given parameters.
+         */
+        void allocateBuffers(Parameters params) {
+            Camera.Size size = params.getPreviewSize();
+            int bufferSize = getPreviewBufferSize(size.width, size.height,
+                    params.getPreviewFormat());
+            if (bufferSize == mBufferSize) {
+                return;
+            }
+            // Buffers of the previous size are dropped as they come back.
+            mBufferSize = bufferSize;
+            for (int i = 0; i < BUFFER_COUNT; ++i) {
+                mDevice.addCallbackBuffer(new byte[bufferSize]);
+            }
+        }
+
+        @Override
+        public void onPreviewFrame(byte[] data, Camera camera) {
+            if (!mStarted) {
+                return;
+            }
+            if (data == null) {
+                // The camera discarded a buffer too small for its current preview size.
+                Log.w(TAG, "Preview buffer too small, reallocating");
+                allocateBuffers(camera.getParameters());
+                return;
+            }
+            for (FrameDelivery delivery : mDeliveries) {
+                if (delivery.mData == null) {
+                    delivery.mData = data;
+                    mHandler.post(delivery);
+                    return;
+                }
+            }
+            // Only happens while old buffers are still out after a reallocation.
+            recycle(data);
+        }
+
+        private void recycle(byte[] data) {
+            if (mStarted && data.length == mBufferSize) {
+                mDevice.addCallbackBuffer(data);
+            }
+        }
+
+        /** Delivers a frame, then returns its buffer to the camera. */
+        private class FrameDelivery implements Runnable {
+            private byte[] mData;
+
+            private final Runnable mRecycle = new Runnable() {
+                @Override
+                public void run() {
+                    byte[] data = mData;
+                    mData = null;
+                    recycle(data);
+                }};
+
+            @Override
+            public void run() {
+                try {
+                    mCallback.onPreviewFrame(mData, mCamera);
+                } finally {
+                    mCameraHandler.post(mRecycle);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The size of a preview frame as laid out by
+     *         {@link Camera#addCallbackBuffer}, or of an NV21 frame if the
+     *         format is unknown.
+     */
+    private static int getPreviewBufferSize(int width, int height, int format) {
+        if (format == ImageFormat.YV12) {
+            // Each plane's rows are aligned to 16 bytes.
+            int yStride = (width + 15) / 16 * 16;
+            int uvStride = (yStride / 2 + 15) / 16 * 16;
+            return yStride * height + uvStride * (height / 2) * 2;
+        }
+        int bitsPerPixel = ImageFormat.getBitsPerPixel(format);
+        if (bitsPerPixel <= 0) {
+            bitsPerPixel = ImageFormat.getBitsPerPixel(ImageFormat.NV21);
+        }
+        return width * height * bitsPerPixel / 8;
+    }
+
     private static class FaceDetectionCallbackForward implements FaceDetectionListener {
         private final Handler mHandler;
         private final CameraFaceDetectionCallback mCallback;
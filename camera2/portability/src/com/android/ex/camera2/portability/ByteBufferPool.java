@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.camera2.portability;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recycles the direct buffers pictures are handed out in, so that taking
+ * pictures doesn't allocate multi-megabyte arrays for the GC to reclaim.
+ *
+ * <p>Buffers are acquired on the camera handler thread and released from the
+ * callers' handlers, so this class is thread-safe.</p>
+ */
+class ByteBufferPool {
+    /** Capacities are rounded up to this, so that sizes varying a little reuse buffers. */
+    private static final int CAPACITY_GRANULARITY = 256 * 1024;
+
+    private final int mMaxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> mFreeBuffers =
+            new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger mFreeCount = new AtomicInteger();
+
+    /**
+     * @param maxPooled How many released buffers to keep around at most.
+     */
+    ByteBufferPool(int maxPooled) {
+        mMaxPooled = maxPooled;
+    }
+
+    /**
+     * @return A buffer with its position at 0 and its limit at {@code size}.
+     */
+    ByteBuffer acquire(int size) {
+        ByteBuffer buffer;
+        while ((buffer = mFreeBuffers.poll()) != null) {
+            mFreeCount.decrementAndGet();
+            if (buffer.capacity() >= size) {
+                buffer.clear();
+                buffer.limit(size);
+                return buffer;
+            }
+            // Too small for pictures this large, let it go.
+        }
+        int capacity = (size + CAPACITY_GRANULARITY - 1) / CAPACITY_GRANULARITY *
+                CAPACITY_GRANULARITY;
+        buffer = ByteBuffer.allocateDirect(capacity);
+        buffer.limit(size);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire}, which mustn't be used
+     * afterwards.
+     */
+    void release(ByteBuffer buffer) {
+        if (mFreeCount.incrementAndGet() <= mMaxPooled) {
+            mFreeBuffers.offer(buffer);
+        } else {
+            mFreeCount.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.camera2.portability;
+
+import android.os.Build;
+import android.os.Trace;
+import android.util.SparseArray;
+
+/**
+ * Latency histograms of the work done by a {@link CameraAgent}, which apps
+ * can poll or export through {@link CameraAgent#getActionMetrics()}.
+ *
+ * <p>Every {@link CameraActions} message is timed from being sent to the
+ * camera handler to being handled ({@link #PHASE_QUEUED}) and while being
+ * handled ({@link #PHASE_HANDLED}). Operations which span several messages
+ * and callbacks, such as focusing, are timed as intervals wherever the
+ * implementation is able to observe them. Both are also emitted as systrace
+ * sections.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ */
+public class CameraActionMetrics {
+    /** From an action being sent to the camera handler to it being handled. */
+    public static final int PHASE_QUEUED = 0;
+    /** The camera handler handling an action. */
+    public static final int PHASE_HANDLED = 1;
+    private static final int PHASE_COUNT = 2;
+
+    /** From requesting a camera to be opened to its first preview frame. */
+    public static final int INTERVAL_OPEN_TO_FIRST_FRAME = 0;
+    /** From starting a preview to its first frame. */
+    public static final int INTERVAL_PREVIEW_START = 1;
+    /** From triggering an autofocus scan to the callback reporting the result. */
+    public static final int INTERVAL_AUTO_FOCUS = 2;
+    /** From triggering autoexposure precapture to its convergence. */
+    public static final int INTERVAL_AE_PRECAPTURE = 3;
+    /** From the shutter of a picture to the delivery of its JPEG. */
+    public static final int INTERVAL_SHUTTER_TO_JPEG = 4;
+    private static final String[] INTERVAL_NAMES = {
+            "OPEN_TO_FIRST_FRAME",
+            "PREVIEW_START",
+            "AUTO_FOCUS",
+            "AE_PRECAPTURE",
+            "SHUTTER_TO_JPEG",
+    };
+
+    /** Histograms of the actions' phases, keyed by action and phase. */
+    private final SparseArray<Histogram> mActionHistograms = new SparseArray<Histogram>();
+    private final Histogram[] mIntervalHistograms = new Histogram[INTERVAL_NAMES.length];
+
+    CameraActionMetrics() {
+        for (int i = 0; i < mIntervalHistograms.length; ++i) {
+            mIntervalHistograms[i] = new Histogram();
+        }
+    }
+
+    /**
+     * A histogram of durations, in buckets whose bounds grow by powers of 2
+     * from 1 us to about 8 s.
+     */
+    public static final class Histogram {
+        private static final int BUCKET_COUNT = 24;
+
+        private final long[] mBucketCounts = new long[BUCKET_COUNT];
+        private long mCount;
+        private long mTotalNs;
+        private long mMaxNs;
+
+        private Histogram() {
+        }
+
+        private Histogram(Histogram src) {
+            System.arraycopy(src.mBucketCounts, 0, mBucketCounts, 0, BUCKET_COUNT);
+            mCount = src.mCount;
+            mTotalNs = src.mTotalNs;
+            mMaxNs = src.mMaxNs;
+        }
+
+        private void record(long durationNs) {
+            long micros = Math.max(durationNs / 1000, 0);
+            // Bucket i holds durations below 2^i us, the last one all the longer ones.
+            int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKET_COUNT - 1);
+            ++mBucketCounts[bucket];
+            ++mCount;
+            mTotalNs += durationNs;
+            mMaxNs = Math.max(mMaxNs, durationNs);
+        }
+
+        /**
+         * @return How many durations were recorded.
+         */
+        public long getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return The mean duration in milliseconds, or 0 if there is none.
+         */
+        public double getMeanMillis() {
+            return mCount == 0 ? 0 : mTotalNs / 1e6 / mCount;
+        }
+
+        /**
+         * @return The longest duration in milliseconds.
+         */
+        public double getMaxMillis() {
+            return mMaxNs / 1e6;
+        }
+
+        /**
+         * @param percentile Between 0 and 100.
+         * @return An upper bound of the given percentile of the durations in
+         *         milliseconds, or 0 if there is none.
+         */
+        public double getPercentileMillis(double percentile) {
+            long rank = (long) Math.ceil(mCount * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT - 1; ++i) {
+                seen += mBucketCounts[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min((1L << i) / 1e3, getMaxMillis());
+                }
+            }
+            return getMaxMillis();
+        }
+
+        /**
+         * @return A copy of the bucket counts. Bucket {@code i} counts the
+         *         durations shorter than {@code 2^i} microseconds and not
+         *         counted by the previous ones, the last bucket all the others.
+         */
+        public long[] getBucketCounts() {
+            return mBucketCounts.clone();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("n=%d mean=%.2fms p50<=%.2fms p90<=%.2fms max=%.2fms", mCount,
+                    getMeanMillis(), getPercentileMillis(50), getPercentileMillis(90),
+                    getMaxMillis());
+        }
+    }
+
+    /**
+     * @param action One of the {@link CameraActions}.
+     * @param phase {@link #PHASE_QUEUED} or {@link #PHASE_HANDLED}.
+     * @return A snapshot of the durations of the phase of the action, or
+     *         {@code null} if none was recorded.
+     */
+    public synchronized Histogram getActionHistogram(int action, int phase) {
+        Histogram histogram = mActionHistograms.get(action * PHASE_COUNT + phase);
+        return histogram != null ? new Histogram(histogram) : null;
+    }
+
+    /**
+     * @param interval One of the {@code INTERVAL_*} constants.
+     * @return A snapshot of the durations of the interval.
+     */
+    public synchronized Histogram getIntervalHistogram(int interval) {
+        return new Histogram(mIntervalHistograms[interval]);
+    }
+
+    /**
+     * Forgets everything recorded so far.
+     */
+    public synchronized void reset() {
+        mActionHistograms.clear();
+        for (int i = 0; i < mIntervalHistograms.length; ++i) {
+            mIntervalHistograms[i] = new Histogram();
+        }
+    }
+
+    /**
+     * @return A summary of all the histograms, one per line.
+     */
+    public synchronized String dump() {
+        StringBuilder dump = new StringBuilder();
+        for (int i = 0; i < mIntervalHistograms.length; ++i) {
+            if (mIntervalHistograms[i].getCount() > 0) {
+                dump.append(INTERVAL_NAMES[i]).append(": ").append(mIntervalHistograms[i])
+                        .append('\n');
+            }
+        }
+        for (int i = 0; i < mActionHistograms.size(); ++i) {
+            int key = mActionHistograms.keyAt(i);
+            dump.append(CameraActions.stringify(key / PHASE_COUNT))
+                    .append(key % PHASE_COUNT == PHASE_QUEUED ? " queued: " : " handled: ")
+                    .append(mActionHistograms.valueAt(i)).append('\n');
+        }
+        return dump.toString();
+    }
+
+    synchronized void recordAction(int action, int phase, long durationNs) {
+        int key = action * PHASE_COUNT + phase;
+        Histogram histogram = mActionHistograms.get(key);
+        if (histogram == null) {
+            histogram = new Histogram();
+            mActionHistograms.put(key, histogram);
+        }
+        histogram.record(durationNs);
+    }
+
+    /**
+     * Starts timing an interval, which is ended by passing the returned time
+     * to {@link #endInterval}.
+     *
+     * @return The start time, in {@link System#nanoTime()} terms.
+     */
+    long beginInterval(int interval) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection(INTERVAL_NAMES[interval], interval);
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Ends an interval started with {@link #beginInterval}.
+     *
+     * @param beginNs The time returned by {@link #beginInterval}, or 0 if the
+     *                interval wasn't started, in which case nothing happens.
+     */
+    void endInterval(int interval, long beginNs) {
+        if (beginNs == 0) {
+            return;
+        }
+        long durationNs = System.nanoTime() - beginNs;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.endAsyncSection(INTERVAL_NAMES[interval], interval);
+        }
+        synchronized (this) {
+            mIntervalHistograms[interval].record(durationNs);
+        }
+    }
+
+    /**
+     * Abandons an interval started with {@link #beginInterval} which won't
+     * complete, e.g. because the operation was cancelled, without recording it.
+     *
+     * @param beginNs The time returned by {@link #beginInterval}, or 0 if the
+     *                interval wasn't started, in which case nothing happens.
+     */
+    void cancelInterval(int interval, long beginNs) {
+        if (beginNs == 0) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.endAsyncSection(INTERVAL_NAMES[interval], interval);
+        }
+    }
+}
@@ -23,6 +23,7 @@ class CameraActions {
     public static final int RECONNECT =   3;
     public static final int UNLOCK =      4;
     public static final int LOCK =        5;
+    public static final int PREWARM =     6;
     // Preview
     public static final int SET_PREVIEW_TEXTURE_ASYNC =        101;
     public static final int START_PREVIEW_ASYNC =              102;
@@ -32,6 +33,9 @@ class CameraActions {
     public static final int SET_PREVIEW_DISPLAY_ASYNC =        106;
     public static final int SET_PREVIEW_CALLBACK =             107;
     public static final int SET_ONE_SHOT_PREVIEW_CALLBACK =    108;
+    public static final int SET_ANALYSIS_CALLBACK =            109;
+    public static final int SET_MANAGED_PREVIEW_CALLBACK =     110;
+    public static final int SET_RECORDING_SURFACE =            111;
     // Parameters
     public static final int SET_PARAMETERS =     201;
     public static final int GET_PARAMETERS =     202;
@@ -53,6 +57,8 @@ class CameraActions {
     public static final int SET_JPEG_ORIENTATION = 503;
     // Capture
     public static final int CAPTURE_PHOTO = 601;
+    public static final int CAPTURE_BURST = 602;
+    public static final int STOP_CONTINUOUS_CAPTURE = 603;
 
     public static String stringify(int action) {
         switch (action) {
@@ -64,6 +70,8 @@ class CameraActions {
                 return "RECONNECT";
             case UNLOCK:
                 return "UNLOCK";
+            case PREWARM:
+                return "PREWARM";
             case LOCK:
                 return "LOCK";
             case SET_PREVIEW_TEXTURE_ASYNC:
@@ -82,6 +90,12 @@ class CameraActions {
                 return "SET_PREVIEW_CALLBACK";
             case SET_ONE_SHOT_PREVIEW_CALLBACK:
                 return "SET_ONE_SHOT_PREVIEW_CALLBACK";
+            case SET_ANALYSIS_CALLBACK:
+                return "SET_ANALYSIS_CALLBACK";
+            case SET_MANAGED_PREVIEW_CALLBACK:
+                return "SET_MANAGED_PREVIEW_CALLBACK";
+            case SET_RECORDING_SURFACE:
+                return "SET_RECORDING_SURFACE";
             case SET_PARAMETERS:
                 return "SET_PARAMETERS";
             case GET_PARAMETERS:
@@ -112,6 +126,10 @@ class CameraActions {
                 return "SET_DISPLAY_ORIENTATION";
             case CAPTURE_PHOTO:
                 return "CAPTURE_PHOTO";
+            case CAPTURE_BURST:
+                return "CAPTURE_BURST";
+            case STOP_CONTINUOUS_CAPTURE:
+                return "STOP_CONTINUOUS_CAPTURE";
             default:
                 return "UNKNOWN(" + action + ")";
         }
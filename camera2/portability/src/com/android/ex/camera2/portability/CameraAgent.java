@@ -20,14 +20,21 @@ import android.annotation.TargetApi;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.hardware.Camera.OnZoomChangeListener;
+import android.media.Image;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
+import android.view.Surface;
 import android.view.SurfaceHolder;
 
 import com.android.ex.camera2.portability.debug.Log;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
 /**
  * An interface which provides possible camera device operations.
  *
@@ -47,8 +54,10 @@ public abstract class CameraAgent {
 
     private static final Log.Tag TAG = new Log.Tag("CamAgnt");
 
+    private final CameraActionMetrics mActionMetrics = new CameraActionMetrics();
+
     public static class CameraStartPreviewCallbackForward
-            implements CameraStartPreviewCallback {
+            implements CameraStartPreviewCallback, StartPreviewFailureCallback {
         private final Handler mHandler;
         private final CameraStartPreviewCallback mCallback;
 
@@ -74,6 +83,18 @@ public abstract class CameraAgent {
                     mCallback.onPreviewStarted();
                 }});
         }
+
+        @Override
+        public void onPreviewStartFailed(final RuntimeException ex) {
+            if (!(mCallback instanceof StartPreviewFailureCallback)) {
+                return;
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    ((StartPreviewFailureCallback) mCallback).onPreviewStartFailed(ex);
+                }});
+        }
     }
 
     /**
@@ -194,6 +215,44 @@ public abstract class CameraAgent {
         public void onPictureTaken(byte[] data, CameraProxy camera);
     }
 
+    /**
+     * An interface to receive a picture without copying it into a new array.
+     */
+    public static interface CameraPictureBufferCallback {
+        /**
+         * Callback for the picture.
+         *
+         * @param data   The jpeg image data, between the buffer's position and
+         *               limit. The buffer is reused for later pictures after
+         *               this returns, copy it if it needs to be retained.
+         * @param camera The camera which took the picture.
+         */
+        public void onPictureTaken(ByteBuffer data, CameraProxy camera);
+    }
+
+    /**
+     * An interface to receive the pictures of a burst or continuous capture.
+     */
+    public static interface CameraBurstCallback {
+        /**
+         * Callback for each picture, in capture order.
+         *
+         * @param index  The index of the picture within the burst.
+         * @param data   The jpeg image data.
+         * @param camera The camera which took the picture.
+         */
+        public void onPictureTaken(int index, byte[] data, CameraProxy camera);
+
+        /**
+         * Callback once no more pictures will be delivered.
+         *
+         * @param count  The number of pictures delivered, which may be less
+         *               than requested if some captures failed.
+         * @param camera The camera which took the pictures.
+         */
+        public void onBurstFinished(int count, CameraProxy camera);
+    }
+
     /**
      * An interface which wraps
      * {@link android.hardware.Camera.PreviewCallback}.
@@ -202,6 +261,21 @@ public abstract class CameraAgent {
         public void onPreviewFrame(byte[] data, CameraProxy camera);
     }
 
+    /**
+     * An interface to analyze preview frames in place, without copying them.
+     */
+    public static interface CameraAnalysisCallback {
+        /**
+         * Callback for the latest frame, if the previous one has been
+         * analyzed. Frames arriving meanwhile are dropped, except the latest.
+         *
+         * @param image  A {@link android.graphics.ImageFormat#YUV_420_888}
+         *               frame, which is closed once this returns.
+         * @param camera The camera which produced the frame.
+         */
+        public void onImageAvailable(Image image, CameraProxy camera);
+    }
+
     /**
      * An interface which wraps
      * {@link android.hardware.Camera.FaceDetectionListener}.
@@ -272,6 +346,44 @@ public abstract class CameraAgent {
         public void onReconnectionFailure(CameraAgent mgr, String info);
     }
 
+    /**
+     * Implemented by the callbacks backing futures, which would never be
+     * completed if their operation couldn't be dispatched.
+     */
+    /*package*/ static interface DispatchFailureCallback {
+        /**
+         * Called when the operation couldn't be dispatched.
+         */
+        public void onDispatchFailed(RuntimeException ex);
+    }
+
+    /**
+     * Implemented by the start preview callbacks backing futures, which would
+     * never be completed if the camera couldn't start the preview.
+     */
+    /*package*/ static interface StartPreviewFailureCallback {
+        /**
+         * Called instead of {@link CameraStartPreviewCallback#onPreviewStarted}
+         * when the preview won't start.
+         */
+        public void onPreviewStartFailed(RuntimeException ex);
+    }
+
+    /**
+     * Tells a start preview callback that the preview won't start, if it
+     * wants to know.
+     *
+     * @param cb     The callback, may be null.
+     * @param reason Why the preview won't start.
+     */
+    /*package*/ static void notifyPreviewStartFailed(CameraStartPreviewCallback cb,
+            String reason) {
+        if (cb instanceof StartPreviewFailureCallback) {
+            ((StartPreviewFailureCallback) cb).onPreviewStartFailed(
+                    new IllegalStateException(reason));
+        }
+    }
+
     /**
      * Opens the camera of the specified ID asynchronously. The camera device
      * will be opened in the camera handler thread and will be returned through
@@ -298,6 +410,101 @@ public abstract class CameraAgent {
         }
     }
 
+    /**
+     * Opens the camera of the specified ID asynchronously, like
+     * {@link #openCamera}, but returns a future instead of taking a callback.
+     *
+     * <p>The future is completed on the camera handler thread, so dependent
+     * stages doing any real work should use the {@code *Async} variants of
+     * the {@link CompletableFuture} methods.</p>
+     *
+     * @param cameraId The camera ID to open.
+     * @return The future for the opened camera. It fails with an
+     *         {@link IllegalStateException} if the camera can't be opened.
+     */
+    public CompletableFuture<CameraProxy> openCameraFuture(final int cameraId) {
+        final CompletableFuture<CameraProxy> future = new CompletableFuture<CameraProxy>();
+        final CameraOpenCallback callback = new CameraOpenCallback() {
+            @Override
+            public void onCameraOpened(CameraProxy camera) {
+                future.complete(camera);
+            }
+
+            @Override
+            public void onCameraDisabled(int cameraId) {
+                future.completeExceptionally(
+                        new IllegalStateException("Camera " + cameraId + " is disabled"));
+            }
+
+            @Override
+            public void onDeviceOpenFailure(int cameraId, String info) {
+                future.completeExceptionally(new IllegalStateException(
+                        "Failed to open camera " + cameraId + ": " + info));
+            }
+
+            @Override
+            public void onDeviceOpenedAlready(int cameraId, String info) {
+                future.completeExceptionally(new IllegalStateException(
+                        "Camera " + cameraId + " is opened already: " + info));
+            }
+
+            @Override
+            public void onReconnectionFailure(CameraAgent mgr, String info) {
+                future.completeExceptionally(
+                        new IllegalStateException("Failed to reconnect: " + info));
+            }
+        };
+        try {
+            getDispatchThread().runJob(new Runnable() {
+                @Override
+                public void run() {
+                    getCameraHandler().obtainMessage(CameraActions.OPEN_CAMERA, cameraId, 0,
+                            callback).sendToTarget();
+                }
+            });
+        } catch (final RuntimeException ex) {
+            future.completeExceptionally(ex);
+            getCameraExceptionHandler().onDispatchThreadException(ex);
+        }
+        return future;
+    }
+
+    /**
+     * Returns the capabilities of a camera without opening it, if they can be
+     * determined that way.
+     *
+     * @param cameraId The camera ID.
+     * @return The capabilities, or {@code null} if the camera needs to be
+     *         opened to determine them. The default implementation always
+     *         returns {@code null}.
+     */
+    public CameraCapabilities getCapabilities(int cameraId) {
+        return null;
+    }
+
+    /**
+     * Hints that the camera of the specified ID is about to be opened, so
+     * that the work of opening it can overlap with the caller's own startup.
+     * A later {@link #openCamera} of the same camera then completes sooner.
+     *
+     * <p>Implementations may open the device speculatively, in which case it
+     * is closed again if not claimed by {@link #openCamera} within a few
+     * seconds, or if a different camera is opened. The default implementation
+     * does nothing.</p>
+     *
+     * @param cameraId The camera ID most likely to be opened next.
+     */
+    public void prewarm(final int cameraId) {
+    }
+
+    /**
+     * @return The latency metrics of the camera operations performed by this
+     *         agent so far, which are updated as they go.
+     */
+    public CameraActionMetrics getActionMetrics() {
+        return mActionMetrics;
+    }
+
     /**
      * Closes the camera device.
      *
@@ -318,7 +525,7 @@ public abstract class CameraAgent {
                     public void run() {
                         getCameraHandler().obtainMessage(CameraActions.RELEASE).sendToTarget();
                         getCameraHandler().post(bundle.mUnlockRunnable);
-                    }}, bundle.mWaitLock, CAMERA_OPERATION_TIMEOUT_MS, "camera release");
+                    }}, bundle, CAMERA_OPERATION_TIMEOUT_MS, "camera release");
             } else {
                 getDispatchThread().runJob(new Runnable() {
                     @Override
@@ -373,6 +580,13 @@ public abstract class CameraAgent {
      * An interface that takes camera operation requests and post messages to the
      * camera handler thread. All camera operations made through this interface is
      * asynchronous by default except those mentioned specifically.
+     *
+     * <p>The {@code *Future} variants of the operations return a
+     * {@link CompletableFuture} instead of taking a callback, so that camera work
+     * can be chained without blocking any thread. Unless stated otherwise, these
+     * futures are completed on the camera handler thread. Like the callbacks, they
+     * are never completed if the camera is closed or fails before the operation
+     * is carried out, so waits on them should be bounded.</p>
      */
     public abstract static class CameraProxy {
 
@@ -448,7 +662,7 @@ public abstract class CameraAgent {
                         getCameraHandler().sendEmptyMessage(CameraActions.UNLOCK);
                         getCameraHandler().post(bundle.mUnlockRunnable);
                     }
-                }, bundle.mWaitLock, CAMERA_OPERATION_TIMEOUT_MS, "camera unlock");
+                }, bundle, CAMERA_OPERATION_TIMEOUT_MS, "camera unlock");
             } catch (final RuntimeException ex) {
                 getAgent().getCameraExceptionHandler().onDispatchThreadException(ex);
             }
@@ -499,7 +713,7 @@ public abstract class CameraAgent {
                         getCameraHandler()
                                 .obtainMessage(CameraActions.SET_PREVIEW_TEXTURE_ASYNC, surfaceTexture)
                                 .sendToTarget();
-                    }});
+                    }}, CameraActions.SET_PREVIEW_TEXTURE_ASYNC);
             } catch (final RuntimeException ex) {
                 getAgent().getCameraExceptionHandler().onDispatchThreadException(ex);
             }
@@ -533,7 +747,7 @@ public abstract class CameraAgent {
                                 .obtainMessage(CameraActions.SET_PREVIEW_TEXTURE_ASYNC, surfaceTexture)
                                 .sendToTarget();
                         getCameraHandler().post(bundle.mUnlockRunnable);
-                    }}, bundle.mWaitLock, CAMERA_OPERATION_TIMEOUT_MS, "set preview texture");
+                    }}, bundle, CAMERA_OPERATION_TIMEOUT_MS, "set preview texture");
             } catch (final RuntimeException ex) {
                 getAgent().getCameraExceptionHandler().onDispatchThreadException(ex);
             }
@@ -592,6 +806,43 @@ public abstract class CameraAgent {
             }
         }
 
+        /**
+         * Starts the camera preview.
+         *
+         * @return A future completed once the preview starts, or completed
+         *         exceptionally if the camera refuses or fails to start it.
+         */
+        public CompletableFuture<Void> startPreviewFuture() {
+            final CompletableFuture<Void> future = new CompletableFuture<Void>();
+            class FutureStartPreviewCallback
+                    implements CameraStartPreviewCallback, StartPreviewFailureCallback {
+                @Override
+                public void onPreviewStarted() {
+                    future.complete(null);
+                }
+
+                @Override
+                public void onPreviewStartFailed(RuntimeException ex) {
+                    future.completeExceptionally(ex);
+                }
+            }
+            final CameraStartPreviewCallback callback = new FutureStartPreviewCallback();
+            try {
+                getDispatchThread().runJob(new Runnable() {
+                    @Override
+                    public void run() {
+                        getCameraHandler().obtainMessage(CameraActions.START_PREVIEW_ASYNC,
+                                CameraStartPreviewCallbackForward.getNewInstance(
+                                        getCameraHandler(), callback))
+                                .sendToTarget();
+                    }});
+            } catch (final RuntimeException ex) {
+                future.completeExceptionally(ex);
+                getAgent().getCameraExceptionHandler().onDispatchThreadException(ex);
+            }
+            return future;
+        }
+
         /**
          * Stops the camera preview synchronously.
          * {@code stopPreview()} must be synchronous to ensure that the caller can
@@ -609,7 +860,7 @@ public abstract class CameraAgent {
                     public void run() {
                         getCameraHandler().obtainMessage(CameraActions.STOP_PREVIEW, bundle)
                                 .sendToTarget();
-                    }}, bundle.mWaitLock, CAMERA_OPERATION_TIMEOUT_MS, "stop preview");
+                    }}, bundle, CAMERA_OPERATION_TIMEOUT_MS, "stop preview");
             } catch (final RuntimeException ex) {
                 getAgent().getCameraExceptionHandler().onDispatchThreadException(ex);
             }
@@ -645,6 +896,60 @@ public abstract class CameraAgent {
         public abstract void setPreviewDataCallbackWithBuffer(Handler handler,
                                                               CameraPreviewDataCallback cb);
 
+        /**
+         * Sets the callback for preview data, delivered in buffers which are
+         * allocated and recycled by the camera, so that streaming preview data
+         * doesn't generate any garbage. The data is only valid until the
+         * callback returns, and frames arriving while every buffer is in use
+         * are dropped.
+         *
+         * <p>The default implementation falls back to
+         * {@link #setPreviewDataCallback}.</p>
+         *
+         * @param handler The handler in which the callback will be invoked.
+         * @param cb      The callback to be invoked when the preview data is
+         *                available, or {@code null} to stop the callbacks.
+         */
+        public void setPreviewDataCallbackWithManagedBuffers(Handler handler,
+                CameraPreviewDataCallback cb) {
+            setPreviewDataCallback(handler, cb);
+        }
+
+        /**
+         * Sets the callback analyzing preview frames, as an additional stream
+         * of the capture session. Unlike the preview data callbacks, frames
+         * aren't copied, and an analysis slower than the frame rate only
+         * causes frames to be skipped rather than stalling the preview.
+         *
+         * <p>The stream is only added to or removed from the capture session
+         * when it is next configured, so this should be called before
+         * {@link #setPreviewTexture}. A callback set while the stream is
+         * configured takes effect right away. The default implementation
+         * doesn't support analysis.</p>
+         *
+         * @param executor The executor on which the callback is invoked.
+         * @param cb       The callback, or {@code null} to stop the analysis.
+         */
+        public void setAnalysisCallback(Executor executor, CameraAnalysisCallback cb) {
+            Log.w(TAG, "Analysis stream not supported");
+        }
+
+        /**
+         * Sets the surface which high speed video, e.g. from a
+         * {@link android.media.MediaRecorder}, is recorded to.
+         *
+         * <p>Like the preview texture, the surface is only added to or
+         * removed from the capture session when it is next configured. It is
+         * only streamed to in high speed mode. The default implementation
+         * doesn't support recording surfaces.</p>
+         *
+         * @param surface The surface, or {@code null} to stop recording to it.
+         * @see CameraSettings#setHighSpeedVideoEnabled
+         */
+        public void setRecordingSurface(Surface surface) {
+            Log.w(TAG, "Recording surface not supported");
+        }
+
         /**
          * Adds buffer for the preview callback.
          *
@@ -668,11 +973,39 @@ public abstract class CameraAgent {
         /**
          * Starts the auto-focus process. The result will be returned through the callback.
          *
+         * <p>An auto-focus which hasn't started yet is superseded by a later one, as long as
+         * only settings, orientation or preview texture changes were requested in between. Its
+         * callback is then told that the lens isn't focused.</p>
+         *
          * @param handler The handler in which the callback will be invoked.
          * @param cb      The auto-focus callback.
          */
         public abstract void autoFocus(Handler handler, CameraAFCallback cb);
 
+        /**
+         * Starts the auto-focus process.
+         *
+         * @return A future for whether the lens is focused once the process
+         *         ends.
+         * @see #autoFocus(Handler, CameraAFCallback)
+         */
+        public CompletableFuture<Boolean> autoFocusFuture() {
+            final CompletableFuture<Boolean> future = new CompletableFuture<Boolean>();
+            class FutureAFCallback implements CameraAFCallback, DispatchFailureCallback {
+                @Override
+                public void onAutoFocus(boolean focused, CameraProxy camera) {
+                    future.complete(focused);
+                }
+
+                @Override
+                public void onDispatchFailed(RuntimeException ex) {
+                    future.completeExceptionally(ex);
+                }
+            }
+            autoFocus(getCameraHandler(), new FutureAFCallback());
+            return future;
+        }
+
         /**
          * Cancels the auto-focus process.
          *
@@ -718,6 +1051,98 @@ public abstract class CameraAgent {
                 CameraPictureCallback postview,
                 CameraPictureCallback jpeg);
 
+        /**
+         * Instrument the camera to take a picture, delivering the jpeg image
+         * data in a recycled buffer instead of a newly allocated array.
+         *
+         * <p>The default implementation wraps the array passed to
+         * {@link CameraPictureCallback}.</p>
+         *
+         * @param handler   The handler in which the callbacks will be invoked.
+         * @param shutter   The callback for shutter action, may be null.
+         * @param jpeg      The callback for jpeg image data.
+         * @see #takePicture(Handler, CameraShutterCallback, CameraPictureCallback,
+         *         CameraPictureCallback, CameraPictureCallback)
+         */
+        public void takePicture(Handler handler, CameraShutterCallback shutter,
+                final CameraPictureBufferCallback jpeg) {
+            takePicture(handler, shutter, null, null, new CameraPictureCallback() {
+                @Override
+                public void onPictureTaken(byte[] data, CameraProxy camera) {
+                    jpeg.onPictureTaken(ByteBuffer.wrap(data), camera);
+                }
+            });
+        }
+
+        /**
+         * Instrument the camera to take a burst of pictures at up to the
+         * sensor's frame rate, while the preview keeps running. Pictures are
+         * streamed to the callback as they are encoded.
+         *
+         * @param handler   The handler in which the callbacks will be invoked.
+         * @param count     The number of pictures to take.
+         * @param shutter   The callback for each shutter action, may be null.
+         * @param cb        The callback for the pictures.
+         */
+        public abstract void captureBurst(Handler handler, int count,
+                CameraShutterCallback shutter, CameraBurstCallback cb);
+
+        /**
+         * Instrument the camera to take pictures continuously, until
+         * {@link #stopContinuousCapture} is called.
+         *
+         * @param handler   The handler in which the callbacks will be invoked.
+         * @param shutter   The callback for each shutter action, may be null.
+         * @param cb        The callback for the pictures.
+         * @see #captureBurst
+         */
+        public abstract void startContinuousCapture(Handler handler,
+                CameraShutterCallback shutter, CameraBurstCallback cb);
+
+        /**
+         * Stops a capture started by {@link #startContinuousCapture}. Pictures
+         * already being captured are still delivered before
+         * {@link CameraBurstCallback#onBurstFinished}.
+         */
+        public void stopContinuousCapture() {
+            try {
+                getDispatchThread().runJob(new Runnable() {
+                    @Override
+                    public void run() {
+                        getCameraHandler().sendEmptyMessage(CameraActions.STOP_CONTINUOUS_CAPTURE);
+                    }});
+            } catch (final RuntimeException ex) {
+                getAgent().getCameraExceptionHandler().onDispatchThreadException(ex);
+            }
+        }
+
+        /**
+         * Instrument the camera to take a picture.
+         *
+         * @param handler   The handler in which the shutter callback will be
+         *                  invoked and the future completed.
+         * @param shutter   The callback for shutter action, may be null.
+         * @return A future for the jpeg image data.
+         * @see #takePicture
+         */
+        public CompletableFuture<byte[]> takePictureFuture(Handler handler,
+                CameraShutterCallback shutter) {
+            final CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+            class FuturePictureCallback implements CameraPictureCallback, DispatchFailureCallback {
+                @Override
+                public void onPictureTaken(byte[] data, CameraProxy camera) {
+                    future.complete(data);
+                }
+
+                @Override
+                public void onDispatchFailed(RuntimeException ex) {
+                    future.completeExceptionally(ex);
+                }
+            }
+            takePicture(handler, shutter, null, null, new FuturePictureCallback());
+            return future;
+        }
+
         /**
          * Sets the display orientation for camera to adjust the preview and JPEG orientation.
          *
@@ -739,15 +1164,22 @@ public abstract class CameraAgent {
          * @param capture Whether to adjust the JPEG capture orientation as well as the preview one.
          */
         public void setDisplayOrientation(final int degrees, final boolean capture) {
+            Runnable job = new Runnable() {
+                @Override
+                public void run() {
+                    getCameraHandler()
+                            .obtainMessage(CameraActions.SET_DISPLAY_ORIENTATION, degrees,
+                                    capture ? 1 : 0)
+                            .sendToTarget();
+                }};
             try {
-                getDispatchThread().runJob(new Runnable() {
-                    @Override
-                    public void run() {
-                        getCameraHandler()
-                                .obtainMessage(CameraActions.SET_DISPLAY_ORIENTATION, degrees,
-                                        capture ? 1 : 0)
-                                .sendToTarget();
-                    }});
+                if (capture) {
+                    getDispatchThread().runJob(job, CameraActions.SET_DISPLAY_ORIENTATION);
+                } else {
+                    // This leaves the JPEG orientation alone, so it mustn't supersede a pending
+                    // call which changes it, nor be superseded by one.
+                    getDispatchThread().runJob(job);
+                }
             } catch (final RuntimeException ex) {
                 getAgent().getCameraExceptionHandler().onDispatchThreadException(ex);
             }
@@ -761,7 +1193,7 @@ public abstract class CameraAgent {
                         getCameraHandler()
                                 .obtainMessage(CameraActions.SET_JPEG_ORIENTATION, degrees, 0)
                                 .sendToTarget();
-                    }});
+                    }}, CameraActions.SET_JPEG_ORIENTATION);
             } catch (final RuntimeException ex) {
                 getAgent().getCameraExceptionHandler().onDispatchThreadException(ex);
             }
@@ -838,6 +1270,51 @@ public abstract class CameraAgent {
          */
         public abstract CameraSettings getSettings();
 
+        /**
+         * Reports an operation which couldn't be dispatched to the exception
+         * handler, and to its callback if that backs a future.
+         *
+         * @param ex       The dispatch failure.
+         * @param callback The operation's callback, may be null.
+         */
+        /*package*/ void onDispatchFailed(RuntimeException ex, Object callback) {
+            if (callback instanceof DispatchFailureCallback) {
+                ((DispatchFailureCallback) callback).onDispatchFailed(ex);
+            }
+            getAgent().getCameraExceptionHandler().onDispatchThreadException(ex);
+        }
+
+        /**
+         * The dispatch job of an auto-focus, keyed with {@link CameraActions#AUTO_FOCUS}. If a
+         * later auto-focus supersedes it before it starts, its callback is told that the lens
+         * isn't focused.
+         */
+        /*package*/ abstract class AutoFocusJob implements DispatchThread.SupersedableJob {
+            private final Handler mHandler;
+            private final CameraAFCallback mCallback;
+
+            /**
+             * @param handler The handler in which the callback will be invoked.
+             * @param cb      The auto-focus callback, may be null.
+             */
+            AutoFocusJob(Handler handler, CameraAFCallback cb) {
+                mHandler = handler;
+                mCallback = cb;
+            }
+
+            @Override
+            public void onSuperseded() {
+                if (mCallback == null) {
+                    return;
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCallback.onAutoFocus(false, CameraProxy.this);
+                    }});
+            }
+        }
+
         /**
          * Default implementation of {@link #applySettings(CameraSettings)}
          * that is only missing the set of states it needs to wait for
@@ -845,7 +1322,8 @@ public abstract class CameraAgent {
          *
          * @param settings The settings to use on the device.
          * @param statesToAwait Bitwise OR of the required camera states.
-         * @return Whether the settings can be applied.
+         * @return Whether the settings can be applied, which they can't if
+         *         they couldn't be dispatched.
          */
         protected boolean applySettingsHelper(CameraSettings settings,
                                               final int statesToAwait) {
@@ -863,17 +1341,23 @@ public abstract class CameraAgent {
                 getDispatchThread().runJob(new Runnable() {
                     @Override
                     public void run() {
-                        CameraStateHolder cameraState = getCameraState();
+                        final CameraStateHolder cameraState = getCameraState();
                         // Don't bother to wait since camera is in bad state.
                         if (cameraState.isInvalid()) {
                             return;
                         }
+                        // Let messages sent by earlier jobs update the state first.
+                        getDispatchThread().waitForCameraHandler(CAMERA_OPERATION_TIMEOUT_MS);
+                        if (cameraState.isInvalid()) {
+                            return;
+                        }
                         cameraState.waitForStates(statesToAwait);
-                        getCameraHandler().obtainMessage(CameraActions.APPLY_SETTINGS, copyOfSettings)
-                                .sendToTarget();
-                    }});
+                        getCameraHandler().obtainMessage(CameraActions.APPLY_SETTINGS,
+                                copyOfSettings).sendToTarget();
+                    }}, CameraActions.APPLY_SETTINGS);
             } catch (final RuntimeException ex) {
                 getAgent().getCameraExceptionHandler().onDispatchThreadException(ex);
+                return false;
             }
             return true;
         }
@@ -882,13 +1366,50 @@ public abstract class CameraAgent {
          * Applies the settings to the camera device.
          *
          * <p>If the camera is either focusing or capturing; settings applications
-         * will be (asynchronously) deferred until those operations complete.</p>
+         * will be (asynchronously) deferred until those operations complete. A deferred
+         * application which hasn't started yet is superseded by any later one.</p>
          *
          * @param settings The settings to use on the device.
          * @return Whether the settings can be applied.
          */
         public abstract boolean applySettings(CameraSettings settings);
 
+        /**
+         * Applies the settings to the camera device.
+         *
+         * @param settings The settings to use on the device.
+         * @return A future completed once the settings, or newer ones
+         *         superseding them, have been applied. It fails with an
+         *         {@link IllegalArgumentException} if the settings can't be
+         *         applied, including when they couldn't be dispatched.
+         * @see #applySettings(CameraSettings)
+         */
+        public CompletableFuture<Void> applySettingsFuture(CameraSettings settings) {
+            final CompletableFuture<Void> future = new CompletableFuture<Void>();
+            if (!applySettings(settings)) {
+                future.completeExceptionally(
+                        new IllegalArgumentException("Settings can't be applied"));
+                return future;
+            }
+            try {
+                // Runs after the job queued by applySettings(), so the completion is
+                // processed by the camera handler after the settings are.
+                getDispatchThread().runJob(new Runnable() {
+                    @Override
+                    public void run() {
+                        getCameraHandler().post(new Runnable() {
+                            @Override
+                            public void run() {
+                                future.complete(null);
+                            }});
+                    }});
+            } catch (final RuntimeException ex) {
+                future.completeExceptionally(ex);
+                getAgent().getCameraExceptionHandler().onDispatchThreadException(ex);
+            }
+            return future;
+        }
+
         /**
          * Forces {@code CameraProxy} to update the cached version of the camera
          * settings regardless of the dirty bit.
@@ -954,6 +1475,7 @@ public abstract class CameraAgent {
     public static class WaitDoneBundle {
         public final Runnable mUnlockRunnable;
         public final Object mWaitLock;
+        private boolean mDone;
 
         WaitDoneBundle() {
             mWaitLock = new Object();
@@ -961,11 +1483,39 @@ public abstract class CameraAgent {
                 @Override
                 public void run() {
                     synchronized (mWaitLock) {
+                        mDone = true;
                         mWaitLock.notifyAll();
                     }
                 }};
         }
 
+        /**
+         * Blocks until {@link #mUnlockRunnable} has run.
+         *
+         * @param timeoutMs Timeout limit in milliseconds.
+         * @return {@code false} if the wait is interrupted or timeout limit is
+         *         reached.
+         */
+        /*package*/ boolean waitDone(long timeoutMs) {
+            long timeBound = SystemClock.uptimeMillis() + timeoutMs;
+            synchronized (mWaitLock) {
+                // Loop since wait() may return early without being notified.
+                while (!mDone) {
+                    long remainingMs = timeBound - SystemClock.uptimeMillis();
+                    if (remainingMs <= 0) {
+                        return false;
+                    }
+                    try {
+                        mWaitLock.wait(remainingMs);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
         /**
          * Notify all synchronous waiters waiting on message completion with {@link #mWaitLock}.
          *
@@ -135,6 +135,42 @@ public class CameraAgentFactory {
         }
     }
 
+    /**
+     * Creates the {@link CameraAgent} ahead of time if needed, and pre-warms
+     * the given camera with it. This is meant to be called early during app
+     * startup, before the UI asks for the agent through
+     * {@link #getAndroidCameraAgent}.
+     *
+     * <p>This doesn't count as a client of the agent; it must still be
+     * obtained from {@link #getAndroidCameraAgent} and recycled as usual.</p>
+     *
+     * @param context The application context.
+     * @param api Which camera framework to use.
+     * @param cameraId The camera ID most likely to be opened next.
+     * @see CameraAgent#prewarm
+     */
+    public static synchronized void prewarm(Context context, CameraApi api, int cameraId) {
+        api = validateApiChoice(api);
+
+        CameraAgent agent;
+        if (api == CameraApi.API_1) {
+            if (sAndroidCameraAgent == null) {
+                sAndroidCameraAgent = new AndroidCameraAgentImpl();
+            }
+            agent = sAndroidCameraAgent;
+        } else { // API_2
+            if (highestSupportedApi() == CameraApi.API_1) {
+                throw new UnsupportedOperationException("Camera API_2 unavailable on this device");
+            }
+
+            if (sAndroidCamera2Agent == null) {
+                sAndroidCamera2Agent = new AndroidCamera2AgentImpl(context);
+            }
+            agent = sAndroidCamera2Agent;
+        }
+        agent.prewarm(cameraId);
+    }
+
     /**
      * Recycles the resources. Always call this method when the activity is
      * stopped.
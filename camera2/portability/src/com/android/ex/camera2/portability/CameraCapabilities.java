@@ -19,10 +19,13 @@ package com.android.ex.camera2.portability;
 import com.android.ex.camera2.portability.debug.Log;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -54,6 +57,8 @@ public class CameraCapabilities {
     protected final EnumSet<WhiteBalance> mSupportedWhiteBalances =
             EnumSet.noneOf(WhiteBalance.class);
     protected final EnumSet<Feature> mSupportedFeatures = EnumSet.noneOf(Feature.class);
+    /** Each entry is {width, height, min fps, max fps}. */
+    protected final ArrayList<int[]> mSupportedHighSpeedVideoConfigs = new ArrayList<int[]>();
     protected Size mPreferredPreviewSizeForVideo;
     protected int mMinExposureCompensation;
     protected int mMaxExposureCompensation;
@@ -66,6 +71,112 @@ public class CameraCapabilities {
     protected float mVerticalViewAngle;
     private final Stringifier mStringifier;
 
+    /**
+     * Read-only views of the above, along with lookup structures derived from
+     * them. They are built on first use, since subclasses only populate the
+     * collections in their constructors, which never change afterwards.
+     */
+    private volatile FrozenViews mFrozenViews;
+
+    private static class FrozenViews {
+        final List<int[]> previewFpsRanges;
+        final List<Size> previewSizes;
+        final Set<Integer> previewFormats;
+        final List<Size> videoSizes;
+        final List<Size> photoSizes;
+        final Set<Integer> photoFormats;
+        final Set<SceneMode> sceneModes;
+        final Set<FlashMode> flashModes;
+        final Set<FocusMode> focusModes;
+        final Set<WhiteBalance> whiteBalances;
+        final Set<Feature> features;
+        final List<Size> highSpeedVideoSizes;
+        final Map<Size, List<int[]>> highSpeedVideoFpsRanges;
+        final Set<Size> previewSizeIndex;
+        final Set<Size> photoSizeIndex;
+        final Map<Long, List<Size>> previewSizesByAspectRatio;
+        final Map<Long, List<Size>> photoSizesByAspectRatio;
+
+        FrozenViews(CameraCapabilities caps) {
+            previewFpsRanges = Collections.unmodifiableList(caps.mSupportedPreviewFpsRange);
+            previewSizes = Collections.unmodifiableList(caps.mSupportedPreviewSizes);
+            previewFormats = Collections.unmodifiableSet(caps.mSupportedPreviewFormats);
+            videoSizes = Collections.unmodifiableList(caps.mSupportedVideoSizes);
+            photoSizes = Collections.unmodifiableList(caps.mSupportedPhotoSizes);
+            photoFormats = Collections.unmodifiableSet(caps.mSupportedPhotoFormats);
+            sceneModes = Collections.unmodifiableSet(caps.mSupportedSceneModes);
+            flashModes = Collections.unmodifiableSet(caps.mSupportedFlashModes);
+            focusModes = Collections.unmodifiableSet(caps.mSupportedFocusModes);
+            whiteBalances = Collections.unmodifiableSet(caps.mSupportedWhiteBalances);
+            features = Collections.unmodifiableSet(caps.mSupportedFeatures);
+            highSpeedVideoFpsRanges = new HashMap<Size, List<int[]>>();
+            List<Size> highSpeedSizes = new ArrayList<Size>();
+            for (int[] config : caps.mSupportedHighSpeedVideoConfigs) {
+                Size size = new Size(config[0], config[1]);
+                List<int[]> ranges = highSpeedVideoFpsRanges.get(size);
+                if (ranges == null) {
+                    ranges = new ArrayList<int[]>();
+                    highSpeedVideoFpsRanges.put(size, ranges);
+                    highSpeedSizes.add(size);
+                }
+                ranges.add(new int[] { config[2], config[3] });
+            }
+            for (Map.Entry<Size, List<int[]>> entry : highSpeedVideoFpsRanges.entrySet()) {
+                entry.setValue(Collections.unmodifiableList(entry.getValue()));
+            }
+            highSpeedVideoSizes = Collections.unmodifiableList(highSpeedSizes);
+            previewSizeIndex = new HashSet<Size>(caps.mSupportedPreviewSizes);
+            photoSizeIndex = new HashSet<Size>(caps.mSupportedPhotoSizes);
+            previewSizesByAspectRatio = indexByAspectRatio(caps.mSupportedPreviewSizes);
+            photoSizesByAspectRatio = indexByAspectRatio(caps.mSupportedPhotoSizes);
+        }
+
+        private static Map<Long, List<Size>> indexByAspectRatio(List<Size> sizes) {
+            Map<Long, List<Size>> index = new HashMap<Long, List<Size>>();
+            for (Size size : sizes) {
+                Long key = aspectRatioKey(size.width(), size.height());
+                List<Size> sameRatio = index.get(key);
+                if (sameRatio == null) {
+                    sameRatio = new ArrayList<Size>();
+                    index.put(key, sameRatio);
+                }
+                sameRatio.add(size);
+            }
+            for (Map.Entry<Long, List<Size>> entry : index.entrySet()) {
+                entry.setValue(Collections.unmodifiableList(entry.getValue()));
+            }
+            return index;
+        }
+    }
+
+    /**
+     * @return A key identifying the aspect ratio, the same for all multiples
+     *         of {@code width:height}.
+     */
+    private static long aspectRatioKey(int width, int height) {
+        int a = width;
+        int b = height;
+        while (b != 0) {
+            int remainder = a % b;
+            a = b;
+            b = remainder;
+        }
+        if (a == 0) {
+            return 0;
+        }
+        return ((long) (width / a) << 32) | (height / a);
+    }
+
+    private FrozenViews getFrozenViews() {
+        FrozenViews views = mFrozenViews;
+        if (views == null) {
+            // Racing threads build equivalent views, it doesn't matter whose are kept.
+            views = new FrozenViews(this);
+            mFrozenViews = views;
+        }
+        return views;
+    }
+
     /**
      * Focus modes.
      */
@@ -310,6 +421,15 @@ public class CameraCapabilities {
          * Support for video stabilization.
          */
         VIDEO_STABILIZATION,
+        /**
+         * Support for zero shutter lag capture.
+         */
+        ZERO_SHUTTER_LAG,
+        /**
+         * Support for high speed video, at the sizes and frame rates of
+         * {@link #getSupportedHighSpeedVideoSizes()}.
+         */
+        HIGH_SPEED_VIDEO,
     }
 
     /**
@@ -483,6 +603,7 @@ public class CameraCapabilities {
         mSupportedFocusModes.addAll(src.mSupportedFocusModes);
         mSupportedWhiteBalances.addAll(src.mSupportedWhiteBalances);
         mSupportedFeatures.addAll(src.mSupportedFeatures);
+        mSupportedHighSpeedVideoConfigs.addAll(src.mSupportedHighSpeedVideoConfigs);
         mPreferredPreviewSizeForVideo = src.mPreferredPreviewSizeForVideo;
         mMaxExposureCompensation = src.mMaxExposureCompensation;
         mMinExposureCompensation = src.mMinExposureCompensation;
@@ -504,11 +625,16 @@ public class CameraCapabilities {
         return mVerticalViewAngle;
     }
 
+    /*
+     * The collections returned by the getters below are read-only views,
+     * which don't copy anything; copy them to make changes.
+     */
+
     /**
      * @return the supported picture formats. See {@link android.graphics.ImageFormat}.
      */
     public Set<Integer> getSupportedPhotoFormats() {
-        return new TreeSet<Integer>(mSupportedPhotoFormats);
+        return getFrozenViews().photoFormats;
     }
 
     /**
@@ -516,14 +642,34 @@ public class CameraCapabilities {
      * @return The supported preview {@link android.graphics.ImageFormat}s.
      */
     public Set<Integer> getSupportedPreviewFormats() {
-        return new TreeSet<Integer>(mSupportedPreviewFormats);
+        return getFrozenViews().previewFormats;
     }
 
     /**
      * Gets the supported picture sizes.
      */
     public List<Size> getSupportedPhotoSizes() {
-        return new ArrayList<Size>(mSupportedPhotoSizes);
+        return getFrozenViews().photoSizes;
+    }
+
+    /**
+     * Gets the supported picture sizes of an aspect ratio, in the same order
+     * as {@link #getSupportedPhotoSizes}.
+     *
+     * @param aspectWidth  The width of the aspect ratio, e.g. 4 for 4:3.
+     * @param aspectHeight The height of the aspect ratio, e.g. 3 for 4:3.
+     */
+    public final List<Size> getSupportedPhotoSizes(int aspectWidth, int aspectHeight) {
+        List<Size> sizes = getFrozenViews().photoSizesByAspectRatio.get(
+                aspectRatioKey(aspectWidth, aspectHeight));
+        return sizes != null ? sizes : Collections.<Size>emptyList();
+    }
+
+    /**
+     * @return Whether the picture size is supported.
+     */
+    public final boolean supportsPhotoSize(Size size) {
+        return getFrozenViews().photoSizeIndex.contains(size);
     }
 
     /**
@@ -532,7 +678,7 @@ public class CameraCapabilities {
      * The values are multiplied by 1000.
      */
     public final List<int[]> getSupportedPreviewFpsRange() {
-        return new ArrayList<int[]>(mSupportedPreviewFpsRange);
+        return getFrozenViews().previewFpsRanges;
     }
 
     /**
@@ -540,7 +686,27 @@ public class CameraCapabilities {
      * height in a descending order.
      */
     public final List<Size> getSupportedPreviewSizes() {
-        return new ArrayList<Size>(mSupportedPreviewSizes);
+        return getFrozenViews().previewSizes;
+    }
+
+    /**
+     * Gets the supported preview sizes of an aspect ratio, in the same order
+     * as {@link #getSupportedPreviewSizes}.
+     *
+     * @param aspectWidth  The width of the aspect ratio, e.g. 16 for 16:9.
+     * @param aspectHeight The height of the aspect ratio, e.g. 9 for 16:9.
+     */
+    public final List<Size> getSupportedPreviewSizes(int aspectWidth, int aspectHeight) {
+        List<Size> sizes = getFrozenViews().previewSizesByAspectRatio.get(
+                aspectRatioKey(aspectWidth, aspectHeight));
+        return sizes != null ? sizes : Collections.<Size>emptyList();
+    }
+
+    /**
+     * @return Whether the preview size is supported.
+     */
+    public final boolean supportsPreviewSize(Size size) {
+        return getFrozenViews().previewSizeIndex.contains(size);
     }
 
     public final Size getPreferredPreviewSizeForVideo() {
@@ -552,14 +718,33 @@ public class CameraCapabilities {
      *         The list is sorted by width then height in a descending order.
      */
     public final List<Size> getSupportedVideoSizes() {
-        return new ArrayList<Size>(mSupportedVideoSizes);
+        return getFrozenViews().videoSizes;
+    }
+
+    /**
+     * @return The video sizes supported in high speed mode, in which they
+     *         are used as the preview size as well.
+     * @see CameraSettings#setHighSpeedVideoEnabled
+     */
+    public final List<Size> getSupportedHighSpeedVideoSizes() {
+        return getFrozenViews().highSpeedVideoSizes;
+    }
+
+    /**
+     * @return The fps ranges supported in high speed mode at a video size,
+     *         which aren't multiplied by 1000, or an empty list if the size
+     *         isn't supported.
+     */
+    public final List<int[]> getSupportedHighSpeedVideoFpsRanges(Size size) {
+        List<int[]> ranges = getFrozenViews().highSpeedVideoFpsRanges.get(size);
+        return ranges != null ? ranges : Collections.<int[]>emptyList();
     }
 
     /**
      * @return The supported scene modes.
      */
     public final Set<SceneMode> getSupportedSceneModes() {
-        return new HashSet<SceneMode>(mSupportedSceneModes);
+        return getFrozenViews().sceneModes;
     }
 
     /**
@@ -572,7 +757,8 @@ public class CameraCapabilities {
     public boolean supports(final CameraSettings settings) {
         if (zoomCheck(settings) && exposureCheck(settings) && focusCheck(settings) &&
                 flashCheck(settings) && photoSizeCheck(settings) && previewSizeCheck(settings) &&
-                videoStabilizationCheck(settings)) {
+                videoStabilizationCheck(settings) && zslCheck(settings) &&
+                highSpeedCheck(settings)) {
             return true;
         }
         return false;
@@ -582,7 +768,7 @@ public class CameraCapabilities {
      * @return The supported flash modes.
      */
     public final Set<FlashMode> getSupportedFlashModes() {
-        return new HashSet<FlashMode>(mSupportedFlashModes);
+        return getFrozenViews().flashModes;
     }
 
     /**
@@ -596,7 +782,7 @@ public class CameraCapabilities {
      * @return The supported focus modes.
      */
     public final Set<FocusMode> getSupportedFocusModes() {
-        return new HashSet<FocusMode>(mSupportedFocusModes);
+        return getFrozenViews().focusModes;
     }
 
     /**
@@ -610,7 +796,7 @@ public class CameraCapabilities {
      * @return The supported white balanceas.
      */
     public final Set<WhiteBalance> getSupportedWhiteBalance() {
-        return new HashSet<WhiteBalance>(mSupportedWhiteBalances);
+        return getFrozenViews().whiteBalances;
     }
 
     /**
@@ -621,7 +807,7 @@ public class CameraCapabilities {
     }
 
     public final Set<Feature> getSupportedFeature() {
-        return new HashSet<Feature>(mSupportedFeatures);
+        return getFrozenViews().features;
     }
 
     public boolean supports(Feature ft) {
@@ -733,7 +919,7 @@ public class CameraCapabilities {
 
     private boolean photoSizeCheck(final CameraSettings settings) {
         Size photoSize = settings.getCurrentPhotoSize();
-        if (mSupportedPhotoSizes.contains(photoSize)) {
+        if (supportsPhotoSize(photoSize)) {
             return true;
         }
         Log.v(TAG, "Unsupported photo size:" + photoSize);
@@ -742,7 +928,7 @@ public class CameraCapabilities {
 
     private boolean previewSizeCheck(final CameraSettings settings) {
         final Size previewSize = settings.getCurrentPreviewSize();
-        if (mSupportedPreviewSizes.contains(previewSize)) {
+        if (supportsPreviewSize(previewSize)) {
             return true;
         }
         Log.v(TAG, "Unsupported preview size:" + previewSize);
@@ -756,4 +942,32 @@ public class CameraCapabilities {
         Log.v(TAG, "Video stabilization is not supported");
         return false;
     }
+
+    private boolean zslCheck(final CameraSettings settings) {
+        if (!settings.isZslEnabled() || supports(Feature.ZERO_SHUTTER_LAG)) {
+            return true;
+        }
+        Log.v(TAG, "Zero shutter lag is not supported");
+        return false;
+    }
+
+    private boolean highSpeedCheck(final CameraSettings settings) {
+        if (!settings.isHighSpeedVideoEnabled()) {
+            return true;
+        }
+        Size size = settings.getCurrentPreviewSize();
+        if (size == null) {
+            Log.v(TAG, "High speed video requires a preview size");
+            return false;
+        }
+        for (int[] range : getSupportedHighSpeedVideoFpsRanges(size)) {
+            if (range[0] == settings.mPreviewFpsRangeMin &&
+                    range[1] == settings.mPreviewFpsRangeMax) {
+                return true;
+            }
+        }
+        Log.v(TAG, "High speed video is not supported at " + size + " and " +
+                settings.mPreviewFpsRangeMin + "-" + settings.mPreviewFpsRangeMax + " fps");
+        return false;
+    }
 }
@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.camera2.portability;
+
+import android.content.Context;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.os.Build;
+
+import com.android.ex.camera2.portability.debug.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persists what the camera2 agent derives from each camera's
+ * {@link CameraCharacteristics}, so that later processes can answer device
+ * info and capability queries without going through the camera service.
+ *
+ * <p>The cache is tied to the build fingerprint, since a system update may
+ * change what the cameras report, and is discarded whenever the fingerprint
+ * or the format version differs. Entries are corrected whenever fresh
+ * characteristics are queried anyway, e.g. when a camera is opened.</p>
+ *
+ * <p>This class is thread-safe.</p>
+ */
+class CameraInfoCache {
+    private static final Log.Tag TAG = new Log.Tag("CamInfoCache");
+
+    private static final String FILE_NAME = "camera2_portability_info";
+    /** Bump whenever the file format or what is derived from the characteristics changes. */
+    private static final int FORMAT_VERSION = 2;
+    /** How long the save thread lingers once there is nothing left to save. */
+    private static final long SAVE_THREAD_KEEP_ALIVE_S = 5;
+
+    /** What is cached of a single camera. */
+    static class Entry {
+        final int lensFacing;
+        final int sensorOrientation;
+        final AndroidCamera2Capabilities capabilities;
+
+        Entry(int lensFacing, int sensorOrientation, AndroidCamera2Capabilities capabilities) {
+            this.lensFacing = lensFacing;
+            this.sensorOrientation = sensorOrientation;
+            this.capabilities = capabilities;
+        }
+    }
+
+    private final File mFile;
+    private final String mFingerprint;
+    /** Loaded on first use. */
+    private Map<String, Entry> mEntries;
+    /** Runs the saves one at a time, off the threads which changed the entries. */
+    private final Executor mSaveExecutor;
+    /** Whether a save is queued which will pick up the latest changes. */
+    private boolean mSavePending;
+
+    CameraInfoCache(Context context) {
+        mFile = new File(context.getCacheDir(), FILE_NAME);
+        mFingerprint = Build.FINGERPRINT;
+        ThreadPoolExecutor saveExecutor = new ThreadPoolExecutor(1, 1,
+                SAVE_THREAD_KEEP_ALIVE_S, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "CameraInfoCache save");
+                    }});
+        saveExecutor.allowCoreThreadTimeOut(true);
+        mSaveExecutor = saveExecutor;
+    }
+
+    /**
+     * @return The cached entry, or {@code null} if there is none.
+     */
+    synchronized Entry get(String cameraId) {
+        ensureLoaded();
+        return mEntries.get(cameraId);
+    }
+
+    /**
+     * @return The cached entry, or one derived from freshly queried
+     *         characteristics if there is none.
+     */
+    Entry getOrQuery(CameraManager cameraManager, String cameraId)
+            throws CameraAccessException {
+        Entry entry = get(cameraId);
+        if (entry == null) {
+            entry = put(cameraId, cameraManager.getCameraCharacteristics(cameraId));
+        }
+        return entry;
+    }
+
+    /**
+     * Derives an entry from freshly queried characteristics, replacing the
+     * cached one and saving the cache if they differ.
+     *
+     * @return The new entry.
+     */
+    synchronized Entry put(String cameraId, CameraCharacteristics props) {
+        ensureLoaded();
+        Entry entry = new Entry(props.get(CameraCharacteristics.LENS_FACING),
+                props.get(CameraCharacteristics.SENSOR_ORIENTATION),
+                new AndroidCamera2Capabilities(props));
+        Entry cached = mEntries.get(cameraId);
+        if (cached == null || !Arrays.equals(toBytes(cached), toBytes(entry))) {
+            if (cached != null) {
+                Log.i(TAG, "Replacing stale cache entry of camera " + cameraId);
+            }
+            mEntries.put(cameraId, entry);
+            saveInBackground();
+        }
+        return entry;
+    }
+
+    private void ensureLoaded() {
+        if (mEntries != null) {
+            return;
+        }
+        mEntries = new HashMap<String, Entry>();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(mFile)))) {
+            if (in.readInt() != FORMAT_VERSION || !in.readUTF().equals(mFingerprint)) {
+                Log.i(TAG, "Discarding camera info cache of another version or build");
+                return;
+            }
+            for (int count = in.readInt(); count > 0; --count) {
+                String cameraId = in.readUTF();
+                int lensFacing = in.readInt();
+                int sensorOrientation = in.readInt();
+                CameraCapabilities capabilities = readCapabilities(in);
+                mEntries.put(cameraId, new Entry(lensFacing, sensorOrientation,
+                        new AndroidCamera2Capabilities(capabilities)));
+            }
+        } catch (FileNotFoundException ex) {
+            // Nothing cached yet.
+        } catch (IOException | IllegalArgumentException ex) {
+            Log.w(TAG, "Discarding unreadable camera info cache", ex);
+            mEntries.clear();
+        }
+    }
+
+    /**
+     * Queues a save, unless one is already queued. Changes made meanwhile are
+     * saved along with the earlier ones, so that querying several cameras in a
+     * row doesn't rewrite the file for each of them.
+     */
+    private synchronized void saveInBackground() {
+        if (mSavePending) {
+            return;
+        }
+        mSavePending = true;
+        mSaveExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                save();
+            }
+        });
+    }
+
+    private synchronized void save() {
+        mSavePending = false;
+        // Replace the file atomically, so that a reader never sees a partial one.
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(mFingerprint);
+            out.writeInt(mEntries.size());
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                writeEntry(out, entry.getValue());
+            }
+        } catch (IOException ex) {
+            Log.w(TAG, "Unable to save camera info cache", ex);
+            tempFile.delete();
+            return;
+        }
+        if (!tempFile.renameTo(mFile)) {
+            Log.w(TAG, "Unable to replace camera info cache");
+            tempFile.delete();
+        }
+    }
+
+    private static byte[] toBytes(Entry entry) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writeEntry(out, entry);
+        } catch (IOException ex) {
+            // Not thrown by in-memory streams.
+            throw new IllegalStateException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+        out.writeInt(entry.lensFacing);
+        out.writeInt(entry.sensorOrientation);
+        writeCapabilities(out, entry.capabilities);
+    }
+
+    private static void writeCapabilities(DataOutputStream out, CameraCapabilities caps)
+            throws IOException {
+        out.writeInt(caps.mSupportedPreviewFpsRange.size());
+        for (int[] range : caps.mSupportedPreviewFpsRange) {
+            out.writeInt(range[0]);
+            out.writeInt(range[1]);
+        }
+        writeSizes(out, caps.mSupportedPreviewSizes);
+        writeInts(out, caps.mSupportedPreviewFormats);
+        writeSizes(out, caps.mSupportedVideoSizes);
+        writeSizes(out, caps.mSupportedPhotoSizes);
+        writeInts(out, caps.mSupportedPhotoFormats);
+        writeEnums(out, caps.mSupportedSceneModes);
+        writeEnums(out, caps.mSupportedFlashModes);
+        writeEnums(out, caps.mSupportedFocusModes);
+        writeEnums(out, caps.mSupportedWhiteBalances);
+        writeEnums(out, caps.mSupportedFeatures);
+        out.writeInt(caps.mSupportedHighSpeedVideoConfigs.size());
+        for (int[] config : caps.mSupportedHighSpeedVideoConfigs) {
+            for (int value : config) {
+                out.writeInt(value);
+            }
+        }
+        out.writeBoolean(caps.mPreferredPreviewSizeForVideo != null);
+        if (caps.mPreferredPreviewSizeForVideo != null) {
+            out.writeInt(caps.mPreferredPreviewSizeForVideo.width());
+            out.writeInt(caps.mPreferredPreviewSizeForVideo.height());
+        }
+        out.writeInt(caps.mMinExposureCompensation);
+        out.writeInt(caps.mMaxExposureCompensation);
+        out.writeFloat(caps.mExposureCompensationStep);
+        out.writeInt(caps.mMaxNumOfFacesSupported);
+        out.writeInt(caps.mMaxNumOfFocusAreas);
+        out.writeInt(caps.mMaxNumOfMeteringArea);
+        out.writeFloat(caps.mMaxZoomRatio);
+        out.writeFloat(caps.mHorizontalViewAngle);
+        out.writeFloat(caps.mVerticalViewAngle);
+    }
+
+    private static CameraCapabilities readCapabilities(DataInputStream in) throws IOException {
+        CameraCapabilities caps = new CameraCapabilities(new CameraCapabilities.Stringifier());
+        for (int count = in.readInt(); count > 0; --count) {
+            caps.mSupportedPreviewFpsRange.add(new int[] { in.readInt(), in.readInt() });
+        }
+        readSizes(in, caps.mSupportedPreviewSizes);
+        readInts(in, caps.mSupportedPreviewFormats);
+        readSizes(in, caps.mSupportedVideoSizes);
+        readSizes(in, caps.mSupportedPhotoSizes);
+        readInts(in, caps.mSupportedPhotoFormats);
+        readEnums(in, caps.mSupportedSceneModes, CameraCapabilities.SceneMode.class);
+        readEnums(in, caps.mSupportedFlashModes, CameraCapabilities.FlashMode.class);
+        readEnums(in, caps.mSupportedFocusModes, CameraCapabilities.FocusMode.class);
+        readEnums(in, caps.mSupportedWhiteBalances, CameraCapabilities.WhiteBalance.class);
+        readEnums(in, caps.mSupportedFeatures, CameraCapabilities.Feature.class);
+        for (int count = in.readInt(); count > 0; --count) {
+            caps.mSupportedHighSpeedVideoConfigs.add(
+                    new int[] { in.readInt(), in.readInt(), in.readInt(), in.readInt() });
+        }
+        if (in.readBoolean()) {
+            caps.mPreferredPreviewSizeForVideo = new Size(in.readInt(), in.readInt());
+        }
+        caps.mMinExposureCompensation = in.readInt();
+        caps.mMaxExposureCompensation = in.readInt();
+        caps.mExposureCompensationStep = in.readFloat();
+        caps.mMaxNumOfFacesSupported = in.readInt();
+        caps.mMaxNumOfFocusAreas = in.readInt();
+        caps.mMaxNumOfMeteringArea = in.readInt();
+        caps.mMaxZoomRatio = in.readFloat();
+        caps.mHorizontalViewAngle = in.readFloat();
+        caps.mVerticalViewAngle = in.readFloat();
+        return caps;
+    }
+
+    private static void writeSizes(DataOutputStream out, Collection<Size> sizes)
+            throws IOException {
+        out.writeInt(sizes.size());
+        for (Size size : sizes) {
+            out.writeInt(size.width());
+            out.writeInt(size.height());
+        }
+    }
+
+    private static void readSizes(DataInputStream in, Collection<Size> sizes)
+            throws IOException {
+        for (int count = in.readInt(); count > 0; --count) {
+            sizes.add(new Size(in.readInt(), in.readInt()));
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, Collection<Integer> values)
+            throws IOException {
+        out.writeInt(values.size());
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static void readInts(DataInputStream in, Collection<Integer> values)
+            throws IOException {
+        for (int count = in.readInt(); count > 0; --count) {
+            values.add(in.readInt());
+        }
+    }
+
+    // Enum constants are stored by name, so that reordering them doesn't corrupt the cache.
+    private static void writeEnums(DataOutputStream out, Collection<? extends Enum<?>> values)
+            throws IOException {
+        out.writeInt(values.size());
+        for (Enum<?> value : values) {
+            out.writeUTF(value.name());
+        }
+    }
+
+    private static <E extends Enum<E>> void readEnums(DataInputStream in, EnumSet<E> values,
+            Class<E> enumClass) throws IOException {
+        for (int count = in.readInt(); count > 0; --count) {
+            values.add(Enum.valueOf(enumClass, in.readUTF()));
+        }
+    }
+}
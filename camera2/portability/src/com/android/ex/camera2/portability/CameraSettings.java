@@ -34,6 +34,8 @@ public abstract class CameraSettings {
     // Attempts to provide a value outside this range will be ignored.
     private static final int MIN_JPEG_COMPRESSION_QUALITY = 1;
     private static final int MAX_JPEG_COMPRESSION_QUALITY = 100;
+    // Wait for autoexposure to converge however long it takes, unless asked otherwise.
+    private static final long DEFAULT_PRECAPTURE_TIMEOUT_MS = 0;
 
     protected final Map<String, String> mGeneralSetting = new TreeMap<>();
     protected final List<Camera.Area> mMeteringAreas = new ArrayList<>();
@@ -57,6 +59,10 @@ public abstract class CameraSettings {
     protected boolean mAutoExposureLocked;
     protected boolean mAutoWhiteBalanceLocked;
     protected boolean mRecordingHintEnabled;
+    protected boolean mZslEnabled;
+    protected boolean mHighSpeedVideoEnabled;
+    protected boolean mFastCaptureEnabled;
+    protected long mPrecaptureTimeoutMs;
     protected GpsData mGpsData;
     protected Size mExifThumbnailSize;
 
@@ -105,6 +111,8 @@ public abstract class CameraSettings {
     }
 
     protected CameraSettings() {
+        mFastCaptureEnabled = true;
+        mPrecaptureTimeoutMs = DEFAULT_PRECAPTURE_TIMEOUT_MS;
     }
 
     /**
@@ -138,6 +146,10 @@ public abstract class CameraSettings {
         mAutoExposureLocked = src.mAutoExposureLocked;
         mAutoWhiteBalanceLocked = src.mAutoWhiteBalanceLocked;
         mRecordingHintEnabled = src.mRecordingHintEnabled;
+        mZslEnabled = src.mZslEnabled;
+        mHighSpeedVideoEnabled = src.mHighSpeedVideoEnabled;
+        mFastCaptureEnabled = src.mFastCaptureEnabled;
+        mPrecaptureTimeoutMs = src.mPrecaptureTimeoutMs;
         mGpsData = src.mGpsData;
         mExifThumbnailSize = src.mExifThumbnailSize;
     }
@@ -478,6 +490,68 @@ public abstract class CameraSettings {
         return mRecordingHintEnabled;
     }
 
+    /**
+     * Enables zero shutter lag capture, where pictures are produced from
+     * recently streamed frames instead of newly captured ones.
+     *
+     * <p>This only takes effect when the preview is next set up.</p>
+     *
+     * @see CameraCapabilities.Feature#ZERO_SHUTTER_LAG
+     */
+    public void setZslEnabled(boolean enabled) {
+        mZslEnabled = enabled;
+    }
+
+    public boolean isZslEnabled() {
+        return mZslEnabled;
+    }
+
+    /**
+     * Enables high speed video, where the preview and the recording surface
+     * stream at a high frame rate, but no pictures can be taken. The preview
+     * size and fps range must be one of the high speed video configurations.
+     *
+     * <p>This only takes effect when the preview is next set up.</p>
+     *
+     * @see CameraCapabilities#getSupportedHighSpeedVideoSizes
+     * @see CameraAgent.CameraProxy#setRecordingSurface
+     */
+    public void setHighSpeedVideoEnabled(boolean enabled) {
+        mHighSpeedVideoEnabled = enabled;
+    }
+
+    public boolean isHighSpeedVideoEnabled() {
+        return mHighSpeedVideoEnabled;
+    }
+
+    /**
+     * Enables capturing pictures right away when autoexposure has already
+     * converged without requiring the flash, instead of always running an
+     * autoexposure precapture sequence first. Enabled by default.
+     */
+    public void setFastCaptureEnabled(boolean enabled) {
+        mFastCaptureEnabled = enabled;
+    }
+
+    public boolean isFastCaptureEnabled() {
+        return mFastCaptureEnabled;
+    }
+
+    /**
+     * Sets how long to wait for autoexposure to converge before capturing a
+     * picture, after which the picture is captured with whatever exposure
+     * has been reached. There is no timeout by default.
+     *
+     * @param timeoutMs The timeout in milliseconds, or 0 to wait indefinitely.
+     */
+    public void setPrecaptureTimeoutMs(long timeoutMs) {
+        mPrecaptureTimeoutMs = timeoutMs;
+    }
+
+    public long getPrecaptureTimeoutMs() {
+        return mPrecaptureTimeoutMs;
+    }
+
     public void setGpsData(GpsData data) {
         mGpsData = new GpsData(data);
     }
@@ -16,15 +16,69 @@
 
 package com.android.ex.camera2.portability;
 
-import android.os.SystemClock;
-
 import com.android.ex.camera2.portability.debug.Log;
 
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds the state of a camera as a set of bit flags.
+ *
+ * <p>Rather than having threads wait on a monitor for the state to change,
+ * interested parties register a {@link StateWaiter} which is fired by the
+ * thread changing the state, see {@link #whenStates} and
+ * {@link #whenAvoidingStates}.</p>
+ */
 public abstract class CameraStateHolder {
     private static final Log.Tag TAG = new Log.Tag("CamStateHolder");
 
-    private int mState;
-    private boolean mInvalid;
+    private final AtomicInteger mState = new AtomicInteger();
+    private volatile boolean mInvalid;
+    private final Queue<StateWaiter> mWaiters = new ConcurrentLinkedQueue<StateWaiter>();
+
+    /**
+     * An action to run once the state meets a condition.
+     */
+    public static final class StateWaiter {
+        private final int mStates;
+        private final boolean mAvoid;
+        private final Runnable mAction;
+        private final AtomicBoolean mDone = new AtomicBoolean();
+
+        private StateWaiter(int states, boolean avoid, Runnable action) {
+            mStates = states;
+            mAvoid = avoid;
+            mAction = action;
+        }
+
+        private boolean isMetBy(int state) {
+            return mAvoid ? (mStates & state) == 0 : (mStates | state) == mStates;
+        }
+
+        /**
+         * Runs the action, unless it already ran or was cancelled.
+         */
+        private boolean fire() {
+            if (!mDone.compareAndSet(false, true)) {
+                return false;
+            }
+            mAction.run();
+            return true;
+        }
+
+        /**
+         * Prevents the action from running.
+         *
+         * @return {@code false} if the action already ran or is running.
+         */
+        public boolean cancel() {
+            return mDone.compareAndSet(false, true);
+        }
+    }
 
     /**
      * Construct a new instance of @{link CameraStateHolder} with an initial state.
@@ -37,16 +91,16 @@ public abstract class CameraStateHolder {
     }
 
     /**
-     * Change to a new state.
+     * Change to a new state, firing the waiters the new state satisfies on
+     * the calling thread.
      *
      * @param state The new state.
      */
-    public synchronized void setState(int state) {
-        if (mState != state) {
+    public void setState(int state) {
+        if (mState.getAndSet(state) != state) {
             Log.v(TAG, "setState - state = " + Integer.toBinaryString(state));
         }
-        mState = state;
-        this.notifyAll();
+        fireWaiters();
     }
 
     /**
@@ -54,14 +108,14 @@ public abstract class CameraStateHolder {
      *
      * @return The current state.
      */
-    public synchronized int getState() {
-        return mState;
+    public int getState() {
+        return mState.get();
     }
 
     /**
      * Change the state to be invalid. Once invalidated, the state will be invalid forever.
      */
-    public synchronized void invalidate() {
+    public void invalidate() {
         mInvalid = true;
     }
 
@@ -70,49 +124,92 @@ public abstract class CameraStateHolder {
      *
      * @return True if the state is invalid.
      */
-    public synchronized boolean isInvalid() {
+    public boolean isInvalid() {
         return mInvalid;
     }
 
-    private static interface ConditionChecker {
-        /**
-         * @return Whether the condition holds.
-         */
-        boolean success();
+    /**
+     * Runs {@code action} once the state becomes one of the specified. If it
+     * already is, the action runs right away on the calling thread, otherwise
+     * on the thread which changes the state.
+     *
+     * @param states Expected states.
+     * @param action The action to run.
+     * @return The waiter, which may be used to cancel the action.
+     */
+    public StateWaiter whenStates(int states, Runnable action) {
+        return register(new StateWaiter(states, false, action));
+    }
+
+    /**
+     * Runs {@code action} once the state becomes NOT one of the specified,
+     * like {@link #whenStates}.
+     *
+     * @param states States to avoid.
+     * @param action The action to run.
+     * @return The waiter, which may be used to cancel the action.
+     */
+    public StateWaiter whenAvoidingStates(int states, Runnable action) {
+        return register(new StateWaiter(states, true, action));
+    }
+
+    private StateWaiter register(StateWaiter waiter) {
+        if (waiter.isMetBy(getState())) {
+            waiter.fire();
+            return waiter;
+        }
+        mWaiters.offer(waiter);
+        // The state may have changed before the waiter was visible to setState().
+        fireWaiters();
+        return waiter;
+    }
+
+    private void fireWaiters() {
+        for (StateWaiter waiter : mWaiters) {
+            if (waiter.mDone.get()) {
+                mWaiters.remove(waiter);
+            } else if (waiter.isMetBy(getState())) {
+                // Whoever removes the waiter gets to fire it.
+                if (mWaiters.remove(waiter)) {
+                    waiter.fire();
+                }
+            }
+        }
     }
 
     /**
      * A helper method used by {@link #waitToAvoidStates(int)} and
      * {@link #waitForStates(int)}. This method will wait until the
-     * condition is successful.
+     * waiter fires.
      *
-     * @param stateChecker The state checker to be used.
+     * @param avoid Whether to wait for the state to avoid {@code states}.
+     * @param states The states to wait for or avoid.
      * @param timeoutMs The timeout limit in milliseconds.
      * @return {@code false} if the wait is interrupted or timeout limit is
      *         reached.
      */
-    private boolean waitForCondition(ConditionChecker stateChecker,
-            long timeoutMs) {
-        long timeBound = SystemClock.uptimeMillis() + timeoutMs;
-        synchronized (this) {
-            while (!stateChecker.success()) {
-                try {
-                    this.wait(timeoutMs);
-                } catch (InterruptedException ex) {
-                    if (SystemClock.uptimeMillis() > timeBound) {
-                        // Timeout.
-                        Log.w(TAG, "Timeout waiting.");
-                    }
-                    return false;
-                }
+    private boolean waitForCondition(boolean avoid, int states, long timeoutMs) {
+        final CountDownLatch latch = new CountDownLatch(1);
+        StateWaiter waiter = register(new StateWaiter(states, avoid, new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        }));
+        try {
+            if (!latch.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Timeout waiting.");
+                return !waiter.cancel();
             }
+        } catch (InterruptedException ex) {
+            return !waiter.cancel();
         }
         return true;
     }
 
     /**
      * Block the current thread until the state becomes one of the
-     * specified.
+     * specified. Prefer {@link #whenStates}, which doesn't block.
      *
      * @param states Expected states.
      * @return {@code false} if the wait is interrupted or timeout limit is
@@ -120,17 +217,12 @@ public abstract class CameraStateHolder {
      */
     public boolean waitForStates(final int states) {
         Log.v(TAG, "waitForStates - states = " + Integer.toBinaryString(states));
-        return waitForCondition(new ConditionChecker() {
-            @Override
-            public boolean success() {
-                return (states | getState()) == states;
-            }
-        }, CameraAgent.CAMERA_OPERATION_TIMEOUT_MS);
+        return waitForCondition(false, states, CameraAgent.CAMERA_OPERATION_TIMEOUT_MS);
     }
 
     /**
      * Block the current thread until the state becomes NOT one of the
-     * specified.
+     * specified. Prefer {@link #whenAvoidingStates}, which doesn't block.
      *
      * @param states States to avoid.
      * @return {@code false} if the wait is interrupted or timeout limit is
@@ -138,11 +230,6 @@ public abstract class CameraStateHolder {
      */
     public boolean waitToAvoidStates(final int states) {
         Log.v(TAG, "waitToAvoidStates - states = " + Integer.toBinaryString(states));
-        return waitForCondition(new ConditionChecker() {
-            @Override
-            public boolean success() {
-                return (states & getState()) == 0;
-            }
-        }, CameraAgent.CAMERA_OPERATION_TIMEOUT_MS);
+        return waitForCondition(true, states, CameraAgent.CAMERA_OPERATION_TIMEOUT_MS);
     }
 }
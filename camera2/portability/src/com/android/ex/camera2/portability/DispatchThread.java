@@ -18,29 +18,144 @@ package com.android.ex.camera2.portability;
 
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.SystemClock;
+import android.util.SparseArray;
 
 import com.android.ex.camera2.portability.debug.Log;
 
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.LinkedList;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Runs camera jobs in order, off the caller's thread.
+ *
+ * <p>Jobs mostly post messages to the camera handler. They are not run in lock-step with it:
+ * once a job returns, the next one runs right away, while a marker posted after each job tracks
+ * which jobs have been fully handled. Jobs that need to observe the effects of earlier ones on
+ * the camera handler (typically before waiting on the {@link CameraStateHolder}) call
+ * {@link #waitForCameraHandler}.</p>
+ *
+ * <p>Jobs which have to wait for the camera to reach certain states block in
+ * {@link CameraStateHolder#waitForStates}, which the state change itself wakes up. No other job
+ * runs meanwhile, so that jobs keep taking effect in order: a job waiting on a state still holds
+ * up the ones queued after it.</p>
+ *
+ * <p>Jobs queued with a key supersede the pending job with the same key, rather than taking up
+ * another slot, as long as only jobs with keys were queued after it, see
+ * {@link #runJob(Runnable, int)}. When the queue is full, callers block for a while before giving
+ * up, except on the main thread, where they give up right away.</p>
+ */
 public class DispatchThread extends Thread {
     private static final Log.Tag TAG = new Log.Tag("DispatchThread");
-    private static final long MAX_MESSAGE_QUEUE_LENGTH = 256;
+    private static final int MAX_MESSAGE_QUEUE_LENGTH = 256;
 
     private final Queue<Runnable> mJobQueue;
-    private AtomicBoolean mIsEnded;
-    private Handler mCameraHandler;
-    private HandlerThread mCameraHandlerThread;
+    private final AtomicInteger mJobQueueLength;
+    /** Serializes the callers queueing jobs, so that they agree on which jobs are pending. */
+    private final Object mEnqueueLock;
+    /**
+     * The keyed jobs queued since the last job without a key, by key, which later jobs with the
+     * same key may supersede. Guarded by {@link #mEnqueueLock}.
+     */
+    private final SparseArray<KeyedJob> mTailKeyedJobs;
+    private final Object mQueueSpaceLock;
+    private final AtomicInteger mQueueSpaceWaiters;
+    private final AtomicBoolean mIsEnded;
+    private final Handler mCameraHandler;
+    private final HandlerThread mCameraHandlerThread;
+
+    /** Number of jobs run so far, only written by this thread. */
+    private volatile long mDispatchedJobs;
+    /** Number of the last job whose messages have all been processed by the camera handler. */
+    private final AtomicLong mCompletedJobs;
+    private final Object mCompletionLock;
+    private volatile boolean mWaitingForCompletion;
+
+    /**
+     * Posted to the camera handler after each job. Since the handler processes messages in
+     * order, this runs once it has caught up with everything the job sent. Markers carry the
+     * job's sequence number so that ones removed by
+     * {@link Handler#removeCallbacksAndMessages} are covered by the next.
+     */
+    private class CompletionMarker implements Runnable {
+        private final long mJobNumber;
+
+        CompletionMarker(long jobNumber) {
+            mJobNumber = jobNumber;
+        }
+
+        @Override
+        public void run() {
+            long completed = mCompletedJobs.get();
+            while (completed < mJobNumber &&
+                    !mCompletedJobs.compareAndSet(completed, mJobNumber)) {
+                completed = mCompletedJobs.get();
+            }
+            if (mWaitingForCompletion) {
+                synchronized (mCompletionLock) {
+                    mCompletionLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * A keyed job which has to know when a later job with the same key supersedes it, e.g. to tell
+     * its callback that it won't run.
+     */
+    public interface SupersedableJob extends Runnable {
+        /**
+         * Called on the thread queueing the superseding job, instead of {@link #run}.
+         */
+        public void onSuperseded();
+    }
+
+    /**
+     * A queued job which a later one with the same key may still supersede. Whichever of the
+     * dispatcher and the superseding caller takes the job first gets it, along with its queue slot.
+     */
+    private static class KeyedJob implements Runnable {
+        private final AtomicReference<Runnable> mJob;
+
+        KeyedJob(Runnable job) {
+            mJob = new AtomicReference<Runnable>(job);
+        }
+
+        /**
+         * @return The job, or {@code null} if it has been taken already.
+         */
+        Runnable take() {
+            return mJob.getAndSet(null);
+        }
+
+        @Override
+        public void run() {
+            Runnable job = take();
+            if (job != null) {
+                job.run();
+            }
+        }
+    }
 
     public DispatchThread(Handler cameraHandler, HandlerThread cameraHandlerThread) {
         super("Camera Job Dispatch Thread");
-        mJobQueue = new LinkedList<Runnable>();
+        mJobQueue = new ConcurrentLinkedQueue<Runnable>();
+        mJobQueueLength = new AtomicInteger(0);
+        mEnqueueLock = new Object();
+        mTailKeyedJobs = new SparseArray<KeyedJob>();
+        mQueueSpaceLock = new Object();
+        mQueueSpaceWaiters = new AtomicInteger(0);
         mIsEnded = new AtomicBoolean(false);
         mCameraHandler = cameraHandler;
         mCameraHandlerThread = cameraHandlerThread;
+        mCompletedJobs = new AtomicLong(0);
+        mCompletionLock = new Object();
     }
 
     /**
@@ -53,40 +168,239 @@ public class DispatchThread extends Thread {
             throw new IllegalStateException(
                     "Trying to run job on interrupted dispatcher thread");
         }
-        synchronized (mJobQueue) {
-            if (mJobQueue.size() == MAX_MESSAGE_QUEUE_LENGTH) {
-                throw new RuntimeException("Camera master thread job queue full");
+        acquireQueueSlot();
+        synchronized (mEnqueueLock) {
+            // Keyed jobs mustn't move past this one.
+            mTailKeyedJobs.clear();
+            enqueue(job);
+        }
+    }
+
+    /**
+     * Queues up a job which supersedes an earlier job with the same key.
+     *
+     * <p>If a job with the same key is still pending, and only jobs with keys were queued after
+     * it, it is dropped and this job is queued last in its place. Since the jobs left keep their
+     * order, the latest job of each key still takes effect in the order they were queued, e.g.
+     * interleaved settings and focus requests boil down to the latest of each. Jobs without a key
+     * act as barriers, so that keyed jobs never run ahead of them (e.g. closing and reopening the
+     * camera).</p>
+     *
+     * <p>Only use this for jobs which make the earlier ones with the same key redundant (e.g.
+     * applying a full copy of the settings). Keyed jobs of other kinds queued in between then run
+     * without the superseded job's effects, which has to be acceptable for them. Jobs which have
+     * to report that they won't run implement {@link SupersedableJob}.</p>
+     *
+     * @param job The job to run.
+     * @param jobKey The key identifying the kind of job, e.g. a {@link CameraActions} value.
+     */
+    public void runJob(Runnable job, int jobKey) {
+        if (isEnded()) {
+            throw new IllegalStateException(
+                    "Trying to run job on interrupted dispatcher thread");
+        }
+        Runnable superseded;
+        synchronized (mEnqueueLock) {
+            superseded = takeTailKeyedJob(jobKey);
+            if (superseded != null) {
+                // This job takes over the superseded one's queue slot.
+                enqueueKeyed(job, jobKey);
             }
+        }
+        if (superseded == null) {
+            // Not under the lock, since this may wait for the dispatcher.
+            acquireQueueSlot();
+            synchronized (mEnqueueLock) {
+                // Another caller may have queued the same key meanwhile.
+                superseded = takeTailKeyedJob(jobKey);
+                if (superseded != null) {
+                    releaseQueueSlot();
+                }
+                enqueueKeyed(job, jobKey);
+            }
+        }
+        if (superseded != null) {
+            Log.v(TAG, "Superseded pending job " + CameraActions.stringify(jobKey));
+            if (superseded instanceof SupersedableJob) {
+                ((SupersedableJob) superseded).onSuperseded();
+            }
+        }
+    }
 
-            mJobQueue.add(job);
-            mJobQueue.notifyAll();
+    /**
+     * Takes the pending job with the given key out of the queue, if only keyed jobs were queued
+     * after it. Its queue slot is left to the caller. Must be called with {@link #mEnqueueLock}
+     * held.
+     *
+     * @return The job, or {@code null} if there is none or the dispatcher already took it.
+     */
+    private Runnable takeTailKeyedJob(int jobKey) {
+        KeyedJob pending = mTailKeyedJobs.get(jobKey);
+        if (pending == null) {
+            return null;
+        }
+        Runnable job = pending.take();
+        if (job != null) {
+            mJobQueue.remove(pending);
+        }
+        return job;
+    }
+
+    /**
+     * Adds a keyed job to the queue, for which a slot has been acquired. Must be called with
+     * {@link #mEnqueueLock} held.
+     */
+    private void enqueueKeyed(Runnable job, int jobKey) {
+        KeyedJob keyedJob = new KeyedJob(job);
+        mTailKeyedJobs.put(jobKey, keyedJob);
+        enqueue(keyedJob);
+    }
+
+    /**
+     * Adds a job to the queue, for which a slot has been acquired. Must be called with
+     * {@link #mEnqueueLock} held.
+     */
+    private void enqueue(Runnable job) {
+        mJobQueue.offer(job);
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * Reserves room for a job in the queue, waiting for the dispatcher to catch up if it is
+     * full. The main thread doesn't wait, since that could make the app unresponsive.
+     */
+    private void acquireQueueSlot() {
+        if (tryAcquireQueueSlot()) {
+            return;
+        }
+        // Waiting on ourselves would never end.
+        if (Thread.currentThread() != this && Looper.myLooper() != Looper.getMainLooper()) {
+            long timeBound = SystemClock.uptimeMillis() + CameraAgent.CAMERA_OPERATION_TIMEOUT_MS;
+            mQueueSpaceWaiters.incrementAndGet();
+            try {
+                synchronized (mQueueSpaceLock) {
+                    while (true) {
+                        if (tryAcquireQueueSlot()) {
+                            return;
+                        }
+                        long remainingMs = timeBound - SystemClock.uptimeMillis();
+                        if (remainingMs <= 0 || isEnded()) {
+                            break;
+                        }
+                        mQueueSpaceLock.wait(remainingMs);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Log.w(TAG, "Interrupted waiting for room in the job queue");
+            } finally {
+                mQueueSpaceWaiters.decrementAndGet();
+            }
+        }
+        throw new RuntimeException("Camera master thread job queue full");
+    }
+
+    private boolean tryAcquireQueueSlot() {
+        if (mJobQueueLength.incrementAndGet() > MAX_MESSAGE_QUEUE_LENGTH) {
+            mJobQueueLength.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private void releaseQueueSlot() {
+        mJobQueueLength.decrementAndGet();
+        if (mQueueSpaceWaiters.get() > 0) {
+            synchronized (mQueueSpaceLock) {
+                mQueueSpaceLock.notifyAll();
+            }
         }
     }
 
     /**
      * Queues up the job and wait for it to be done.
      *
-     * @param job The job to run.
+     * @param job The job to run. It has to arrange for {@code bundle} to be
+     *            unblocked once done.
+     * @param bundle The bundle signalling the job is done.
      * @param timeoutMs Timeout limit in milliseconds.
      * @param jobMsg The message to log when the job runs timeout.
-     * @return Whether the job finishes before timeout.
+     * @throws IllegalStateException if the job doesn't finish before timeout.
      */
+    public void runJobSync(final Runnable job, CameraAgent.WaitDoneBundle bundle, long timeoutMs,
+            String jobMsg) {
+        runJob(job);
+        if (!bundle.waitDone(timeoutMs)) {
+            throw new IllegalStateException("Timeout waiting " + timeoutMs + "ms for " + jobMsg);
+        }
+    }
+
+    /**
+     * Queues up the job and wait for it to be done.
+     *
+     * @param job The job to run. It has to arrange for {@code waitLock} to be
+     *            notified once done.
+     * @param waitLock The object to wait on, which is locked while queueing
+     *                 the job so that its notification can't be missed.
+     * @param timeoutMs Timeout limit in milliseconds.
+     * @param jobMsg The message to log when the job runs timeout.
+     * @throws IllegalStateException if the job doesn't finish before timeout.
+     * @deprecated A spurious wakeup can't be told apart from the job being
+     *             done, use {@link #runJobSync(Runnable, CameraAgent.WaitDoneBundle,
+     *             long, String)} instead.
+     */
+    @Deprecated
     public void runJobSync(final Runnable job, Object waitLock, long timeoutMs, String jobMsg) {
-        String timeoutMsg = "Timeout waiting " + timeoutMs + "ms for " + jobMsg;
+        long timeBound = SystemClock.uptimeMillis() + timeoutMs;
         synchronized (waitLock) {
-            long timeoutBound = SystemClock.uptimeMillis() + timeoutMs;
+            runJob(job);
             try {
-                runJob(job);
                 waitLock.wait(timeoutMs);
-                if (SystemClock.uptimeMillis() > timeoutBound) {
-                    throw new IllegalStateException(timeoutMsg);
-                }
             } catch (InterruptedException ex) {
-                if (SystemClock.uptimeMillis() > timeoutBound) {
-                    throw new IllegalStateException(timeoutMsg);
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (SystemClock.uptimeMillis() > timeBound) {
+            throw new IllegalStateException("Timeout waiting " + timeoutMs + "ms for " + jobMsg);
+        }
+    }
+
+    /**
+     * Blocks the running job until the camera handler has processed every message sent by the
+     * jobs which ran before it. May only be called from a job.
+     *
+     * @param timeoutMs Timeout limit in milliseconds.
+     * @return {@code false} if the wait is interrupted or timeout limit is
+     *         reached.
+     */
+    public boolean waitForCameraHandler(long timeoutMs) {
+        if (Thread.currentThread() != this) {
+            throw new IllegalStateException("waitForCameraHandler() called outside of a job");
+        }
+        final long target = mDispatchedJobs;
+        if (mCompletedJobs.get() >= target) {
+            return true;
+        }
+
+        long timeBound = SystemClock.uptimeMillis() + timeoutMs;
+        synchronized (mCompletionLock) {
+            mWaitingForCompletion = true;
+            try {
+                while (mCompletedJobs.get() < target) {
+                    long remainingMs = timeBound - SystemClock.uptimeMillis();
+                    if (remainingMs <= 0) {
+                        Log.w(TAG, "Timeout waiting for the camera handler");
+                        return false;
+                    }
+                    mCompletionLock.wait(remainingMs);
                 }
+            } catch (InterruptedException ex) {
+                Log.w(TAG, "Interrupted waiting for the camera handler");
+                return false;
+            } finally {
+                mWaitingForCompletion = false;
             }
         }
+        return true;
     }
 
     /**
@@ -94,9 +408,7 @@ public class DispatchThread extends Thread {
      */
     public void end() {
         mIsEnded.set(true);
-        synchronized(mJobQueue) {
-            mJobQueue.notifyAll();
-        }
+        LockSupport.unpark(this);
     }
 
     private boolean isEnded() {
@@ -106,46 +418,34 @@ public class DispatchThread extends Thread {
     @Override
     public void run() {
         while(true) {
-            Runnable job = null;
-            synchronized (mJobQueue) {
-                while (mJobQueue.size() == 0 && !isEnded()) {
-                    try {
-                        mJobQueue.wait();
-                    } catch (InterruptedException ex) {
-                        Log.w(TAG, "Dispatcher thread wait() interrupted, exiting");
-                        break;
-                    }
-                }
-
-                job = mJobQueue.poll();
-            }
-
+            Runnable job = mJobQueue.poll();
             if (job == null) {
-                // mJobQueue.poll() returning null means wait() is
-                // interrupted and the queue is empty.
                 if (isEnded()) {
                     break;
                 }
+                // runJob() and end() unpark us after updating the queue or flag, so a wake-up
+                // between the checks above and this call isn't lost.
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    Log.w(TAG, "Dispatcher thread interrupted while idle");
+                }
                 continue;
             }
-
-            job.run();
-
-            synchronized (DispatchThread.this) {
-                mCameraHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        synchronized (DispatchThread.this) {
-                            DispatchThread.this.notifyAll();
-                        }
-                    }
-                });
-                try {
-                    DispatchThread.this.wait();
-                } catch (InterruptedException ex) {
-                    // TODO: do something here.
+            if (job instanceof KeyedJob) {
+                job = ((KeyedJob) job).take();
+                if (job == null) {
+                    // Superseded, and its queue slot went to the superseding job.
+                    continue;
                 }
             }
+            releaseQueueSlot();
+
+            try {
+                job.run();
+            } finally {
+                mDispatchedJobs++;
+                mCameraHandler.post(new CompletionMarker(mDispatchedJobs));
+            }
         }
         mCameraHandlerThread.quitSafely();
     }
@@ -19,34 +19,150 @@ package com.android.ex.camera2.portability;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
+import android.os.Trace;
 
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
 
+/**
+ * A handler which keeps a history of the messages it handled, along with
+ * when they were handled and for how long, for error reports. The timings
+ * also feed the agent's {@link CameraActionMetrics} and systrace.
+ *
+ * <p>The history is kept in preallocated arrays, so that recording it doesn't
+ * allocate anything on the handler's thread. It is only accessed from that
+ * thread, so this class isn't thread-safe, apart from sending messages.</p>
+ */
 class HistoryHandler extends Handler {
     private static final int MAX_HISTORY_SIZE = 400;
+    /** Marks the very beginning of the history in dumps. */
+    private static final int HISTORY_START = -1;
+    private static final long NO_DURATION = -1;
+
+    // A ring buffer of parallel arrays, indexed by message count modulo their length.
+    private final int[] mMsgWhats = new int[MAX_HISTORY_SIZE];
+    private final long[] mMsgStartNs = new long[MAX_HISTORY_SIZE];
+    /** {@link #NO_DURATION} while the message is still being handled. */
+    private final long[] mMsgDurationNs = new long[MAX_HISTORY_SIZE];
+    private long mMsgCount;
+    private boolean mDispatching;
+    /** Where the message being dispatched was recorded, or -1 if it wasn't. */
+    private int mDispatchedMsgIndex = -1;
+
+    private final CameraActionMetrics mMetrics;
+
+    /**
+     * When the pending messages were sent, or for delayed ones when they were
+     * due, in {@link System#nanoTime()} terms. Messages sent at the front of
+     * the queue aren't recorded, since they can't be intercepted. Weak so that
+     * messages removed before being dispatched don't pile up.
+     */
+    private final Map<Message, SendTime> mSendTimes =
+            Collections.synchronizedMap(new WeakHashMap<Message, SendTime>());
+    /** When the message being dispatched was due, or 0 if unknown. */
+    private long mDispatchedMsgDueNs;
 
-    final LinkedList<Integer> mMsgHistory;
+    private static class SendTime {
+        /** The {@link Message#getWhen()} the message was sent with. */
+        final long when;
+        final long dueNs;
 
-    HistoryHandler(Looper looper) {
+        SendTime(long when, long dueNs) {
+            this.when = when;
+            this.dueNs = dueNs;
+        }
+    }
+
+    HistoryHandler(Looper looper, CameraActionMetrics metrics) {
         super(looper);
-        mMsgHistory = new LinkedList<Integer>();
-        // We add a -1 at the beginning to mark the very beginning of the
-        // history.
-        mMsgHistory.offerLast(-1);
+        mMetrics = metrics;
     }
 
-    Integer getCurrentMessage() {
-        return mMsgHistory.peekLast();
+    /**
+     * @return The {@code what} of the last message handled, or -1 if none was.
+     */
+    int getCurrentMessage() {
+        if (mMsgCount == 0) {
+            return HISTORY_START;
+        }
+        return mMsgWhats[(int) ((mMsgCount - 1) % MAX_HISTORY_SIZE)];
     }
 
+    /**
+     * Dumps the history, oldest message first, as
+     * {@code HIST_ID<camera id>[_-1]{_<what>:<start ms>:<duration us>}_HEND}.
+     * A leading {@code -1} marks the very beginning of the history, i.e. that
+     * no message was dropped. Start times are relative to the oldest message
+     * dumped, and the duration of the message being handled is {@code -}.
+     */
     String generateHistoryString(int cameraId) {
-        String info = new String("HIST");
-        info += "_ID" + cameraId;
-        for (Integer msg : mMsgHistory) {
-            info = info + '_' + msg.toString();
+        int count = (int) Math.min(mMsgCount, MAX_HISTORY_SIZE);
+        // Roughly the longest entry, so that the builder doesn't need to grow.
+        StringBuilder info = new StringBuilder(16 + count * 24);
+        info.append("HIST_ID").append(cameraId);
+        if (mMsgCount <= MAX_HISTORY_SIZE) {
+            info.append('_').append(HISTORY_START);
+        }
+        long firstStartNs = 0;
+        for (long i = mMsgCount - count; i < mMsgCount; ++i) {
+            int index = (int) (i % MAX_HISTORY_SIZE);
+            if (i == mMsgCount - count) {
+                firstStartNs = mMsgStartNs[index];
+            }
+            info.append('_').append(mMsgWhats[index])
+                    .append(':').append((mMsgStartNs[index] - firstStartNs) / 1000000)
+                    .append(':');
+            if (mMsgDurationNs[index] == NO_DURATION) {
+                info.append('-');
+            } else {
+                info.append(mMsgDurationNs[index] / 1000);
+            }
+        }
+        info.append("_HEND");
+        return info.toString();
+    }
+
+    /**
+     * Records when the message is sent, to time how long it is queued.
+     */
+    @Override
+    public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+        long delayMs = Math.max(0, uptimeMillis - SystemClock.uptimeMillis());
+        SendTime sendTime = new SendTime(uptimeMillis, System.nanoTime() + delayMs * 1000000L);
+        mSendTimes.put(msg, sendTime);
+        if (!super.sendMessageAtTime(msg, uptimeMillis)) {
+            mSendTimes.remove(msg);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Times the handling of the messages recorded by {@link #handleMessage}.
+     */
+    @Override
+    public void dispatchMessage(Message msg) {
+        SendTime sendTime = mSendTimes.remove(msg);
+        // A removed message may have been recycled and sent at the front of the queue since.
+        mDispatchedMsgDueNs =
+                sendTime != null && sendTime.when == msg.getWhen() ? sendTime.dueNs : 0;
+        mDispatching = true;
+        mDispatchedMsgIndex = -1;
+        try {
+            super.dispatchMessage(msg);
+        } finally {
+            mDispatching = false;
+            if (mDispatchedMsgIndex >= 0) {
+                int index = mDispatchedMsgIndex;
+                mDispatchedMsgIndex = -1;
+                mMsgDurationNs[index] = System.nanoTime() - mMsgStartNs[index];
+                Trace.endSection();
+                mMetrics.recordAction(mMsgWhats[index], CameraActionMetrics.PHASE_HANDLED,
+                        mMsgDurationNs[index]);
+            }
         }
-        info += "_HEND";
-        return info;
     }
 
     /**
@@ -54,9 +170,18 @@ class HistoryHandler extends Handler {
      */
     @Override
     public void handleMessage(Message msg) {
-        mMsgHistory.offerLast(msg.what);
-        while (mMsgHistory.size() > MAX_HISTORY_SIZE) {
-            mMsgHistory.pollFirst();
+        int index = (int) (mMsgCount++ % MAX_HISTORY_SIZE);
+        mMsgWhats[index] = msg.what;
+        mMsgStartNs[index] = System.nanoTime();
+        mMsgDurationNs[index] = NO_DURATION;
+        if (mDispatching) {
+            // Otherwise, nothing would end the timing.
+            mDispatchedMsgIndex = index;
+            Trace.beginSection(CameraActions.stringify(msg.what));
+            if (mDispatchedMsgDueNs != 0) {
+                mMetrics.recordAction(msg.what, CameraActionMetrics.PHASE_QUEUED,
+                        Math.max(0, mMsgStartNs[index] - mDispatchedMsgDueNs));
+            }
         }
     }
 }
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.camera2.portability;
+
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.media.Image;
+
+/**
+ * Keeps the most recent full resolution frames of a repeating request, along
+ * with their capture results, so that a picture can be produced by
+ * reprocessing one of them instead of capturing a new frame.
+ *
+ * <p>Images and results arrive independently and are paired by sensor
+ * timestamp. This class isn't thread-safe; it is only used from the camera
+ * handler thread.</p>
+ */
+class ZslRingBuffer {
+    private final Image[] mImages;
+    private final TotalCaptureResult[] mResults;
+    /** Results which arrived before their image, oldest first. */
+    private final TotalCaptureResult[] mPendingResults;
+    /** Index of the oldest entry. */
+    private int mHead;
+    private int mCount;
+    private int mPendingResultCount;
+
+    /**
+     * @param capacity How many frames to keep. The {@link android.media.ImageReader}
+     *                 feeding this buffer must allow acquiring at least one more
+     *                 image than that.
+     */
+    ZslRingBuffer(int capacity) {
+        mImages = new Image[capacity];
+        mResults = new TotalCaptureResult[capacity];
+        mPendingResults = new TotalCaptureResult[capacity];
+    }
+
+    /**
+     * Adds a newly captured image, closing the oldest one if the buffer is full.
+     */
+    void addImage(Image image) {
+        if (mCount == mImages.length) {
+            removeOldest().close();
+        }
+        int index = (mHead + mCount) % mImages.length;
+        mImages[index] = image;
+        mResults[index] = null;
+        ++mCount;
+
+        long timestamp = image.getTimestamp();
+        for (int i = 0; i < mPendingResultCount; ++i) {
+            if (getTimestamp(mPendingResults[i]) == timestamp) {
+                mResults[index] = mPendingResults[i];
+                removePendingResult(i);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Adds the capture result of a frame, whose image may or may not have
+     * arrived already.
+     */
+    void addResult(TotalCaptureResult result) {
+        long timestamp = getTimestamp(result);
+        for (int i = 0; i < mCount; ++i) {
+            int index = (mHead + i) % mImages.length;
+            if (mResults[index] == null && mImages[index].getTimestamp() == timestamp) {
+                mResults[index] = result;
+                return;
+            }
+        }
+
+        if (mPendingResultCount == mPendingResults.length) {
+            // The image of the oldest one has either been dropped or will never come.
+            removePendingResult(0);
+        }
+        mPendingResults[mPendingResultCount++] = result;
+    }
+
+    /**
+     * Removes the most recent frame for which both the image and the result
+     * are available.
+     *
+     * @return The frame, whose image is now owned by the caller, or
+     *         {@code null} if there is none.
+     */
+    Frame takeLatest() {
+        for (int i = mCount - 1; i >= 0; --i) {
+            int index = (mHead + i) % mImages.length;
+            if (mResults[index] != null) {
+                Frame frame = new Frame(mImages[index], mResults[index]);
+                // Close the gap, keeping entries in capture order.
+                for (int j = i; j < mCount - 1; ++j) {
+                    int to = (mHead + j) % mImages.length;
+                    int from = (mHead + j + 1) % mImages.length;
+                    mImages[to] = mImages[from];
+                    mResults[to] = mResults[from];
+                }
+                --mCount;
+                int last = (mHead + mCount) % mImages.length;
+                mImages[last] = null;
+                mResults[last] = null;
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Closes all the images held and forgets all results.
+     */
+    void clear() {
+        while (mCount > 0) {
+            removeOldest().close();
+        }
+        while (mPendingResultCount > 0) {
+            mPendingResults[--mPendingResultCount] = null;
+        }
+        mHead = 0;
+    }
+
+    private Image removeOldest() {
+        Image image = mImages[mHead];
+        mImages[mHead] = null;
+        mResults[mHead] = null;
+        mHead = (mHead + 1) % mImages.length;
+        --mCount;
+        return image;
+    }
+
+    private void removePendingResult(int index) {
+        System.arraycopy(mPendingResults, index + 1, mPendingResults, index,
+                mPendingResultCount - index - 1);
+        mPendingResults[--mPendingResultCount] = null;
+    }
+
+    private static long getTimestamp(CaptureResult result) {
+        Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        return timestamp != null ? timestamp : -1;
+    }
+
+    /** A buffered image along with the capture result it was produced with. */
+    static class Frame {
+        final Image image;
+        final TotalCaptureResult result;
+
+        Frame(Image image, TotalCaptureResult result) {
+            this.image = image;
+            this.result = result;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.camera2.portability;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.SurfaceTexture;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import com.android.ex.camera2.portability.CameraAgent.CameraBurstCallback;
+import com.android.ex.camera2.portability.CameraAgent.CameraProxy;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the overhead the portability layer adds to camera operations, by
+ * running {@link CameraAgent}'s dispatch thread, state holder, history handler
+ * and callback forwarding against a {@link SimulatedCameraAgent}.
+ *
+ * <p>Unless stated otherwise, the simulated device takes no time at all, so
+ * the latencies reported are the framework's own. The results are printed to
+ * standard output; only the correctness of the operations is asserted, since
+ * timings vary too much from host to host.</p>
+ */
+@RunWith(RobolectricTestRunner.class)
+public class CameraAgentBenchmark {
+    private static final int WARMUP_ITERATIONS = 20;
+    private static final int ITERATIONS = 200;
+    private static final int BURST_LENGTH = 100;
+    private static final long TIMEOUT_MS = 5000;
+
+    private HandlerThread mCallbackThread;
+    private Handler mCallbackHandler;
+    private SimulatedCameraAgent mAgent;
+
+    @Before
+    public void setUp() {
+        mCallbackThread = new HandlerThread("Benchmark Callback Thread");
+        mCallbackThread.start();
+        mCallbackHandler = new Handler(mCallbackThread.getLooper());
+    }
+
+    @After
+    public void tearDown() {
+        if (mAgent != null) {
+            System.out.println(mAgent.getActionMetrics().dump());
+            mAgent.recycle();
+            mAgent = null;
+        }
+        mCallbackThread.quitSafely();
+    }
+
+    @Test
+    public void openAndClose() throws Exception {
+        mAgent = new SimulatedCameraAgent(new SimulatedCameraAgent.Latencies());
+        long[] samples = new long[ITERATIONS];
+        for (int i = -WARMUP_ITERATIONS; i < ITERATIONS; ++i) {
+            long start = System.nanoTime();
+            CameraProxy camera =
+                    mAgent.openCameraFuture(0).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            mAgent.closeCamera(camera, true);
+            record(samples, i, start);
+        }
+        report("open + close", samples, 0);
+    }
+
+    @Test
+    public void applySettings() throws Exception {
+        mAgent = new SimulatedCameraAgent(new SimulatedCameraAgent.Latencies());
+        CameraProxy camera = openAndStartPreview();
+        CameraSettings settings = camera.getSettings();
+        long[] samples = new long[ITERATIONS];
+        for (int i = -WARMUP_ITERATIONS; i < ITERATIONS; ++i) {
+            settings.setExposureCompensationIndex(0);
+            long start = System.nanoTime();
+            camera.applySettingsFuture(settings).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            record(samples, i, start);
+        }
+        report("applySettings", samples, 0);
+    }
+
+    @Test
+    public void autoFocus() throws Exception {
+        mAgent = new SimulatedCameraAgent(new SimulatedCameraAgent.Latencies());
+        CameraProxy camera = openAndStartPreview();
+        long[] samples = new long[ITERATIONS];
+        for (int i = -WARMUP_ITERATIONS; i < ITERATIONS; ++i) {
+            long start = System.nanoTime();
+            assertTrue(camera.autoFocusFuture().get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            record(samples, i, start);
+            camera.cancelAutoFocus();
+        }
+        report("autoFocus", samples, 0);
+    }
+
+    @Test
+    public void takePicture() throws Exception {
+        mAgent = new SimulatedCameraAgent(new SimulatedCameraAgent.Latencies());
+        measureTakePicture("takePicture", 0);
+    }
+
+    /**
+     * Checks that the overhead holds up when the device takes realistic
+     * times, i.e. that no framework work is serialized behind the device's.
+     */
+    @Test
+    public void takePictureWithDeviceLatency() throws Exception {
+        SimulatedCameraAgent.Latencies latencies = new SimulatedCameraAgent.Latencies();
+        latencies.frameIntervalMs = 33;
+        latencies.captureMs = 50;
+        mAgent = new SimulatedCameraAgent(latencies);
+        measureTakePicture("takePicture (simulated device)",
+                TimeUnit.MILLISECONDS.toNanos(latencies.frameIntervalMs + latencies.captureMs));
+    }
+
+    @Test
+    public void burstThroughput() throws Exception {
+        mAgent = new SimulatedCameraAgent(new SimulatedCameraAgent.Latencies());
+        CameraProxy camera = openAndStartPreview();
+        captureBurst(camera, WARMUP_ITERATIONS);
+
+        long start = System.nanoTime();
+        captureBurst(camera, BURST_LENGTH);
+        long elapsedNs = System.nanoTime() - start;
+        System.out.println(String.format(Locale.US, "burst of %d: %.1f ms, %.0f pictures/s",
+                BURST_LENGTH, elapsedNs / 1e6, BURST_LENGTH * 1e9 / elapsedNs));
+    }
+
+    private CameraProxy openAndStartPreview() throws Exception {
+        CameraProxy camera = mAgent.openCameraFuture(0).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull(camera);
+        camera.setPreviewTexture(new SurfaceTexture(0));
+        camera.startPreviewFuture().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        return camera;
+    }
+
+    private void measureTakePicture(String name, long deviceNs) throws Exception {
+        CameraProxy camera = openAndStartPreview();
+        long[] samples = new long[ITERATIONS];
+        for (int i = -WARMUP_ITERATIONS; i < ITERATIONS; ++i) {
+            long start = System.nanoTime();
+            byte[] jpeg = camera.takePictureFuture(mCallbackHandler, null)
+                    .get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            record(samples, i, start);
+            assertNotNull(jpeg);
+        }
+        report(name, samples, deviceNs);
+    }
+
+    private void captureBurst(CameraProxy camera, int count) throws InterruptedException {
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicInteger pictures = new AtomicInteger();
+        final AtomicInteger delivered = new AtomicInteger();
+        camera.captureBurst(mCallbackHandler, count, null, new CameraBurstCallback() {
+            @Override
+            public void onPictureTaken(int index, byte[] data, CameraProxy camera) {
+                pictures.incrementAndGet();
+            }
+
+            @Override
+            public void onBurstFinished(int count, CameraProxy camera) {
+                delivered.set(count);
+                finished.countDown();
+            }
+        });
+        assertTrue("Burst timed out", finished.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(count, delivered.get());
+        assertEquals(count, pictures.get());
+    }
+
+    /**
+     * Records the time since {@code startNs} as the {@code iteration}th
+     * sample, unless it's a warm-up iteration, i.e. a negative one.
+     */
+    private static void record(long[] samples, int iteration, long startNs) {
+        long elapsedNs = System.nanoTime() - startNs;
+        if (iteration >= 0) {
+            samples[iteration] = elapsedNs;
+        }
+    }
+
+    /**
+     * Prints the distribution of the samples, less the time spent by the
+     * simulated device.
+     */
+    private static void report(String name, long[] samples, long deviceNs) {
+        long[] sorted = Arrays.copyOf(samples, samples.length);
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long sample : sorted) {
+            total += sample - deviceNs;
+        }
+        System.out.println(String.format(Locale.US,
+                "%s overhead: mean %d us, p50 %d us, p90 %d us, max %d us (%d samples)",
+                name, total / sorted.length / 1000,
+                (sorted[sorted.length / 2] - deviceNs) / 1000,
+                (sorted[sorted.length * 9 / 10] - deviceNs) / 1000,
+                (sorted[sorted.length - 1] - deviceNs) / 1000, sorted.length));
+    }
+}
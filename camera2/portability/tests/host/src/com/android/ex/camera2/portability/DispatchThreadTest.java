@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.camera2.portability;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(RobolectricTestRunner.class)
+public class DispatchThreadTest {
+    private static final long TIMEOUT_MS = 5000;
+
+    private HandlerThread mCameraHandlerThread;
+    private DispatchThread mDispatchThread;
+    private final List<String> mRan = Collections.synchronizedList(new ArrayList<String>());
+    /** Holds up the dispatcher, so that the jobs queued meanwhile stay pending. */
+    private final CountDownLatch mUnblock = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws InterruptedException {
+        mCameraHandlerThread = new HandlerThread("Test Camera Handler Thread");
+        mCameraHandlerThread.start();
+        mDispatchThread = new DispatchThread(new Handler(mCameraHandlerThread.getLooper()),
+                mCameraHandlerThread);
+        mDispatchThread.start();
+
+        final CountDownLatch blocked = new CountDownLatch(1);
+        mDispatchThread.runJob(new Runnable() {
+            @Override
+            public void run() {
+                blocked.countDown();
+                try {
+                    mUnblock.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+            }});
+        assertTrue(blocked.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @After
+    public void tearDown() {
+        mUnblock.countDown();
+        mDispatchThread.end();
+    }
+
+    /**
+     * Ensure that consecutive pending jobs with the same key are coalesced into the last one.
+     */
+    @Test
+    public void keyedJobsCoalesce() throws InterruptedException {
+        mDispatchThread.runJob(job("settings A"), CameraActions.APPLY_SETTINGS);
+        mDispatchThread.runJob(job("settings B"), CameraActions.APPLY_SETTINGS);
+        mDispatchThread.runJob(job("settings C"), CameraActions.APPLY_SETTINGS);
+        assertEquals(Arrays.asList("settings C"), runQueuedJobs());
+    }
+
+    /**
+     * Ensure that keyed jobs never jump over the jobs queued before them, like closing and
+     * reopening the camera, so that the new camera gets the latest settings and preview texture.
+     */
+    @Test
+    public void keyedJobsDontCrossCloseAndOpen() throws InterruptedException {
+        mDispatchThread.runJob(job("settings A"), CameraActions.APPLY_SETTINGS);
+        mDispatchThread.runJob(job("texture A"), CameraActions.SET_PREVIEW_TEXTURE_ASYNC);
+        mDispatchThread.runJob(job("close"));
+        mDispatchThread.runJob(job("open"));
+        mDispatchThread.runJob(job("settings B"), CameraActions.APPLY_SETTINGS);
+        mDispatchThread.runJob(job("texture B"), CameraActions.SET_PREVIEW_TEXTURE_ASYNC);
+        assertEquals(Arrays.asList("settings A", "texture A", "close", "open", "settings B",
+                "texture B"), runQueuedJobs());
+    }
+
+    /**
+     * Ensure that a keyed job supersedes a pending one with the same key past jobs with other
+     * keys, and that the jobs left keep the order they were queued in.
+     */
+    @Test
+    public void keyedJobsSupersedePastOtherKeys() throws InterruptedException {
+        mDispatchThread.runJob(job("settings A"), CameraActions.APPLY_SETTINGS);
+        mDispatchThread.runJob(job("texture A"), CameraActions.SET_PREVIEW_TEXTURE_ASYNC);
+        mDispatchThread.runJob(job("settings B"), CameraActions.APPLY_SETTINGS);
+        assertEquals(Arrays.asList("texture A", "settings B"), runQueuedJobs());
+    }
+
+    /**
+     * Ensure that a touch-to-focus flood from the main thread, alternating settings and focus
+     * requests, boils down to the latest of each instead of filling up the queue, and that the
+     * superseded focus requests are told so.
+     */
+    @Test
+    public void alternatingKeyedJobsDontFillQueueFromMainThread() throws InterruptedException {
+        assertEquals(Looper.getMainLooper(), Looper.myLooper());
+        final AtomicInteger superseded = new AtomicInteger();
+        final int requests = 1000;
+        for (int i = 0; i < requests; i++) {
+            final String name = "focus " + i;
+            mDispatchThread.runJob(job("settings " + i), CameraActions.APPLY_SETTINGS);
+            mDispatchThread.runJob(new DispatchThread.SupersedableJob() {
+                @Override
+                public void run() {
+                    mRan.add(name);
+                }
+
+                @Override
+                public void onSuperseded() {
+                    superseded.incrementAndGet();
+                }}, CameraActions.AUTO_FOCUS);
+        }
+        assertEquals(Arrays.asList("settings " + (requests - 1), "focus " + (requests - 1)),
+                runQueuedJobs());
+        assertEquals(requests - 1, superseded.get());
+    }
+
+    private Runnable job(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                mRan.add(name);
+            }};
+    }
+
+    /**
+     * Lets the dispatcher go and waits for it to run everything queued so far.
+     */
+    private List<String> runQueuedJobs() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        mDispatchThread.runJob(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }});
+        mUnblock.countDown();
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        return new ArrayList<String>(mRan);
+    }
+}
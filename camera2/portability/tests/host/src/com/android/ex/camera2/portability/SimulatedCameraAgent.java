@@ -0,0 +1,715 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.ex.camera2.portability;
+
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+
+import com.android.ex.camera2.portability.debug.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link CameraAgent} driving a simulated camera device instead of a camera
+ * framework, so that the portability layer's own dispatching, state tracking
+ * and callback forwarding can run, and be measured, on a host.
+ *
+ * <p>Like camera2 callbacks, every device operation completes asynchronously
+ * on the camera handler, after the latency configured for it. The latencies
+ * are waited out on a device thread of their own rather than by delaying
+ * messages, so that they are real even where the handlers' clock is not, as
+ * under Robolectric.</p>
+ */
+class SimulatedCameraAgent extends CameraAgent {
+    private static final Log.Tag TAG = new Log.Tag("SimCamAgnt");
+
+    static final Size PREVIEW_SIZE = new Size(1920, 1080);
+    static final Size PHOTO_SIZE = new Size(4000, 3000);
+    private static final int JPEG_SIZE = 64 * 1024;
+
+    /**
+     * Latencies of the simulated device in milliseconds, all 0 by default so
+     * that only the overhead of the portability layer is left.
+     */
+    static class Latencies {
+        /** From opening the device to it being opened. */
+        long openMs;
+        /** From setting the preview texture to the session being configured. */
+        long sessionMs;
+        /** Between preview frames, and so between the pictures of a burst. */
+        long frameIntervalMs;
+        /** From triggering autofocus to the lens being locked. */
+        long focusMs;
+        /** From requesting a picture to its JPEG being encoded. */
+        long captureMs;
+    }
+
+    private final Latencies mLatencies;
+    private final HandlerThread mCameraHandlerThread;
+    private final SimulatedHandler mCameraHandler;
+    private final SimulatedStateHolder mCameraState;
+    private final DispatchThread mDispatchThread;
+    private final ScheduledExecutorService mDeviceExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+    private final CameraCapabilities mCapabilities;
+    private final byte[] mJpeg = new byte[JPEG_SIZE];
+    private CameraExceptionHandler mExceptionHandler;
+
+    SimulatedCameraAgent(Latencies latencies) {
+        mLatencies = latencies;
+        mCameraHandlerThread = new HandlerThread("Simulated Camera Handler Thread");
+        mCameraHandlerThread.start();
+        mCameraHandler = new SimulatedHandler(mCameraHandlerThread.getLooper());
+        mExceptionHandler = new CameraExceptionHandler(mCameraHandler);
+        mCameraState = new SimulatedStateHolder();
+        mDispatchThread = new DispatchThread(mCameraHandler, mCameraHandlerThread);
+        mDispatchThread.start();
+
+        mCapabilities = new CameraCapabilities(new CameraCapabilities.Stringifier());
+        mCapabilities.mSupportedPreviewSizes.add(PREVIEW_SIZE);
+        mCapabilities.mSupportedPhotoSizes.add(PHOTO_SIZE);
+        mCapabilities.mSupportedFocusModes.add(CameraCapabilities.FocusMode.AUTO);
+        mCapabilities.mSupportedFlashModes.add(CameraCapabilities.FlashMode.OFF);
+    }
+
+    @Override
+    public void setCameraExceptionHandler(CameraExceptionHandler exceptionHandler) {
+        mExceptionHandler = exceptionHandler;
+    }
+
+    @Override
+    public void recycle() {
+        closeCamera(null, true);
+        mDispatchThread.end();
+        mDeviceExecutor.shutdownNow();
+        mCameraState.invalidate();
+    }
+
+    @Override
+    public CameraDeviceInfo getCameraDeviceInfo() {
+        return new SimulatedDeviceInfo();
+    }
+
+    @Override
+    protected Handler getCameraHandler() {
+        return mCameraHandler;
+    }
+
+    @Override
+    protected DispatchThread getDispatchThread() {
+        return mDispatchThread;
+    }
+
+    @Override
+    protected CameraStateHolder getCameraState() {
+        return mCameraState;
+    }
+
+    @Override
+    protected CameraExceptionHandler getCameraExceptionHandler() {
+        return mExceptionHandler;
+    }
+
+    /** A picture requested from the camera handler, with its forwarding callbacks. */
+    private static class PictureRequest {
+        final CameraShutterCallback shutter;
+        final CameraPictureCallback jpeg;
+
+        PictureRequest(CameraShutterCallback shutter, CameraPictureCallback jpeg) {
+            this.shutter = shutter;
+            this.jpeg = jpeg;
+        }
+    }
+
+    private class SimulatedHandler extends HistoryHandler {
+        private SimulatedCameraProxy mCameraProxy;
+        private Burst mBurst;
+        /** Incremented whenever the device is closed, to drop its outstanding work. */
+        private int mDeviceGeneration;
+
+        SimulatedHandler(Looper looper) {
+            super(looper, getActionMetrics());
+        }
+
+        /**
+         * Simulates the device completing some work after a latency, on this
+         * handler. Must be called on this handler's thread.
+         */
+        private void completeLater(final Runnable completion, long latencyMs) {
+            final int generation = mDeviceGeneration;
+            final Runnable callback = new Runnable() {
+                @Override
+                public void run() {
+                    if (generation == mDeviceGeneration) {
+                        completion.run();
+                    }
+                }};
+            if (latencyMs <= 0) {
+                post(callback);
+                return;
+            }
+            mDeviceExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    post(callback);
+                }}, latencyMs, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void handleMessage(final Message msg) {
+            super.handleMessage(msg);
+            try {
+                switch (msg.what) {
+                    case CameraActions.OPEN_CAMERA: {
+                        final CameraOpenCallback openCallback = (CameraOpenCallback) msg.obj;
+                        final int cameraId = msg.arg1;
+                        if (mCameraState.getState() != SimulatedStateHolder.CAMERA_UNOPENED) {
+                            openCallback.onDeviceOpenedAlready(cameraId,
+                                    generateHistoryString(cameraId));
+                            break;
+                        }
+                        completeLater(new Runnable() {
+                            @Override
+                            public void run() {
+                                mCameraProxy = new SimulatedCameraProxy(cameraId);
+                                mCameraState.setState(SimulatedStateHolder.CAMERA_IDLE);
+                                openCallback.onCameraOpened(mCameraProxy);
+                            }}, mLatencies.openMs);
+                        break;
+                    }
+
+                    case CameraActions.RELEASE: {
+                        ++mDeviceGeneration;
+                        mBurst = null;
+                        mCameraProxy = null;
+                        mCameraState.setState(SimulatedStateHolder.CAMERA_UNOPENED);
+                        break;
+                    }
+
+                    case CameraActions.SET_PREVIEW_TEXTURE_ASYNC: {
+                        if (mCameraState.getState() != SimulatedStateHolder.CAMERA_IDLE) {
+                            Log.w(TAG, "Ignoring texture setting at inappropriate time");
+                            break;
+                        }
+                        completeLater(new Runnable() {
+                            @Override
+                            public void run() {
+                                mCameraState.setState(SimulatedStateHolder.CAMERA_PREVIEW_READY);
+                            }}, mLatencies.sessionMs);
+                        break;
+                    }
+
+                    case CameraActions.START_PREVIEW_ASYNC: {
+                        if (mCameraState.getState() !=
+                                SimulatedStateHolder.CAMERA_PREVIEW_READY) {
+                            Log.w(TAG, "Refusing to start preview at inappropriate time");
+                            notifyPreviewStartFailed((CameraStartPreviewCallback) msg.obj,
+                                    "Refusing to start preview at inappropriate time");
+                            break;
+                        }
+                        final CameraStartPreviewCallback cb =
+                                (CameraStartPreviewCallback) msg.obj;
+                        mCameraState.setState(SimulatedStateHolder.CAMERA_PREVIEW_ACTIVE);
+                        if (cb != null) {
+                            // Started once the first frame arrives.
+                            completeLater(new Runnable() {
+                                @Override
+                                public void run() {
+                                    cb.onPreviewStarted();
+                                }}, mLatencies.frameIntervalMs);
+                        }
+                        break;
+                    }
+
+                    case CameraActions.STOP_PREVIEW: {
+                        if (mCameraState.getState() <
+                                SimulatedStateHolder.CAMERA_PREVIEW_ACTIVE) {
+                            Log.w(TAG, "Refusing to stop preview at inappropriate time");
+                            break;
+                        }
+                        if (mBurst != null) {
+                            mBurst.stop();
+                        }
+                        mCameraState.setState(SimulatedStateHolder.CAMERA_PREVIEW_READY);
+                        break;
+                    }
+
+                    case CameraActions.APPLY_SETTINGS: {
+                        if (mCameraProxy != null) {
+                            mCameraProxy.mLastSettings = (CameraSettings) msg.obj;
+                        }
+                        break;
+                    }
+
+                    case CameraActions.AUTO_FOCUS: {
+                        if (mCameraState.getState() <
+                                SimulatedStateHolder.CAMERA_PREVIEW_ACTIVE) {
+                            Log.w(TAG, "Ignoring attempt to autofocus without preview");
+                            break;
+                        }
+                        final CameraAFCallback cb = (CameraAFCallback) msg.obj;
+                        mCameraState.setState(SimulatedStateHolder.CAMERA_FOCUS_LOCKED);
+                        completeLater(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (cb != null && mCameraState.getState() ==
+                                        SimulatedStateHolder.CAMERA_FOCUS_LOCKED) {
+                                    cb.onAutoFocus(true, mCameraProxy);
+                                }
+                            }}, mLatencies.focusMs);
+                        break;
+                    }
+
+                    case CameraActions.CANCEL_AUTO_FOCUS: {
+                        if (mCameraState.getState() ==
+                                SimulatedStateHolder.CAMERA_FOCUS_LOCKED) {
+                            mCameraState.setState(SimulatedStateHolder.CAMERA_PREVIEW_ACTIVE);
+                        }
+                        break;
+                    }
+
+                    case CameraActions.CAPTURE_PHOTO: {
+                        if (mCameraState.getState() <
+                                SimulatedStateHolder.CAMERA_PREVIEW_ACTIVE) {
+                            Log.e(TAG, "Photos may only be taken when a preview is active");
+                            break;
+                        }
+                        final PictureRequest request = (PictureRequest) msg.obj;
+                        if (request.shutter != null) {
+                            completeLater(new Runnable() {
+                                @Override
+                                public void run() {
+                                    request.shutter.onShutter(mCameraProxy);
+                                }}, mLatencies.frameIntervalMs);
+                        }
+                        completeLater(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (request.jpeg != null) {
+                                    request.jpeg.onPictureTaken(mJpeg, mCameraProxy);
+                                }
+                            }}, mLatencies.frameIntervalMs + mLatencies.captureMs);
+                        break;
+                    }
+
+                    case CameraActions.CAPTURE_BURST: {
+                        Burst burst = (Burst) msg.obj;
+                        if (mCameraState.getState() <
+                                SimulatedStateHolder.CAMERA_PREVIEW_ACTIVE || mBurst != null) {
+                            Log.e(TAG, "Refusing to start a burst at inappropriate time");
+                            burst.finish();
+                            break;
+                        }
+                        mBurst = burst;
+                        completeLater(burst, mLatencies.frameIntervalMs);
+                        break;
+                    }
+
+                    case CameraActions.STOP_CONTINUOUS_CAPTURE: {
+                        if (mBurst != null) {
+                            mBurst.stop();
+                        }
+                        break;
+                    }
+
+                    case CameraActions.CANCEL_AUTO_FOCUS_FINISH:
+                    case CameraActions.SET_DISPLAY_ORIENTATION:
+                    case CameraActions.SET_JPEG_ORIENTATION:
+                    case CameraActions.ENABLE_SHUTTER_SOUND: {
+                        // Nothing to simulate.
+                        break;
+                    }
+
+                    default: {
+                        Log.w(TAG, "Ignoring unsupported action " +
+                                CameraActions.stringify(msg.what));
+                        break;
+                    }
+                }
+            } finally {
+                WaitDoneBundle.unblockSyncWaiters(msg);
+            }
+        }
+
+        /**
+         * Takes the pictures of a burst, one per frame, until it's done or
+         * stopped.
+         */
+        private class Burst implements Runnable {
+            private final int mCount;
+            private final CameraShutterCallback mShutter;
+            private final CameraBurstCallback mCallback;
+            private int mTaken;
+            private boolean mStopped;
+
+            /**
+             * @param count The number of pictures, or 0 to take them until stopped.
+             */
+            Burst(int count, CameraShutterCallback shutter, CameraBurstCallback cb) {
+                mCount = count;
+                mShutter = shutter;
+                mCallback = cb;
+            }
+
+            void stop() {
+                mStopped = true;
+            }
+
+            void finish() {
+                if (mBurst == this) {
+                    mBurst = null;
+                }
+                mCallback.onBurstFinished(mTaken, mCameraProxy);
+            }
+
+            @Override
+            public void run() {
+                if (mStopped || (mCount > 0 && mTaken >= mCount)) {
+                    finish();
+                    return;
+                }
+                if (mShutter != null) {
+                    mShutter.onShutter(mCameraProxy);
+                }
+                mCallback.onPictureTaken(mTaken++, mJpeg, mCameraProxy);
+                completeLater(this, mLatencies.frameIntervalMs);
+            }
+        }
+    }
+
+    private class SimulatedCameraProxy extends CameraAgent.CameraProxy {
+        private final int mCameraId;
+        private final SimulatedCharacteristics mCharacteristics = new SimulatedCharacteristics();
+        private CameraSettings mLastSettings;
+
+        SimulatedCameraProxy(int cameraId) {
+            mCameraId = cameraId;
+        }
+
+        @Override
+        public Camera getCamera() {
+            return null;
+        }
+
+        @Override
+        public int getCameraId() {
+            return mCameraId;
+        }
+
+        @Override
+        public CameraDeviceInfo.Characteristics getCharacteristics() {
+            return mCharacteristics;
+        }
+
+        @Override
+        public CameraCapabilities getCapabilities() {
+            return mCapabilities;
+        }
+
+        @Override
+        public CameraAgent getAgent() {
+            return SimulatedCameraAgent.this;
+        }
+
+        // The simulated device has no preview data.
+        @Override
+        public void setPreviewDataCallback(Handler handler, CameraPreviewDataCallback cb) {}
+
+        @Override
+        public void setOneShotPreviewCallback(Handler handler, CameraPreviewDataCallback cb) {}
+
+        @Override
+        public void setPreviewDataCallbackWithBuffer(Handler handler,
+                CameraPreviewDataCallback cb) {}
+
+        @Override
+        public void autoFocus(final Handler handler, final CameraAFCallback cb) {
+            final CameraAFCallback cbForward = new CameraAFCallback() {
+                @Override
+                public void onAutoFocus(final boolean focused, final CameraProxy camera) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            cb.onAutoFocus(focused, camera);
+                        }});
+                }
+            };
+            try {
+                mDispatchThread.runJob(new AutoFocusJob(handler, cb) {
+                    @Override
+                    public void run() {
+                        mDispatchThread.waitForCameraHandler(CAMERA_OPERATION_TIMEOUT_MS);
+                        mCameraState.waitForStates(SimulatedStateHolder.CAMERA_PREVIEW_ACTIVE |
+                                SimulatedStateHolder.CAMERA_FOCUS_LOCKED);
+                        mCameraHandler.obtainMessage(CameraActions.AUTO_FOCUS,
+                                cbForward).sendToTarget();
+                    }}, CameraActions.AUTO_FOCUS);
+            } catch (RuntimeException ex) {
+                onDispatchFailed(ex, cb);
+            }
+        }
+
+        @Override
+        public void setAutoFocusMoveCallback(Handler handler, CameraAFMoveCallback cb) {}
+
+        @Override
+        public void takePicture(final Handler handler, final CameraShutterCallback shutter,
+                CameraPictureCallback raw, CameraPictureCallback postview,
+                final CameraPictureCallback jpeg) {
+            CameraShutterCallback shutterForward = null;
+            if (shutter != null) {
+                shutterForward = new CameraShutterCallback() {
+                    @Override
+                    public void onShutter(final CameraProxy camera) {
+                        handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                shutter.onShutter(camera);
+                            }});
+                    }
+                };
+            }
+            CameraPictureCallback jpegForward = null;
+            if (jpeg != null) {
+                jpegForward = new CameraPictureCallback() {
+                    @Override
+                    public void onPictureTaken(final byte[] data, final CameraProxy camera) {
+                        handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                jpeg.onPictureTaken(data, camera);
+                            }});
+                    }
+                };
+            }
+            final PictureRequest request = new PictureRequest(shutterForward, jpegForward);
+            try {
+                mDispatchThread.runJob(new Runnable() {
+                    @Override
+                    public void run() {
+                        mDispatchThread.waitForCameraHandler(CAMERA_OPERATION_TIMEOUT_MS);
+                        mCameraState.waitForStates(SimulatedStateHolder.CAMERA_PREVIEW_ACTIVE |
+                                SimulatedStateHolder.CAMERA_FOCUS_LOCKED);
+                        mCameraHandler.obtainMessage(CameraActions.CAPTURE_PHOTO,
+                                request).sendToTarget();
+                    }});
+            } catch (RuntimeException ex) {
+                onDispatchFailed(ex, jpeg);
+            }
+        }
+
+        @Override
+        public void captureBurst(Handler handler, int count, CameraShutterCallback shutter,
+                CameraBurstCallback cb) {
+            if (count < 1) {
+                throw new IllegalArgumentException("A burst needs at least one picture");
+            }
+            requestBurst(handler, count, shutter, cb);
+        }
+
+        @Override
+        public void startContinuousCapture(Handler handler, CameraShutterCallback shutter,
+                CameraBurstCallback cb) {
+            requestBurst(handler, 0, shutter, cb);
+        }
+
+        private void requestBurst(final Handler handler, int count,
+                final CameraShutterCallback shutter, final CameraBurstCallback cb) {
+            CameraShutterCallback shutterForward = null;
+            if (shutter != null) {
+                shutterForward = new CameraShutterCallback() {
+                    @Override
+                    public void onShutter(final CameraProxy camera) {
+                        handler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                shutter.onShutter(camera);
+                            }});
+                    }
+                };
+            }
+            CameraBurstCallback cbForward = new CameraBurstCallback() {
+                @Override
+                public void onPictureTaken(final int index, final byte[] data,
+                        final CameraProxy camera) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            cb.onPictureTaken(index, data, camera);
+                        }});
+                }
+
+                @Override
+                public void onBurstFinished(final int delivered, final CameraProxy camera) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            cb.onBurstFinished(delivered, camera);
+                        }});
+                }
+            };
+            final SimulatedHandler.Burst burst =
+                    mCameraHandler.new Burst(count, shutterForward, cbForward);
+            try {
+                mDispatchThread.runJob(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCameraHandler.obtainMessage(CameraActions.CAPTURE_BURST, burst)
+                                .sendToTarget();
+                    }});
+            } catch (RuntimeException ex) {
+                getCameraExceptionHandler().onDispatchThreadException(ex);
+            }
+        }
+
+        @Override
+        public void setZoomChangeListener(Camera.OnZoomChangeListener listener) {}
+
+        @Override
+        public void setFaceDetectionCallback(Handler handler, CameraFaceDetectionCallback callback)
+                {}
+
+        @Override
+        @Deprecated
+        public void setParameters(Camera.Parameters params) {}
+
+        @Override
+        @Deprecated
+        public Camera.Parameters getParameters() {
+            return null;
+        }
+
+        @Override
+        public CameraSettings getSettings() {
+            if (mLastSettings == null) {
+                mLastSettings = new SimulatedSettings();
+            }
+            return mLastSettings;
+        }
+
+        @Override
+        public boolean applySettings(CameraSettings settings) {
+            return applySettingsHelper(settings, ~SimulatedStateHolder.CAMERA_UNOPENED);
+        }
+
+        @Override
+        public String dumpDeviceSettings() {
+            return null;
+        }
+
+        @Override
+        public Handler getCameraHandler() {
+            return SimulatedCameraAgent.this.getCameraHandler();
+        }
+
+        @Override
+        public DispatchThread getDispatchThread() {
+            return SimulatedCameraAgent.this.getDispatchThread();
+        }
+
+        @Override
+        public CameraStateHolder getCameraState() {
+            return mCameraState;
+        }
+    }
+
+    private static class SimulatedSettings extends CameraSettings {
+        SimulatedSettings() {
+            setPreviewSize(PREVIEW_SIZE);
+            setPhotoSize(PHOTO_SIZE);
+            setZoomRatio(CameraCapabilities.ZOOM_RATIO_UNZOOMED);
+            setFocusMode(CameraCapabilities.FocusMode.AUTO);
+            setFlashMode(CameraCapabilities.FlashMode.OFF);
+        }
+
+        SimulatedSettings(SimulatedSettings src) {
+            super(src);
+        }
+
+        @Override
+        public CameraSettings copy() {
+            return new SimulatedSettings(this);
+        }
+    }
+
+    private static class SimulatedStateHolder extends CameraStateHolder {
+        // Bits, like the states of the real implementations.
+        /** No camera device is opened. */
+        public static final int CAMERA_UNOPENED = 1 << 0;
+        /** A camera is opened. */
+        public static final int CAMERA_IDLE = 1 << 1;
+        /** A capture session is ready to stream a preview. */
+        public static final int CAMERA_PREVIEW_READY = 1 << 2;
+        /** A preview is currently being streamed. */
+        public static final int CAMERA_PREVIEW_ACTIVE = 1 << 3;
+        /** The lens is locked on a particular region. */
+        public static final int CAMERA_FOCUS_LOCKED = 1 << 4;
+
+        SimulatedStateHolder() {
+            super(CAMERA_UNOPENED);
+        }
+    }
+
+    private static class SimulatedDeviceInfo implements CameraDeviceInfo {
+        @Override
+        public Characteristics getCharacteristics(int cameraId) {
+            return cameraId == 0 ? new SimulatedCharacteristics() : null;
+        }
+
+        @Override
+        public int getNumberOfCameras() {
+            return 1;
+        }
+
+        @Override
+        public int getFirstBackCameraId() {
+            return 0;
+        }
+
+        @Override
+        public int getFirstFrontCameraId() {
+            return NO_DEVICE;
+        }
+    }
+
+    private static class SimulatedCharacteristics extends CameraDeviceInfo.Characteristics {
+        @Override
+        public boolean isFacingBack() {
+            return true;
+        }
+
+        @Override
+        public boolean isFacingFront() {
+            return false;
+        }
+
+        @Override
+        public int getSensorOrientation() {
+            return 90;
+        }
+
+        @Override
+        public boolean canDisableShutterSound() {
+            return true;
+        }
+    }
+}
@@ -212,6 +212,41 @@ public class Camera2RequestSettingsSet {
         return true;
     }
 
+    /**
+     * Add all settings choices defined by {@code moreSettings} to this object,
+     * like {@link #union}, but only incrementing {@code this} object's
+     * revision counter if any of its choices actually changed. Array values
+     * are compared by their elements.
+     *
+     * <p>This lets callers which repeatedly merge mostly identical settings
+     * use the revision to tell whether anything needs to be rebuilt.</p>
+     *
+     * @param moreSettings The source of the additional settings ({@code null}
+     *                     is allowed here).
+     * @return Whether these settings were updated.
+     */
+    public boolean merge(Camera2RequestSettingsSet moreSettings) {
+        if (moreSettings == null || moreSettings == this) {
+            return false;
+        }
+
+        boolean changed = false;
+        for (Map.Entry<Key<?>, Object> entry : moreSettings.mDictionary.entrySet()) {
+            Key<?> key = entry.getKey();
+            Object value = entry.getValue();
+            // Array values, e.g. metering regions, are typically rebuilt for every merge.
+            if (!mDictionary.containsKey(key) ||
+                    !Objects.deepEquals(value, mDictionary.get(key))) {
+                mDictionary.put(key, value);
+                changed = true;
+            }
+        }
+        if (changed) {
+            ++mRevision;
+        }
+        return changed;
+    }
+
     /**
      * Create a {@link CaptureRequest} specialized for the specified
      * {@link CameraDevice} and targeting the given {@link Surface}s.
@@ -28,6 +28,7 @@ import android.hardware.camera2.CameraCaptureSession.CaptureCallback;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureRequest.Key;
+import android.hardware.camera2.params.MeteringRectangle;
 import android.view.Surface;
 
 import org.junit.Test;
@@ -408,6 +409,43 @@ public class Camera2UtilsTest extends Camera2DeviceTester {
         assertEquals(0, sets[1].getRevision());
     }
 
+    @Test
+    public void requestSettingsSetMergeOnlyRecordsChanges() {
+        Camera2RequestSettingsSet[] sets = { new Camera2RequestSettingsSet(),
+                                             new Camera2RequestSettingsSet() };
+        assertFalse(sets[0].merge(sets[1]));
+        assertEquals(0, sets[0].getRevision());
+
+        sets[1].set(CaptureRequest.CONTROL_AE_LOCK, true);
+        assertTrue(sets[0].merge(sets[1]));
+        assertEquals(1, sets[0].getRevision());
+        assertEquals(true, sets[0].get(CaptureRequest.CONTROL_AE_LOCK));
+
+        assertFalse(sets[0].merge(sets[1]));
+        assertEquals(1, sets[0].getRevision());
+
+        sets[1].set(CaptureRequest.CONTROL_AE_LOCK, null);
+        assertTrue(sets[0].merge(sets[1]));
+        assertEquals(2, sets[0].getRevision());
+        assertEquals(null, sets[0].get(CaptureRequest.CONTROL_AE_LOCK));
+
+        sets[1].set(CaptureRequest.CONTROL_AF_REGIONS, new MeteringRectangle[] {
+                new MeteringRectangle(0, 0, 100, 100, MeteringRectangle.METERING_WEIGHT_MAX) });
+        assertTrue(sets[0].merge(sets[1]));
+        assertEquals(3, sets[0].getRevision());
+
+        // Equal regions in a new array, as rebuilt by every settings application
+        sets[1].set(CaptureRequest.CONTROL_AF_REGIONS, new MeteringRectangle[] {
+                new MeteringRectangle(0, 0, 100, 100, MeteringRectangle.METERING_WEIGHT_MAX) });
+        assertFalse(sets[0].merge(sets[1]));
+        assertEquals(3, sets[0].getRevision());
+
+        sets[1].set(CaptureRequest.CONTROL_AF_REGIONS, new MeteringRectangle[] {
+                new MeteringRectangle(50, 50, 100, 100, MeteringRectangle.METERING_WEIGHT_MAX) });
+        assertTrue(sets[0].merge(sets[1]));
+        assertEquals(4, sets[0].getRevision());
+    }
+
     private <T> void requestSettingsSetsCheckPairOfProperties(Camera2RequestSettingsSet firstSet,
                                                               Camera2RequestSettingsSet secondSet,
                                                               Key<T> firstKey,
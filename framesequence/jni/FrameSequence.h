@@ -51,6 +51,15 @@ public:
     virtual int getDefaultLoopCount() const = 0;
     virtual jobject getRawByteBuffer() const = 0;
 
+    /**
+     * Returns true if frameNr can be drawn without drawing any earlier frame first, i.e. a
+     * FrameSequenceState can start producing frames there with previousFrameNr < 0 and no
+     * more work than drawing that frame.
+     */
+    virtual bool isKeyFrame(int frameNr) const {
+        return frameNr == 0;
+    }
+
     virtual FrameSequenceState* createState() const = 0;
 };
 
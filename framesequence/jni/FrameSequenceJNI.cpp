@@ -17,6 +17,7 @@
 #include <android/bitmap.h>
 #include "JNIHelpers.h"
 #include "utils/log.h"
+#include "utils/math.h"
 #include "FrameSequence.h"
 
 #include "FrameSequenceJNI.h"
@@ -91,6 +92,12 @@ static void nativeDestroyFrameSequence(JNIEnv* env, jobject clazz,
     delete frameSequence;
 }
 
+static jboolean nativeIsKeyFrame(JNIEnv* env, jobject clazz, jlong frameSequenceLong,
+        jint frameNr) {
+    FrameSequence* frameSequence = reinterpret_cast<FrameSequence*>(frameSequenceLong);
+    return frameSequence->isKeyFrame(frameNr);
+}
+
 static jlong nativeCreateState(JNIEnv* env, jobject clazz, jlong frameSequenceLong) {
     FrameSequence* frameSequence = reinterpret_cast<FrameSequence*>(frameSequenceLong);
     FrameSequenceState* state = frameSequence->createState();
@@ -141,6 +148,118 @@ static jlong JNICALL nativeGetFrame(
     return delayMs;
 }
 
+// Box filters 'src' into the dstWidth x dstHeight rectangle at 'dst'. Each destination pixel
+// averages the block of source pixels it covers, which also works for premultiplied colors.
+static void scaleIntoTile(const Color8888* src, int srcWidth, int srcHeight, int srcStride,
+        Color8888* dst, int dstWidth, int dstHeight, int dstStride) {
+    for (int dy = 0; dy < dstHeight; dy++) {
+        const int sy0 = dy * srcHeight / dstHeight;
+        const int sy1 = max((dy + 1) * srcHeight / dstHeight, sy0 + 1);
+        for (int dx = 0; dx < dstWidth; dx++) {
+            const int sx0 = dx * srcWidth / dstWidth;
+            const int sx1 = max((dx + 1) * srcWidth / dstWidth, sx0 + 1);
+            uint64_t r = 0, g = 0, b = 0, a = 0;
+            for (int sy = sy0; sy < sy1; sy++) {
+                const Color8888* row = src + sy * srcStride;
+                for (int sx = sx0; sx < sx1; sx++) {
+                    const Color8888 color = row[sx];
+                    r += color & 0xff;
+                    g += (color >> 8) & 0xff;
+                    b += (color >> 16) & 0xff;
+                    a += color >> 24;
+                }
+            }
+            const uint64_t count = (uint64_t)(sy1 - sy0) * (sx1 - sx0);
+            dst[dy * dstStride + dx] = ARGB_TO_COLOR8888((uint32_t)(a / count),
+                    (uint32_t)(r / count), (uint32_t)(g / count), (uint32_t)(b / count));
+        }
+    }
+}
+
+// Frames are composited onto a full size canvas, since each may build on the previous ones and
+// the decoders can only draw whole frames. Rather than risk a huge native allocation for an
+// oversized sequence, frame sheets of sequences larger than this are refused.
+#define MAX_FRAME_SHEET_CANVAS_PIXELS (16 * 1024 * 1024)
+
+static void JNICALL nativeGetFrameSheet(
+        JNIEnv* env, jobject clazz, jlong frameSequenceStateLong,
+        jint canvasWidth, jint canvasHeight, jintArray frameNrArray, jobject bitmap,
+        jint columns) {
+    FrameSequenceState* frameSequenceState =
+            reinterpret_cast<FrameSequenceState*>(frameSequenceStateLong);
+    int ret;
+    AndroidBitmapInfo info;
+    void* pixels;
+
+    if (canvasWidth <= 0 || canvasHeight <= 0
+            || (int64_t) canvasWidth * canvasHeight > MAX_FRAME_SHEET_CANVAS_PIXELS) {
+        jniThrowException(env, ILLEGAL_STATE_EXEPTION, "Frame sequence too large for frame sheet");
+        return;
+    }
+
+    if ((ret = AndroidBitmap_getInfo(env, bitmap, &info)) < 0) {
+        throwIae(env, "Couldn't get info from Bitmap", ret);
+        return;
+    }
+
+    const int tileCount = env->GetArrayLength(frameNrArray);
+    const int rows = (tileCount + columns - 1) / columns;
+    const int tileWidth = info.width / columns;
+    const int tileHeight = info.height / rows;
+    if (!tileWidth || !tileHeight) {
+        jniThrowException(env, ILLEGAL_STATE_EXEPTION, "Bitmap too small for frame sheet");
+        return;
+    }
+
+    // Draw frames in increasing order so each one builds on the previous, rather than
+    // seeking back to a key frame for every tile. tileOrder holds tile indices sorted by
+    // frame number.
+    jint* frameNrs = new jint[tileCount];
+    int* tileOrder = new int[tileCount];
+    env->GetIntArrayRegion(frameNrArray, 0, tileCount, frameNrs);
+    for (int i = 0; i < tileCount; i++) {
+        int j = i;
+        for (; j > 0 && frameNrs[tileOrder[j - 1]] > frameNrs[i]; j--) {
+            tileOrder[j] = tileOrder[j - 1];
+        }
+        tileOrder[j] = i;
+    }
+
+    if ((ret = AndroidBitmap_lockPixels(env, bitmap, &pixels)) < 0) {
+        delete[] frameNrs;
+        delete[] tileOrder;
+        throwIae(env, "Bitmap pixels couldn't be locked", ret);
+        return;
+    }
+
+    const int outputPixelStride = info.stride >> 2;
+    Color8888* canvas = new Color8888[canvasWidth * canvasHeight];
+    int previousFrameNr = -1;
+    bool failed = false;
+    for (int i = 0; i < tileCount && !failed; i++) {
+        const int tile = tileOrder[i];
+        const int frameNr = frameNrs[tile];
+        if (frameNr != previousFrameNr) {
+            failed = frameSequenceState->drawFrame(
+                    frameNr, canvas, canvasWidth, previousFrameNr) < 0;
+            previousFrameNr = frameNr;
+        }
+        Color8888* dst = (Color8888*) pixels
+                + (tile / columns) * tileHeight * outputPixelStride
+                + (tile % columns) * tileWidth;
+        scaleIntoTile(canvas, canvasWidth, canvasHeight, canvasWidth,
+                dst, tileWidth, tileHeight, outputPixelStride);
+    }
+
+    AndroidBitmap_unlockPixels(env, bitmap);
+    delete[] canvas;
+    delete[] frameNrs;
+    delete[] tileOrder;
+    if (failed) {
+        jniThrowException(env, ILLEGAL_STATE_EXEPTION, "Error decoding frame sheet");
+    }
+}
+
 static const JNINativeMethod gMethods[] = {
     {   "nativeDecodeByteArray",
         "([BII)L" JNI_PACKAGE "/FrameSequence;",
@@ -158,6 +277,10 @@ static const JNINativeMethod gMethods[] = {
         "(J)V",
         (void*) nativeDestroyFrameSequence
     },
+    {   "nativeIsKeyFrame",
+        "(JI)Z",
+        (void*) nativeIsKeyFrame
+    },
     {   "nativeCreateState",
         "(J)J",
         (void*) nativeCreateState
@@ -170,6 +293,10 @@ static const JNINativeMethod gMethods[] = {
         "(J)V",
         (void*) nativeDestroyState
     },
+    {   "nativeGetFrameSheet",
+        "(JII[ILandroid/graphics/Bitmap;I)V",
+        (void*) nativeGetFrameSheet
+    },
 };
 
 jint FrameSequence_OnLoad(JNIEnv* env) {
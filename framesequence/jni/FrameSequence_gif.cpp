@@ -40,12 +40,30 @@ static bool willBeCleared(const GraphicsControlBlock& gcb) {
     return gcb.DisposalMode == DISPOSE_BACKGROUND || gcb.DisposalMode == DISPOSE_PREVIOUS;
 }
 
+static bool isEmpty(const GifRect& rect) {
+    return rect.left >= rect.right || rect.top >= rect.bottom;
+}
+
+// grow 'rect' to also cover 'other'
+static void unionRect(GifRect& rect, const GifRect& other) {
+    if (isEmpty(other)) return;
+    if (isEmpty(rect)) {
+        rect = other;
+        return;
+    }
+    rect.left = min(rect.left, other.left);
+    rect.top = min(rect.top, other.top);
+    rect.right = max(rect.right, other.right);
+    rect.bottom = max(rect.bottom, other.bottom);
+}
+
 ////////////////////////////////////////////////////////////////////////////////
 // Frame sequence
 ////////////////////////////////////////////////////////////////////////////////
 
 FrameSequence_gif::FrameSequence_gif(Stream* stream) :
-        mLoopCount(1), mBgColor(TRANSPARENT), mPreservedFrames(NULL), mRestoringFrames(NULL) {
+        mLoopCount(1), mBgColor(TRANSPARENT), mPreservedFrames(NULL), mRestoringFrames(NULL),
+        mPreserveRects(NULL), mRestoreRects(NULL) {
     mGif = DGifOpen(stream, streamReader, NULL);
     if (!mGif) {
         ALOGW("Gif load failed");
@@ -63,6 +81,13 @@ FrameSequence_gif::FrameSequence_gif(Stream* stream) :
     int lastUnclearedFrame = -1;
     mPreservedFrames = new bool[mGif->ImageCount];
     mRestoringFrames = new int[mGif->ImageCount];
+    mPreserveRects = new GifRect[mGif->ImageCount];
+    mRestoreRects = new GifRect[mGif->ImageCount];
+    const GifRect emptyRect = { 0, 0, 0, 0 };
+
+    // union of the areas drawn since lastUnclearedFrame, i.e. everything a DISPOSE_PREVIOUS
+    // frame may have to restore
+    GifRect drawnSinceUncleared = emptyRect;
 
     GraphicsControlBlock gcb;
     for (int i = 0; i < mGif->ImageCount; i++) {
@@ -92,12 +117,23 @@ FrameSequence_gif::FrameSequence_gif(Stream* stream) :
         // preserve logic
         mPreservedFrames[i] = false;
         mRestoringFrames[i] = -1;
+        mPreserveRects[i] = emptyRect;
+        mRestoreRects[i] = emptyRect;
+        const GifImageDesc& desc = image.ImageDesc;
+        GifRect frameRect = {
+                max(desc.Left, 0), max(desc.Top, 0),
+                min(desc.Left + desc.Width, mGif->SWidth),
+                min(desc.Top + desc.Height, mGif->SHeight) };
+        unionRect(drawnSinceUncleared, frameRect);
         if (gcb.DisposalMode == DISPOSE_PREVIOUS && lastUnclearedFrame >= 0) {
             mPreservedFrames[lastUnclearedFrame] = true;
             mRestoringFrames[i] = lastUnclearedFrame;
+            mRestoreRects[i] = drawnSinceUncleared;
+            unionRect(mPreserveRects[lastUnclearedFrame], drawnSinceUncleared);
         }
         if (!willBeCleared(gcb)) {
             lastUnclearedFrame = i;
+            drawnSinceUncleared = emptyRect;
         }
     }
 
@@ -129,6 +165,8 @@ FrameSequence_gif::~FrameSequence_gif() {
     }
     delete[] mPreservedFrames;
     delete[] mRestoringFrames;
+    delete[] mPreserveRects;
+    delete[] mRestoreRects;
 }
 
 FrameSequenceState* FrameSequence_gif::createState() const {
@@ -186,6 +224,8 @@ FrameSequenceState_gif::~FrameSequenceState_gif() {
        delete[] mPreserveBuffer;
 }
 
+// Only the part of the canvas that later DISPOSE_PREVIOUS frames can restore is copied. The
+// buffer keeps canvas layout, so saved rows stay at their canvas offsets.
 void FrameSequenceState_gif::savePreserveBuffer(Color8888* outputPtr, int outputPixelStride, int frameNr) {
     if (frameNr == mPreserveBufferFrame) return;
 
@@ -195,24 +235,28 @@ void FrameSequenceState_gif::savePreserveBuffer(Color8888* outputPtr, int output
     if (!mPreserveBuffer) {
         mPreserveBuffer = new Color8888[width * height];
     }
-    for (int y = 0; y < height; y++) {
-        memcpy(mPreserveBuffer + width * y,
-                outputPtr + outputPixelStride * y,
-                width * 4);
+    const GifRect& rect = mFrameSequence.getPreserveRect(frameNr);
+    for (int y = rect.top; y < rect.bottom; y++) {
+        memcpy(mPreserveBuffer + width * y + rect.left,
+                outputPtr + outputPixelStride * y + rect.left,
+                (rect.right - rect.left) * 4);
     }
 }
 
-void FrameSequenceState_gif::restorePreserveBuffer(Color8888* outputPtr, int outputPixelStride) {
+// Restores the area that may have changed since the preserved frame, on disposal of the
+// DISPOSE_PREVIOUS frame frameNr.
+void FrameSequenceState_gif::restorePreserveBuffer(Color8888* outputPtr, int outputPixelStride,
+        int frameNr) {
     const int width = mFrameSequence.getWidth();
-    const int height = mFrameSequence.getHeight();
     if (!mPreserveBuffer) {
         ALOGD("preserve buffer not allocated! ah!");
         return;
     }
-    for (int y = 0; y < height; y++) {
-        memcpy(outputPtr + outputPixelStride * y,
-                mPreserveBuffer + width * y,
-                width * 4);
+    const GifRect& rect = mFrameSequence.getRestoreRect(frameNr);
+    for (int y = rect.top; y < rect.bottom; y++) {
+        memcpy(outputPtr + outputPixelStride * y + rect.left,
+                mPreserveBuffer + width * y + rect.left,
+                (rect.right - rect.left) * 4);
     }
 }
 
@@ -289,7 +333,7 @@ long FrameSequenceState_gif::drawFrame(int frameNr,
                     }
                 } break;
                 case DISPOSE_PREVIOUS: {
-                    restorePreserveBuffer(outputPtr, outputPixelStride);
+                    restorePreserveBuffer(outputPtr, outputPixelStride, i - 1);
                 } break;
                 }
             }
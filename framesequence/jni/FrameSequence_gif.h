@@ -24,6 +24,14 @@
 #include "Color.h"
 #include "FrameSequence.h"
 
+// Canvas area, with exclusive right and bottom edges
+struct GifRect {
+    int left;
+    int top;
+    int right;
+    int bottom;
+};
+
 class FrameSequence_gif : public FrameSequence {
 public:
     FrameSequence_gif(Stream* stream);
@@ -59,6 +67,8 @@ public:
     Color8888 getBackgroundColor() const { return mBgColor; }
     bool getPreservedFrame(int frameIndex) const { return mPreservedFrames[frameIndex]; }
     int getRestoringFrame(int frameIndex) const { return mRestoringFrames[frameIndex]; }
+    const GifRect& getPreserveRect(int frameIndex) const { return mPreserveRects[frameIndex]; }
+    const GifRect& getRestoreRect(int frameIndex) const { return mRestoreRects[frameIndex]; }
 
 private:
     GifFileType* mGif;
@@ -70,6 +80,13 @@ private:
 
     // array of ints per frame - if >= 0, points to the index of the preserve that frame needs
     int* mRestoringFrames;
+
+    // array of rects per frame - for preserved frames, the part of the canvas that needs saving
+    GifRect* mPreserveRects;
+
+    // array of rects per frame - for DISPOSE_PREVIOUS frames, the part of the canvas that may
+    // have changed since their restoring frame was preserved, and so needs restoring
+    GifRect* mRestoreRects;
 };
 
 class FrameSequenceState_gif : public FrameSequenceState {
@@ -83,7 +100,7 @@ public:
 
 private:
     void savePreserveBuffer(Color8888* outputPtr, int outputPixelStride, int frameNr);
-    void restorePreserveBuffer(Color8888* outputPtr, int outputPixelStride);
+    void restorePreserveBuffer(Color8888* outputPtr, int outputPixelStride, int frameNr);
 
     const FrameSequence_gif& mFrameSequence;
     Color8888* mPreserveBuffer;
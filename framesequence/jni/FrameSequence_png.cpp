@@ -0,0 +1,743 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <string.h>
+#include "JNIHelpers.h"
+#include "utils/log.h"
+#include "utils/math.h"
+
+#include "FrameSequence_png.h"
+
+#define APNG_DEBUG 0
+
+#define PNG_SIGNATURE_SIZE 8
+#define PNG_CHUNK_OVERHEAD 12  // length, type and CRC fields
+#define PNG_IHDR_SIZE 13
+#define APNG_FCTL_SIZE 26
+#define APNG_ACTL_SIZE 8
+#define APNG_FDAT_SEQUENCE_SIZE 4
+// Bounds the chunks which are neither image data nor frame control, like palettes, text
+// and color profiles, whose size the header doesn't tell.
+#define PNG_MAX_METADATA_SIZE (1024 * 1024)
+
+#define CHUNK_TYPE(a, b, c, d) \
+    ((uint32_t)(a) << 24 | (uint32_t)(b) << 16 | (uint32_t)(c) << 8 | (uint32_t)(d))
+
+static const uint32_t CHUNK_IHDR = CHUNK_TYPE('I', 'H', 'D', 'R');
+static const uint32_t CHUNK_PLTE = CHUNK_TYPE('P', 'L', 'T', 'E');
+static const uint32_t CHUNK_IDAT = CHUNK_TYPE('I', 'D', 'A', 'T');
+static const uint32_t CHUNK_IEND = CHUNK_TYPE('I', 'E', 'N', 'D');
+static const uint32_t CHUNK_tRNS = CHUNK_TYPE('t', 'R', 'N', 'S');
+static const uint32_t CHUNK_acTL = CHUNK_TYPE('a', 'c', 'T', 'L');
+static const uint32_t CHUNK_fcTL = CHUNK_TYPE('f', 'c', 'T', 'L');
+static const uint32_t CHUNK_fdAT = CHUNK_TYPE('f', 'd', 'A', 'T');
+
+static const uint8_t PNG_SIGNATURE[PNG_SIGNATURE_SIZE] = { 137, 80, 78, 71, 13, 10, 26, 10 };
+
+////////////////////////////////////////////////////////////////////////////////
+// Frame sequence
+////////////////////////////////////////////////////////////////////////////////
+
+static uint32_t getBE32(const uint8_t* data) {
+    return (uint32_t)data[0] << 24 | (uint32_t)data[1] << 16
+            | (uint32_t)data[2] << 8 | (uint32_t)data[3];
+}
+
+static uint16_t getBE16(const uint8_t* data) {
+    return (uint16_t)(data[0] << 8 | data[1]);
+}
+
+static void putBE32(uint8_t* data, uint32_t value) {
+    data[0] = (uint8_t)(value >> 24);
+    data[1] = (uint8_t)(value >> 16);
+    data[2] = (uint8_t)(value >> 8);
+    data[3] = (uint8_t)value;
+}
+
+// Ancillary chunks have a lowercase first letter in their type
+static bool isAncillary(uint32_t type) {
+    return (type >> 24) & 0x20;
+}
+
+static bool isFullFrame(const PngFrame& frame, int canvasWidth, int canvasHeight) {
+    return frame.width == canvasWidth && frame.height == canvasHeight;
+}
+
+// Returns the most compressed image data a frame of the size given by the IHDR payload
+// can legitimately take, or 0 if the header is invalid.
+static uint64_t getMaxFrameDataSize(const uint8_t* header) {
+    const uint32_t width = getBE32(header);
+    const uint32_t height = getBE32(header + 4);
+    const uint8_t bitDepth = header[8];
+    int channels;
+    switch (header[9]) {
+        case PNG_COLOR_TYPE_GRAY: channels = 1; break;
+        case PNG_COLOR_TYPE_RGB: channels = 3; break;
+        case PNG_COLOR_TYPE_PALETTE: channels = 1; break;
+        case PNG_COLOR_TYPE_GRAY_ALPHA: channels = 2; break;
+        case PNG_COLOR_TYPE_RGB_ALPHA: channels = 4; break;
+        default: return 0;
+    }
+    if (!width || !height || width > PNG_UINT_31_MAX || height > PNG_UINT_31_MAX
+            || (bitDepth != 1 && bitDepth != 2 && bitDepth != 4 && bitDepth != 8
+                    && bitDepth != 16)) {
+        return 0;
+    }
+
+    // Filtered rows, each with its filter type byte, plus the filter and padding bytes
+    // interlacing may add for its partial rows.
+    const uint64_t rowBytes = ((uint64_t)width * channels * bitDepth + 7) / 8 + 1;
+    if (rowBytes > PNG_UINT_31_MAX / height) {
+        // Too much for a single chunk anyway.
+        return PNG_UINT_31_MAX;
+    }
+    const uint64_t rawSize = rowBytes * height + 4 * (uint64_t)height + 14;
+    // Worst case expansion of incompressible data by zlib, as in compressBound().
+    return rawSize + (rawSize >> 12) + (rawSize >> 14) + (rawSize >> 25) + 13;
+}
+
+FrameSequence_png::FrameSequence_png(Stream* stream)
+        : mData(NULL)
+        , mDataSize(0)
+        , mRawByteBuffer(NULL)
+        , mWidth(0)
+        , mHeight(0)
+        , mOpaque(false)
+        , mFrameCount(0)
+        , mLoopCount(1)
+        , mHeaderOffset(0)
+        , mSharedChunks(NULL)
+        , mSharedChunksSize(0)
+        , mFrames(NULL)
+        , mDataChunks(NULL)
+        , mDataChunkCount(0)
+        , mIsKeyFrame(NULL) {
+    if (!readData(stream)) {
+        ALOGE("PNG load failed");
+        return;
+    }
+    if (!parseChunks()) {
+        ALOGE("Parsing of PNG file failed");
+        mFrameCount = 0;
+        return;
+    }
+#if APNG_DEBUG
+    ALOGD("FrameSequence_png created with size = %d x %d, number of frames = %d, loops = %d",
+          mWidth, mHeight, mFrameCount, mLoopCount);
+#endif
+    constructDependencyChain();
+}
+
+FrameSequence_png::~FrameSequence_png() {
+    if (mRawByteBuffer == NULL) {
+        delete[] mData;
+    }
+    delete[] mSharedChunks;
+    delete[] mFrames;
+    delete[] mDataChunks;
+    delete[] mIsKeyFrame;
+}
+
+// Grows 'buffer' to hold at least 'required' bytes, preserving the first 'size' bytes.
+static uint8_t* ensureCapacity(uint8_t* buffer, size_t size, size_t& capacity, size_t required) {
+    if (required <= capacity) {
+        return buffer;
+    }
+    while (capacity < required) {
+        capacity *= 2;
+    }
+    uint8_t* newBuffer = new uint8_t[capacity];
+    memcpy(newBuffer, buffer, size);
+    delete[] buffer;
+    return newBuffer;
+}
+
+bool FrameSequence_png::readData(Stream* stream) {
+    if (stream->getRawBuffer() != NULL) {
+        mData = stream->getRawBufferAddr();
+        mDataSize = stream->getRawBufferSize();
+        mRawByteBuffer = stream->getRawBuffer();
+        return true;
+    }
+
+    // PNG has no overall size field, so read a chunk at a time up to IEND. Each read requests
+    // exactly the size of the next field, since streams don't report partial reads at EOF.
+    // The IHDR chunk must come first, and its dimensions bound the chunks after it, so that a
+    // corrupt length can't make us allocate and wait for far more data than an image needs.
+    size_t capacity = 16 * 1024;
+    mData = new uint8_t[capacity];
+    if (stream->read(mData, PNG_SIGNATURE_SIZE) != PNG_SIGNATURE_SIZE) {
+        return false;
+    }
+    mDataSize = PNG_SIGNATURE_SIZE;
+
+    uint64_t maxFrameDataSize = 0;
+    uint64_t frameCount = 0;
+    uint64_t imageDataSize = 0;
+    uint64_t metadataSize = 0;
+    while (true) {
+        mData = ensureCapacity(mData, mDataSize, capacity, mDataSize + 8);
+        uint8_t* chunk = mData + mDataSize;
+        if (stream->read(chunk, 8) != 8) {
+            return false;
+        }
+        const uint32_t length = getBE32(chunk);
+        const uint32_t type = getBE32(chunk + 4);
+        if (length > PNG_UINT_31_MAX) {
+            return false;
+        }
+        if (!maxFrameDataSize) {
+            if (type != CHUNK_IHDR || length != PNG_IHDR_SIZE) {
+                ALOGE("PNG doesn't start with a valid header");
+                return false;
+            }
+        } else if (type == CHUNK_IDAT || type == CHUNK_fdAT) {
+            // Every frame, and the default image if it isn't the first frame, may take
+            // up to the maximum.
+            const uint64_t maxChunkSize = maxFrameDataSize + APNG_FDAT_SEQUENCE_SIZE;
+            imageDataSize += length;
+            if (length > maxChunkSize || imageDataSize > (frameCount + 1) * maxChunkSize) {
+                ALOGE("PNG has more image data than its size allows");
+                return false;
+            }
+        } else if (type == CHUNK_fcTL && length == APNG_FCTL_SIZE) {
+            frameCount++;
+        } else {
+            metadataSize += length;
+            if (metadataSize > PNG_MAX_METADATA_SIZE) {
+                ALOGE("PNG has too much metadata");
+                return false;
+            }
+        }
+
+        mData = ensureCapacity(mData, mDataSize + 8, capacity,
+                mDataSize + PNG_CHUNK_OVERHEAD + length);
+        chunk = mData + mDataSize;
+        if (stream->read(chunk + 8, length + 4) != length + 4) {
+            return false;
+        }
+        mDataSize += PNG_CHUNK_OVERHEAD + length;
+
+        if (!maxFrameDataSize) {
+            maxFrameDataSize = getMaxFrameDataSize(chunk + 8);
+            if (!maxFrameDataSize) {
+                ALOGE("PNG header invalid");
+                return false;
+            }
+        }
+        if (type == CHUNK_IEND) {
+            return true;
+        }
+    }
+}
+
+bool FrameSequence_png::parseChunks() {
+    if (mDataSize < PNG_SIGNATURE_SIZE || memcmp(mData, PNG_SIGNATURE, PNG_SIGNATURE_SIZE)) {
+        return false;
+    }
+
+    // The first pass only counts frames, data chunks and shared chunk bytes so that the
+    // second pass can fill arrays of the right size.
+    int frameCount = 0;
+    bool hasTransparency = false;
+    for (int pass = 0; pass < 2; pass++) {
+        const bool fill = pass == 1;
+        if (fill) {
+            if (!frameCount || !mDataChunkCount) {
+                return false;
+            }
+            mFrames = new PngFrame[frameCount];
+            mDataChunks = new PngDataChunk[mDataChunkCount];
+            mSharedChunks = new uint8_t[mSharedChunksSize];
+        }
+
+        bool seenHeader = false;
+        bool animated = false;
+        bool seenImageData = false;
+        int frameIndex = -1;
+        int dataIndex = 0;
+        size_t sharedSize = 0;
+        size_t offset = PNG_SIGNATURE_SIZE;
+        while (offset + PNG_CHUNK_OVERHEAD <= mDataSize) {
+            const size_t length = getBE32(mData + offset);
+            const uint32_t type = getBE32(mData + offset + 4);
+            const uint8_t* payload = mData + offset + 8;
+            if (length > mDataSize - offset - PNG_CHUNK_OVERHEAD) {
+                ALOGE("PNG chunk truncated");
+                return false;
+            }
+            if (type == CHUNK_IEND) {
+                break;
+            }
+
+            size_t dataOffset = 0;
+            size_t dataLength = 0;
+            if (type == CHUNK_IHDR) {
+                if (seenHeader || length < PNG_IHDR_SIZE) {
+                    return false;
+                }
+                seenHeader = true;
+                mHeaderOffset = offset + 8;
+                mWidth = getBE32(payload);
+                mHeight = getBE32(payload + 4);
+                hasTransparency = payload[9] & PNG_COLOR_MASK_ALPHA;
+            } else if (!seenHeader) {
+                return false;
+            } else if (type == CHUNK_acTL) {
+                // APNG chunks are only honored if acTL precedes the default image
+                if (!seenImageData && length >= APNG_ACTL_SIZE) {
+                    animated = true;
+                    mLoopCount = getBE32(payload + 4);
+                }
+            } else if (type == CHUNK_fcTL) {
+                if (animated && length >= APNG_FCTL_SIZE) {
+                    frameIndex++;
+                    if (fill) {
+                        PngFrame& frame = mFrames[frameIndex];
+                        frame.width = getBE32(payload + 4);
+                        frame.height = getBE32(payload + 8);
+                        frame.x = getBE32(payload + 12);
+                        frame.y = getBE32(payload + 16);
+                        const uint16_t delayNum = getBE16(payload + 20);
+                        uint16_t delayDen = getBE16(payload + 22);
+                        if (!delayDen) {
+                            delayDen = 100;
+                        }
+                        frame.delayMs = (long) delayNum * 1000 / delayDen;
+                        frame.disposeOp = payload[24];
+                        frame.blendOp = payload[25];
+                        frame.firstDataChunk = dataIndex;
+                        frame.dataChunkCount = 0;
+                    }
+                }
+            } else if (type == CHUNK_IDAT) {
+                seenImageData = true;
+                if (!animated && frameIndex < 0) {
+                    // plain PNG, the default image is the only frame
+                    frameIndex = 0;
+                    if (fill) {
+                        PngFrame& frame = mFrames[0];
+                        frame.x = frame.y = 0;
+                        frame.width = mWidth;
+                        frame.height = mHeight;
+                        frame.delayMs = 0;
+                        frame.disposeOp = APNG_DISPOSE_OP_NONE;
+                        frame.blendOp = APNG_BLEND_OP_SOURCE;
+                        frame.firstDataChunk = 0;
+                        frame.dataChunkCount = 0;
+                    }
+                }
+                // with no fcTL before it, the default image is not part of the animation
+                if (frameIndex == 0) {
+                    dataOffset = offset + 8;
+                    dataLength = length;
+                }
+            } else if (type == CHUNK_fdAT) {
+                if (animated && frameIndex >= 0 && length > 4) {
+                    // skip the sequence number
+                    dataOffset = offset + 12;
+                    dataLength = length - 4;
+                }
+            } else if (!seenImageData && (type == CHUNK_PLTE || isAncillary(type))) {
+                if (type == CHUNK_tRNS) {
+                    hasTransparency = true;
+                }
+                if (fill) {
+                    memcpy(mSharedChunks + sharedSize, mData + offset,
+                            PNG_CHUNK_OVERHEAD + length);
+                }
+                sharedSize += PNG_CHUNK_OVERHEAD + length;
+            }
+
+            if (dataLength) {
+                if (fill) {
+                    mDataChunks[dataIndex].offset = dataOffset;
+                    mDataChunks[dataIndex].length = dataLength;
+                    mFrames[frameIndex].dataChunkCount++;
+                }
+                dataIndex++;
+            }
+            offset += PNG_CHUNK_OVERHEAD + length;
+        }
+
+        if (!fill) {
+            frameCount = frameIndex + 1;
+            mDataChunkCount = dataIndex;
+            mSharedChunksSize = sharedSize;
+        }
+    }
+
+    if (mWidth <= 0 || mHeight <= 0) {
+        return false;
+    }
+
+    mOpaque = !hasTransparency;
+    for (int i = 0; i < frameCount; i++) {
+        PngFrame& frame = mFrames[i];
+        if (!frame.dataChunkCount || frame.width <= 0 || frame.height <= 0
+                || frame.x < 0 || frame.y < 0
+                || frame.width > mWidth - frame.x || frame.height > mHeight - frame.y) {
+            ALOGE("Invalid APNG frame# %d", i);
+            return false;
+        }
+        if (i == 0 && frame.disposeOp == APNG_DISPOSE_OP_PREVIOUS) {
+            // nothing to revert to, spec says to treat as DISPOSE_OP_BACKGROUND
+            frame.disposeOp = APNG_DISPOSE_OP_BACKGROUND;
+        }
+        if (frame.disposeOp == APNG_DISPOSE_OP_BACKGROUND
+                || (i == 0 && !isFullFrame(frame, mWidth, mHeight))) {
+            mOpaque = false;
+        }
+    }
+    mFrameCount = frameCount;
+    return true;
+}
+
+// Construct mIsKeyFrame array.
+void FrameSequence_png::constructDependencyChain() {
+    mIsKeyFrame = new bool[mFrameCount];
+    mIsKeyFrame[0] = true;  // 0th frame is always a key frame.
+    for (int i = 1; i < mFrameCount; i++) {
+        const PngFrame& curr = mFrames[i];
+        const PngFrame& prev = mFrames[i - 1];
+        const bool prevFullSource = prev.blendOp == APNG_BLEND_OP_SOURCE
+                && isFullFrame(prev, mWidth, mHeight);
+
+        if (curr.blendOp == APNG_BLEND_OP_SOURCE && isFullFrame(curr, mWidth, mHeight)) {
+            mIsKeyFrame[i] = true;
+        } else if (prev.disposeOp == APNG_DISPOSE_OP_BACKGROUND) {
+            mIsKeyFrame[i] = isFullFrame(prev, mWidth, mHeight) || mIsKeyFrame[i - 1];
+        } else if (prev.disposeOp == APNG_DISPOSE_OP_PREVIOUS) {
+            // reverts to the canvas prev was drawn on, known to be clear if prev was a key frame
+            // that didn't simply overwrite everything
+            mIsKeyFrame[i] = mIsKeyFrame[i - 1] && !prevFullSource;
+        } else {
+            mIsKeyFrame[i] = false;
+        }
+    }
+
+#if APNG_DEBUG
+    ALOGD("Dependency chain:");
+    for (int i = 0; i < mFrameCount; i++) {
+        ALOGD("Frame# %d: %s", i, mIsKeyFrame[i] ? "Key frame" : "NOT a key frame");
+    }
+#endif
+}
+
+FrameSequenceState* FrameSequence_png::createState() const {
+    return new FrameSequenceState_png(*this);
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// draw helpers
+////////////////////////////////////////////////////////////////////////////////
+
+struct PngReader {
+    const uint8_t* data;
+    size_t remaining;
+};
+
+static void readFromMemory(png_structp png, png_bytep out, png_size_t size) {
+    PngReader* reader = (PngReader*) png_get_io_ptr(png);
+    if (size > reader->remaining) {
+        png_error(png, "read past end of frame data");
+    }
+    memcpy(out, reader->data, size);
+    reader->data += size;
+    reader->remaining -= size;
+}
+
+static void logPngWarning(png_structp png, png_const_charp message) {
+    ALOGW("libpng warning: %s", message);
+}
+
+static void clearLine(Color8888* dst, int width) {
+    memset(dst, 0, width * sizeof(*dst));  // Note: Assumes TRANSPARENT == 0x0.
+}
+
+// Copy all pixels from 'src' to 'dst'.
+static void copyFrame(const Color8888* src, int srcStride, Color8888* dst, int dstStride,
+        int width, int height) {
+    for (int y = 0; y < height; y++) {
+        memcpy(dst, src, width * sizeof(*dst));
+        src += srcStride;
+        dst += dstStride;
+    }
+}
+
+static inline uint32_t mulDiv255(uint32_t value, uint32_t alpha) {
+    return (value * alpha + 127) / 255;
+}
+
+static inline Color8888 premultiply(Color8888 color) {
+    const uint32_t alpha = color >> 24;
+    if (alpha == 0xff) return color;
+    if (alpha == 0) return TRANSPARENT;
+    return ARGB_TO_COLOR8888(alpha,
+            mulDiv255(color & 0xff, alpha),
+            mulDiv255((color >> 8) & 0xff, alpha),
+            mulDiv255((color >> 16) & 0xff, alpha));
+}
+
+// Source-over composition of premultiplied colors.
+static inline Color8888 blendOver(Color8888 dst, Color8888 src) {
+    const uint32_t srcAlpha = src >> 24;
+    if (srcAlpha == 0xff) return src;
+    if (srcAlpha == 0) return dst;
+    const uint32_t inverse = 0xff - srcAlpha;
+    return ARGB_TO_COLOR8888(srcAlpha + mulDiv255(dst >> 24, inverse),
+            (src & 0xff) + mulDiv255(dst & 0xff, inverse),
+            ((src >> 8) & 0xff) + mulDiv255((dst >> 8) & 0xff, inverse),
+            ((src >> 16) & 0xff) + mulDiv255((dst >> 16) & 0xff, inverse));
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Frame sequence state
+////////////////////////////////////////////////////////////////////////////////
+
+FrameSequenceState_png::FrameSequenceState_png(const FrameSequence_png& frameSequence) :
+        mFrameSequence(frameSequence), mFrameStream(NULL), mFrameStreamCapacity(0),
+        mBlendBuffer(NULL), mPreserveBuffer(NULL), mPreserveBufferFrame(-1) {
+    mRowPointers = new png_bytep[mFrameSequence.getHeight()];
+}
+
+FrameSequenceState_png::~FrameSequenceState_png() {
+    delete[] mFrameStream;
+    delete[] mBlendBuffer;
+    delete[] mRowPointers;
+    delete[] mPreserveBuffer;
+}
+
+// Wraps a frame's compressed data into a standalone PNG stream libpng can decode: the original
+// IHDR resized to the frame, shared chunks, the frame's data as IDAT chunks and an IEND. CRCs of
+// the synthesized chunks are left zeroed, decodeFrame() tells libpng not to check them.
+size_t FrameSequenceState_png::buildFrameStream(const PngFrame& frame) {
+    size_t size = PNG_SIGNATURE_SIZE + PNG_CHUNK_OVERHEAD + PNG_IHDR_SIZE
+            + mFrameSequence.getSharedChunksSize() + PNG_CHUNK_OVERHEAD;
+    for (int i = 0; i < frame.dataChunkCount; i++) {
+        size += PNG_CHUNK_OVERHEAD
+                + mFrameSequence.getDataChunk(frame.firstDataChunk + i).length;
+    }
+    if (size > mFrameStreamCapacity) {
+        delete[] mFrameStream;
+        mFrameStream = new uint8_t[size];
+        mFrameStreamCapacity = size;
+    }
+
+    uint8_t* dst = mFrameStream;
+    memset(dst, 0, size);
+    memcpy(dst, PNG_SIGNATURE, PNG_SIGNATURE_SIZE);
+    dst += PNG_SIGNATURE_SIZE;
+
+    putBE32(dst, PNG_IHDR_SIZE);
+    putBE32(dst + 4, CHUNK_IHDR);
+    memcpy(dst + 8, mFrameSequence.getHeader(), PNG_IHDR_SIZE);
+    putBE32(dst + 8, frame.width);
+    putBE32(dst + 12, frame.height);
+    dst += PNG_CHUNK_OVERHEAD + PNG_IHDR_SIZE;
+
+    memcpy(dst, mFrameSequence.getSharedChunks(), mFrameSequence.getSharedChunksSize());
+    dst += mFrameSequence.getSharedChunksSize();
+
+    for (int i = 0; i < frame.dataChunkCount; i++) {
+        const PngDataChunk& chunk = mFrameSequence.getDataChunk(frame.firstDataChunk + i);
+        putBE32(dst, chunk.length);
+        putBE32(dst + 4, CHUNK_IDAT);
+        memcpy(dst + 8, mFrameSequence.getData() + chunk.offset, chunk.length);
+        dst += PNG_CHUNK_OVERHEAD + chunk.length;
+    }
+
+    putBE32(dst + 4, CHUNK_IEND);
+    return size;
+}
+
+bool FrameSequenceState_png::decodeFrame(const PngFrame& frame,
+        Color8888* outputPtr, int outputPixelStride) {
+    const bool blend = frame.blendOp == APNG_BLEND_OP_OVER;
+    if (blend && !mBlendBuffer) {
+        mBlendBuffer = new Color8888[mFrameSequence.getWidth() * mFrameSequence.getHeight()];
+    }
+    // APNG_BLEND_OP_SOURCE frames are decoded in place, others need compositing afterwards
+    Color8888* dst = blend ? mBlendBuffer : outputPtr + frame.x + frame.y * outputPixelStride;
+    const int dstStride = blend ? frame.width : outputPixelStride;
+
+    PngReader reader;
+    reader.data = mFrameStream;
+    reader.remaining = buildFrameStream(frame);
+
+    png_structp png = png_create_read_struct(PNG_LIBPNG_VER_STRING, NULL, NULL, logPngWarning);
+    if (!png) {
+        return false;
+    }
+    png_infop info = png_create_info_struct(png);
+    if (!info) {
+        png_destroy_read_struct(&png, NULL, NULL);
+        return false;
+    }
+    if (setjmp(png_jmpbuf(png))) {
+        png_destroy_read_struct(&png, &info, NULL);
+        return false;
+    }
+
+    png_set_read_fn(png, &reader, readFromMemory);
+    png_set_crc_action(png, PNG_CRC_QUIET_USE, PNG_CRC_QUIET_USE);
+    png_read_info(png, info);
+
+    // Output 8 bit RGBA, which matches the Color8888 memory layout.
+    png_set_expand(png);
+    png_set_strip_16(png);
+    png_set_gray_to_rgb(png);
+    png_set_add_alpha(png, 0xff, PNG_FILLER_AFTER);
+    png_set_interlace_handling(png);
+    png_read_update_info(png, info);
+
+    for (int y = 0; y < frame.height; y++) {
+        mRowPointers[y] = (png_bytep)(dst + y * dstStride);
+    }
+    png_read_image(png, mRowPointers);
+    png_destroy_read_struct(&png, &info, NULL);
+
+    Color8888* canvas = outputPtr + frame.x + frame.y * outputPixelStride;
+    for (int y = 0; y < frame.height; y++) {
+        Color8888* src = dst + y * dstStride;
+        Color8888* out = canvas + y * outputPixelStride;
+        for (int x = 0; x < frame.width; x++) {
+            out[x] = blend ? blendOver(out[x], premultiply(src[x])) : premultiply(src[x]);
+        }
+    }
+    return true;
+}
+
+void FrameSequenceState_png::savePreserveBuffer(const PngFrame& frame,
+        Color8888* outputPtr, int outputPixelStride, int frameNr) {
+    if (!mPreserveBuffer) {
+        mPreserveBuffer = new Color8888[mFrameSequence.getWidth() * mFrameSequence.getHeight()];
+    }
+    mPreserveBufferFrame = frameNr;
+    copyFrame(outputPtr + frame.x + frame.y * outputPixelStride, outputPixelStride,
+            mPreserveBuffer, frame.width, frame.width, frame.height);
+}
+
+void FrameSequenceState_png::restorePreserveBuffer(const PngFrame& frame,
+        Color8888* outputPtr, int outputPixelStride) {
+    copyFrame(mPreserveBuffer, frame.width,
+            outputPtr + frame.x + frame.y * outputPixelStride, outputPixelStride,
+            frame.width, frame.height);
+}
+
+long FrameSequenceState_png::drawFrame(int frameNr,
+        Color8888* outputPtr, int outputPixelStride, int previousFrameNr) {
+#if APNG_DEBUG
+    ALOGD("  drawFrame called for frame# %d, previous frame# %d", frameNr, previousFrameNr);
+#endif
+
+    const int canvasWidth = mFrameSequence.getWidth();
+    const int canvasHeight = mFrameSequence.getHeight();
+
+    int start = max(previousFrameNr + 1, 0);
+
+    // Disposing a DISPOSE_OP_PREVIOUS frame already in the output needs the area it covered
+    // to have been saved by this state, otherwise we have to draw from a key frame.
+    if (start > 0 && start <= frameNr
+            && mFrameSequence.getFrame(start - 1).disposeOp == APNG_DISPOSE_OP_PREVIOUS
+            && mPreserveBufferFrame != start - 1) {
+        start = 0;
+    }
+
+    // Find the first frame to be drawn.
+    for (int i = frameNr; i > start; i--) {
+        if (mFrameSequence.isKeyFrame(i)) {
+            start = i;
+            break;
+        }
+    }
+
+    for (int i = start; i <= frameNr; i++) {
+        const PngFrame& frame = mFrameSequence.getFrame(i);
+#if APNG_DEBUG
+        ALOGD("      producing frame %d (dispose = %d, blend = %d, delay = %ld)",
+              i, frame.disposeOp, frame.blendOp, frame.delayMs);
+#endif
+        if (mFrameSequence.isKeyFrame(i)) {
+            if (frame.blendOp != APNG_BLEND_OP_SOURCE
+                    || !isFullFrame(frame, canvasWidth, canvasHeight)) {
+                for (int y = 0; y < canvasHeight; y++) {
+                    clearLine(outputPtr + y * outputPixelStride, canvasWidth);
+                }
+            }
+        } else {
+            const PngFrame& prevFrame = mFrameSequence.getFrame(i - 1);
+            switch (prevFrame.disposeOp) {
+            case APNG_DISPOSE_OP_BACKGROUND: {
+                Color8888* dst = outputPtr + prevFrame.x + prevFrame.y * outputPixelStride;
+                for (int y = 0; y < prevFrame.height; y++) {
+                    clearLine(dst, prevFrame.width);
+                    dst += outputPixelStride;
+                }
+            } break;
+            case APNG_DISPOSE_OP_PREVIOUS: {
+                // frames disposed this way earlier in this loop were never drawn
+                if (i == start) {
+                    restorePreserveBuffer(prevFrame, outputPtr, outputPixelStride);
+                }
+            } break;
+            }
+        }
+
+        if (i == frameNr || frame.disposeOp == APNG_DISPOSE_OP_NONE) {
+            if (frame.disposeOp == APNG_DISPOSE_OP_PREVIOUS) {
+                savePreserveBuffer(frame, outputPtr, outputPixelStride, i);
+            }
+            if (!decodeFrame(frame, outputPtr, outputPixelStride)) {
+                ALOGE("Error decoding frame# %d", i);
+                return -1;
+            }
+        }
+    }
+
+    // Return last frame's delay.
+    const int frameCount = mFrameSequence.getFrameCount();
+    const int lastFrame = (frameNr + frameCount - 1) % frameCount;
+    return mFrameSequence.getFrame(lastFrame).delayMs;
+}
+
+////////////////////////////////////////////////////////////////////////////////
+// Registry
+////////////////////////////////////////////////////////////////////////////////
+
+#include "Registry.h"
+
+static bool isPng(void* header, int header_size) {
+    return header_size >= PNG_SIGNATURE_SIZE
+            && !memcmp(PNG_SIGNATURE, header, PNG_SIGNATURE_SIZE);
+}
+
+static bool acceptsPngBuffer() {
+    return true;
+}
+
+static FrameSequence* createFramesequence(Stream* stream) {
+    return new FrameSequence_png(stream);
+}
+
+static RegistryEntry gEntry = {
+        PNG_SIGNATURE_SIZE,
+        isPng,
+        createFramesequence,
+        NULL,
+        acceptsPngBuffer,
+};
+static Registry gRegister(gEntry);
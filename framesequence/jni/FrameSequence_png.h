@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef RASTERMILL_FRAMESQUENCE_PNG_H
+#define RASTERMILL_FRAMESQUENCE_PNG_H
+
+#include "png.h"
+
+#include "Stream.h"
+#include "Color.h"
+#include "FrameSequence.h"
+
+// APNG frame control values, as defined by the fcTL chunk.
+#define APNG_DISPOSE_OP_NONE 0
+#define APNG_DISPOSE_OP_BACKGROUND 1
+#define APNG_DISPOSE_OP_PREVIOUS 2
+
+#define APNG_BLEND_OP_SOURCE 0
+#define APNG_BLEND_OP_OVER 1
+
+// Location of a chunk payload containing compressed image data (IDAT, or fdAT without its
+// sequence number) within the file.
+struct PngDataChunk {
+    size_t offset;
+    size_t length;
+};
+
+struct PngFrame {
+    int x;
+    int y;
+    int width;
+    int height;
+    long delayMs;
+    uint8_t disposeOp;
+    uint8_t blendOp;
+    // range of mDataChunks holding this frame's compressed data
+    int firstDataChunk;
+    int dataChunkCount;
+};
+
+// Parser for a possibly-animated PNG (APNG) bitstream. A PNG without an acTL chunk is exposed
+// as a single frame sequence.
+class FrameSequence_png : public FrameSequence {
+public:
+    FrameSequence_png(Stream* stream);
+    virtual ~FrameSequence_png();
+
+    virtual int getWidth() const {
+        return mWidth;
+    }
+
+    virtual int getHeight() const {
+        return mHeight;
+    }
+
+    virtual bool isOpaque() const {
+        return mOpaque;
+    }
+
+    virtual int getFrameCount() const {
+        return mFrameCount;
+    }
+
+    virtual int getDefaultLoopCount() const {
+        return mLoopCount;
+    }
+
+    virtual jobject getRawByteBuffer() const {
+        return mRawByteBuffer;
+    }
+
+    virtual FrameSequenceState* createState() const;
+
+    const uint8_t* getData() const { return mData; }
+    const PngFrame& getFrame(int frameNr) const { return mFrames[frameNr]; }
+    const PngDataChunk& getDataChunk(int index) const { return mDataChunks[index]; }
+
+    // IHDR payload of the full image, frame dimensions are patched in per frame
+    const uint8_t* getHeader() const { return mData + mHeaderOffset; }
+
+    // Chunks (PLTE, tRNS, gAMA, ...) shared by every frame, stored contiguously in
+    // mSharedChunks including their length, type and CRC fields
+    const uint8_t* getSharedChunks() const { return mSharedChunks; }
+    size_t getSharedChunksSize() const { return mSharedChunksSize; }
+
+    virtual bool isKeyFrame(int frameNr) const { return mIsKeyFrame[frameNr]; }
+
+private:
+    bool readData(Stream* stream);
+    bool parseChunks();
+    void constructDependencyChain();
+
+    uint8_t* mData;
+    size_t mDataSize;
+    jobject mRawByteBuffer;
+
+    int mWidth;
+    int mHeight;
+    bool mOpaque;
+    int mFrameCount;
+    int mLoopCount;
+    size_t mHeaderOffset;
+
+    uint8_t* mSharedChunks;
+    size_t mSharedChunksSize;
+
+    PngFrame* mFrames;
+    PngDataChunk* mDataChunks;
+    int mDataChunkCount;
+
+    // mIsKeyFrame[i] is true if ith canvas can be constructed without drawing any prior frames.
+    bool* mIsKeyFrame;
+};
+
+// Produces frames of a possibly-animated PNG file for display.
+class FrameSequenceState_png : public FrameSequenceState {
+public:
+    FrameSequenceState_png(const FrameSequence_png& frameSequence);
+    virtual ~FrameSequenceState_png();
+
+    // Returns frame's delay time in milliseconds.
+    virtual long drawFrame(int frameNr,
+            Color8888* outputPtr, int outputPixelStride, int previousFrameNr);
+
+private:
+    bool decodeFrame(const PngFrame& frame, Color8888* outputPtr, int outputPixelStride);
+    size_t buildFrameStream(const PngFrame& frame);
+    void savePreserveBuffer(const PngFrame& frame, Color8888* outputPtr, int outputPixelStride,
+            int frameNr);
+    void restorePreserveBuffer(const PngFrame& frame, Color8888* outputPtr,
+            int outputPixelStride);
+
+    const FrameSequence_png& mFrameSequence;
+
+    // standalone PNG stream for the frame currently being decoded
+    uint8_t* mFrameStream;
+    size_t mFrameStreamCapacity;
+
+    // frame sized scratch buffer used for APNG_BLEND_OP_OVER frames
+    Color8888* mBlendBuffer;
+    png_bytep* mRowPointers;
+
+    // contents of the canvas under the rectangle of mPreserveBufferFrame, before it was drawn
+    Color8888* mPreserveBuffer;
+    int mPreserveBufferFrame;
+};
+
+#endif //RASTERMILL_FRAMESQUENCE_PNG_H
@@ -207,10 +207,15 @@ void FrameSequenceState_webp::initializeFrame(const WebPIterator& currIter, Colo
     const int canvasHeight = mFrameSequence.getHeight();
     const bool currFrameIsKeyFrame = mFrameSequence.isKeyFrame(currIter.frame_num - 1);
 
-    if (currFrameIsKeyFrame) {  // Clear canvas.
-        for (int y = 0; y < canvasHeight; y++) {
-            Color8888* dst = currBuffer + y * currStride;
-            clearLine(dst, canvasWidth);
+    if (currFrameIsKeyFrame) {
+        // Clear canvas, unless decoding will overwrite all of it anyway.
+        const bool coversCanvas = isFullFrame(currIter, canvasWidth, canvasHeight) &&
+                (!currIter.has_alpha || currIter.blend_method == WEBP_MUX_NO_BLEND);
+        if (!coversCanvas) {
+            for (int y = 0; y < canvasHeight; y++) {
+                Color8888* dst = currBuffer + y * currStride;
+                clearLine(dst, canvasWidth);
+            }
         }
     } else {
         // Preserve previous frame as starting state of current frame.
@@ -316,11 +321,17 @@ long FrameSequenceState_webp::drawFrame(int frameNr,
     int ok = WebPDemuxGetFrame(demux, start, &currIter);  // Get frame number 'start - 1'.
     ALOG_ASSERT(ok, "Could not retrieve frame# %d", start - 1);
 
-    // Use preserve buffer only if needed.
-    Color8888* prevBuffer = (frameNr == 0) ? outputPtr : mPreservedBuffer;
-    int prevStride = (frameNr == 0) ? outputPixelStride : canvasWidth;
-    Color8888* currBuffer = outputPtr;
-    int currStride = outputPixelStride;
+    // Buffers are swapped before each frame is drawn. Unless 'start' is a key frame, it is drawn
+    // on top of the previous frame, which is in outputPtr. Otherwise, pick the order that has
+    // the last frame decoded straight into outputPtr, so no copy is needed at the end. A single
+    // key frame doesn't touch the preserve buffer at all.
+    const int framesToDraw = frameNr - start + 1;
+    const bool startFromOutput = framesToDraw <= 0 ||
+            !mFrameSequence.isKeyFrame(start) || (framesToDraw % 2 == 0);
+    Color8888* prevBuffer = startFromOutput ? mPreservedBuffer : outputPtr;
+    int prevStride = startFromOutput ? canvasWidth : outputPixelStride;
+    Color8888* currBuffer = startFromOutput ? outputPtr : mPreservedBuffer;
+    int currStride = startFromOutput ? outputPixelStride : canvasWidth;
 
     for (int i = start; i <= frameNr; i++) {
         prevIter = currIter;
@@ -68,7 +68,7 @@ public:
 
     WebPDemuxer* getDemuxer() const { return mDemux; }
 
-    bool isKeyFrame(size_t frameNr) const { return mIsKeyFrame[frameNr]; }
+    virtual bool isKeyFrame(int frameNr) const { return mIsKeyFrame[frameNr]; }
 
 private:
     void constructDependencyChain();
@@ -36,8 +36,14 @@ const RegistryEntry* Registry::Find(Stream* stream) {
     Registry* registry = gHead;
 
     if (stream->getRawBuffer() != NULL) {
+        // Buffer backed streams can be inspected in place, but more than one decoder may accept
+        // buffers, so the header still has to match.
+        void* header = stream->getRawBufferAddr();
+        int headerSize = stream->getRawBufferSize();
         while (registry) {
-            if (registry->mImpl.acceptsBuffer()) {
+            if (registry->mImpl.acceptsBuffer()
+                    && headerSize >= registry->mImpl.requiredHeaderBytes
+                    && registry->mImpl.checkHeader(header, headerSize)) {
                 return &(registry->mImpl);
             }
             registry = registry->mNext;
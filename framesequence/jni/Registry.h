@@ -38,6 +38,12 @@ struct RegistryEntry {
  *
  * The super class / root constructable type only needs to define a single static construction
  * meathod that creates an instance by iterating through all factory methods.
+ *
+ * Additional formats plug in by implementing FrameSequence / FrameSequenceState and declaring a
+ * static Registry instance for their RegistryEntry in their own compilation unit (see
+ * FrameSequence_png.cpp), then adding that file to the build. No other code needs to change.
+ * Entries that return true from acceptsBuffer() decode direct ByteBuffers in place and must
+ * not free the stream's raw buffer.
  */
 class Registry {
 public:
@@ -43,10 +43,13 @@ public class FrameSequence {
     private static native FrameSequence nativeDecodeStream(InputStream is, byte[] tempStorage);
     private static native FrameSequence nativeDecodeByteBuffer(ByteBuffer buffer, int offset, int capacity);
     private static native void nativeDestroyFrameSequence(long nativeFrameSequence);
+    private static native boolean nativeIsKeyFrame(long nativeFrameSequence, int frameNr);
     private static native long nativeCreateState(long nativeFrameSequence);
     private static native void nativeDestroyState(long nativeState);
     private static native long nativeGetFrame(long nativeState, int frameNr,
             Bitmap output, int previousFrameNr);
+    private static native void nativeGetFrameSheet(long nativeState, int width, int height,
+            int[] frameNrs, Bitmap output, int columns);
 
     @SuppressWarnings("unused") // called by native
     private FrameSequence(long nativeFrameSequence, int width, int height,
@@ -90,6 +93,75 @@ public class FrameSequence {
         return nativeDecodeStream(stream, tempStorage);
     }
 
+    /**
+     * Returns true if the frame can be drawn without drawing any of the frames before it.
+     * Ranges of frames starting at key frames can be decoded independently of each other.
+     */
+    public boolean isKeyFrame(int frameNr) {
+        if (frameNr < 0 || frameNr >= mFrameCount) {
+            throw new IllegalArgumentException("invalid frame number " + frameNr);
+        }
+        if (mNativeFrameSequence == 0) {
+            throw new IllegalStateException("attempted to use incorrectly built FrameSequence");
+        }
+        return nativeIsKeyFrame(mNativeFrameSequence, frameNr);
+    }
+
+    /**
+     * Renders a contact sheet of the given frames into output, as a grid with the given number
+     * of columns, filled row by row. Each frame is scaled down to fill its tile, which is
+     * output's width / columns wide and output's height / rows high, so output should have the
+     * aspect ratio of the grid of frames.
+     *
+     * Frames are composited and scaled natively in a single pass, without a full size bitmap
+     * per frame. Frame numbers may repeat and needn't be in order.
+     *
+     * Frames are still composited at full size, so sequences of more than 16 megapixels are
+     * refused with an IllegalStateException.
+     */
+    public void getFrameSheet(int[] frameNrs, Bitmap output, int columns) {
+        if (frameNrs == null || frameNrs.length == 0) {
+            throw new IllegalArgumentException("no frames requested");
+        }
+        if (columns < 1) {
+            throw new IllegalArgumentException("invalid column count " + columns);
+        }
+        if (output == null || output.getConfig() != Bitmap.Config.ARGB_8888) {
+            throw new IllegalArgumentException("Bitmap passed must be non-null and ARGB_8888");
+        }
+        for (int frameNr : frameNrs) {
+            if (frameNr < 0 || frameNr >= mFrameCount) {
+                throw new IllegalArgumentException("invalid frame number " + frameNr);
+            }
+        }
+
+        State state = createState();
+        if (state == null) {
+            throw new IllegalStateException("couldn't create FrameSequence state");
+        }
+        try {
+            nativeGetFrameSheet(state.mNativeState, mWidth, mHeight, frameNrs, output, columns);
+        } finally {
+            state.destroy();
+        }
+    }
+
+    /**
+     * Renders tileCount evenly spaced frames, starting with the first one, as a contact sheet.
+     *
+     * @see #getFrameSheet(int[], Bitmap, int)
+     */
+    public void getFrameSheet(int tileCount, Bitmap output, int columns) {
+        if (tileCount < 1) {
+            throw new IllegalArgumentException("invalid tile count " + tileCount);
+        }
+        int[] frameNrs = new int[tileCount];
+        for (int i = 0; i < tileCount; i++) {
+            frameNrs[i] = (int) ((long) i * mFrameCount / tileCount);
+        }
+        getFrameSheet(frameNrs, output, columns);
+    }
+
     State createState() {
         if (mNativeFrameSequence == 0) {
             throw new IllegalStateException("attempted to use incorrectly built FrameSequence");
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.support.rastermill;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes every frame of a {@link FrameSequence} for offline processing (thumbnail sheets,
+ * conversion to video, ...), as fast as the device allows.
+ *
+ * The sequence is split into segments starting at each key frame. Segments don't depend on
+ * each other, so they are decoded concurrently by worker threads with their own playback
+ * states, while frames are still delivered to the caller in order.
+ *
+ * For formats without key frames past the first frame (e.g. GIF) this degrades to decoding
+ * sequentially on a single worker.
+ */
+public class FrameSequenceExporter {
+    private static final String TAG = "FrameSequenceExporter";
+
+    /**
+     * Number of decoded frames each segment may have waiting for the caller, which bounds the
+     * number of frame sized bitmaps in flight to roughly threadCount * (this + 1).
+     */
+    private static final int MAX_PENDING_FRAMES_PER_SEGMENT = 2;
+
+    public static interface FrameCallback {
+        /**
+         * Called on the thread running {@link #export}, once per frame in frame order.
+         *
+         * The bitmap is reused for later frames after this returns, copy it if it needs to be
+         * retained.
+         *
+         * @param frameNr index of the frame
+         * @param frame the fully composited frame
+         * @param durationMs how long the frame is displayed during playback
+         */
+        public abstract void onFrame(int frameNr, Bitmap frame, long durationMs);
+    }
+
+    private static class DecodedFrame {
+        final int frameNr;
+        final Bitmap bitmap;
+        // value returned by State.getFrame(), i.e. the duration of the frame before this one
+        final long previousFrameDurationMs;
+
+        DecodedFrame(int frameNr, Bitmap bitmap, long previousFrameDurationMs) {
+            this.frameNr = frameNr;
+            this.bitmap = bitmap;
+            this.previousFrameDurationMs = previousFrameDurationMs;
+        }
+    }
+
+    // Marks a segment whose worker failed, see mError.
+    private static final DecodedFrame FAILED = new DecodedFrame(-1, null, 0);
+
+    private final FrameSequence mFrameSequence;
+    private final int mThreadCount;
+
+    private int[] mSegmentStarts;
+    private ArrayList<BlockingQueue<DecodedFrame>> mSegmentFrames;
+    private final BlockingQueue<Bitmap> mFreeBitmaps = new LinkedBlockingQueue<Bitmap>();
+    private final AtomicInteger mNextSegment = new AtomicInteger();
+    private volatile boolean mCancelled;
+    private volatile Throwable mError;
+
+    /**
+     * @param frameSequence sequence to decode
+     * @param threadCount maximum number of segments decoded concurrently
+     */
+    public FrameSequenceExporter(FrameSequence frameSequence, int threadCount) {
+        if (frameSequence == null) throw new IllegalArgumentException();
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount must be at least 1");
+        }
+        mFrameSequence = frameSequence;
+        mThreadCount = threadCount;
+    }
+
+    /**
+     * Decodes all frames, blocking until the last one has been passed to the callback.
+     *
+     * An exception thrown by the callback stops decoding and is rethrown from here. Each
+     * exporter can only be used once.
+     */
+    public void export(FrameCallback callback) throws InterruptedException {
+        if (callback == null) throw new IllegalArgumentException();
+        if (mSegmentStarts != null) {
+            throw new IllegalStateException("export() may only be called once");
+        }
+
+        final int frameCount = mFrameSequence.getFrameCount();
+        int segmentCount = 0;
+        int[] starts = new int[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            if (i == 0 || mFrameSequence.isKeyFrame(i)) {
+                starts[segmentCount++] = i;
+            }
+        }
+        mSegmentStarts = new int[segmentCount];
+        System.arraycopy(starts, 0, mSegmentStarts, 0, segmentCount);
+        mSegmentFrames = new ArrayList<BlockingQueue<DecodedFrame>>(segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            mSegmentFrames.add(
+                    new ArrayBlockingQueue<DecodedFrame>(MAX_PENDING_FRAMES_PER_SEGMENT));
+        }
+
+        Thread[] workers = new Thread[Math.min(mThreadCount, segmentCount)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(mWorker, TAG + " worker " + i);
+            workers[i].start();
+        }
+
+        try {
+            deliverFrames(callback);
+        } finally {
+            mCancelled = true;
+            for (Thread worker : workers) {
+                worker.interrupt();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            for (BlockingQueue<DecodedFrame> frames : mSegmentFrames) {
+                frames.clear();
+            }
+            mFreeBitmaps.clear();
+        }
+    }
+
+    private void deliverFrames(FrameCallback callback) throws InterruptedException {
+        // A frame's duration is only reported when the frame after it is drawn, so delivery
+        // lags one frame behind decoding. Drawing frame 0 reports the last frame's duration.
+        DecodedFrame pending = null;
+        long lastFrameDurationMs = 0;
+        for (int segment = 0; segment < mSegmentStarts.length; segment++) {
+            BlockingQueue<DecodedFrame> frames = mSegmentFrames.get(segment);
+            for (int i = mSegmentStarts[segment]; i < getSegmentEnd(segment); i++) {
+                DecodedFrame frame = frames.take();
+                if (frame == FAILED) {
+                    throw new RuntimeException("Error decoding frame sequence", mError);
+                }
+                if (frame.frameNr == 0) {
+                    lastFrameDurationMs = frame.previousFrameDurationMs;
+                }
+                if (pending != null) {
+                    callback.onFrame(pending.frameNr, pending.bitmap,
+                            frame.previousFrameDurationMs);
+                    mFreeBitmaps.offer(pending.bitmap);
+                }
+                pending = frame;
+            }
+        }
+        if (pending != null) {
+            callback.onFrame(pending.frameNr, pending.bitmap, lastFrameDurationMs);
+        }
+    }
+
+    private int getSegmentEnd(int segment) {
+        return segment + 1 < mSegmentStarts.length
+                ? mSegmentStarts[segment + 1] : mFrameSequence.getFrameCount();
+    }
+
+    private Bitmap obtainBitmap() {
+        Bitmap bitmap = mFreeBitmaps.poll();
+        if (bitmap == null) {
+            bitmap = Bitmap.createBitmap(mFrameSequence.getWidth(), mFrameSequence.getHeight(),
+                    Bitmap.Config.ARGB_8888);
+        }
+        return bitmap;
+    }
+
+    private final Runnable mWorker = new Runnable() {
+        @Override
+        public void run() {
+            Bitmap canvasBitmap = null;
+            FrameSequence.State state = null;
+            int segment = -1;
+            try {
+                // State.getFrame() draws on top of the previous frame, so each worker composites
+                // into its own canvas bitmap and hands out copies. Allocated in here, so that
+                // running out of memory fails the export rather than leaving it waiting.
+                canvasBitmap = Bitmap.createBitmap(mFrameSequence.getWidth(),
+                        mFrameSequence.getHeight(), Bitmap.Config.ARGB_8888);
+                Paint copyPaint = new Paint();
+                copyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+                state = mFrameSequence.createState();
+                if (state == null) {
+                    throw new IllegalStateException("Couldn't create FrameSequence state");
+                }
+                while (!mCancelled) {
+                    segment = mNextSegment.getAndIncrement();
+                    if (segment >= mSegmentStarts.length) break;
+
+                    final int start = mSegmentStarts[segment];
+                    final int end = getSegmentEnd(segment);
+                    BlockingQueue<DecodedFrame> frames = mSegmentFrames.get(segment);
+                    for (int i = start; i < end && !mCancelled; i++) {
+                        // start is a key frame, so it doesn't need any earlier frame drawn
+                        long durationMs = state.getFrame(i, canvasBitmap,
+                                i == start ? -1 : i - 1);
+                        if (durationMs < 0) {
+                            throw new IllegalStateException("Error decoding frame " + i);
+                        }
+                        Bitmap output = obtainBitmap();
+                        new Canvas(output).drawBitmap(canvasBitmap, 0, 0, copyPaint);
+                        frames.put(new DecodedFrame(i, output, durationMs));
+                    }
+                }
+            } catch (InterruptedException e) {
+                // cancelled by export()
+            } catch (Throwable t) {
+                // including OutOfMemoryError, the caller would wait on this segment forever
+                mError = t;
+                if (segment < 0) {
+                    segment = mNextSegment.getAndIncrement();
+                }
+                if (segment < mSegmentStarts.length) {
+                    try {
+                        mSegmentFrames.get(segment).put(FAILED);
+                    } catch (InterruptedException ignored) {
+                        // cancelled by export()
+                    }
+                }
+            } finally {
+                if (state != null) {
+                    state.destroy();
+                }
+                if (canvasBitmap != null) {
+                    canvasBitmap.recycle();
+                }
+            }
+        }
+    };
+}